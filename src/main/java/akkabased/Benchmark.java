@@ -0,0 +1,189 @@
+package akkabased;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+import ch.maxant.tradingengine.model.TradingEngine.MatchingMode;
+import akkabased.Main.EngineRuntime;
+import akkabased.Main.PartitioningStrategy;
+
+/**
+ * compares the runtimes head to head, by feeding generated orders straight into the engines,
+ * without HTTP in the way, see {@link Main#RUNTIME}. a single producer publishes the orders as fast
+ * as the engines let it, and the time is taken once they have all been applied. the latency of a
+ * sale is from when the later of its two orders was published, until the engine announced it,
+ * which in batch mode includes waiting for the sitting and persistence. as with {@link Main}, sales
+ * are persisted, so the database should be up, unless persistence is stubbed, in which case a
+ * sitting is complete as soon as its sales are matched, see {@link Main#STUB_PERSISTENCE}. that
+ * measures the runtimes rather than the database. the results name the kind of thread which the
+ * virtual runtime actually ran on, since that depends on the JDK, see
+ * {@link VirtualThreadEngine#VIRTUAL_THREADS}.
+ *
+ * usage: Benchmark [actors|ring|virtual] [numberOfOrders] [numberOfPartitions] [batch|continuous] [spin|yield] [db|stub]
+ */
+public class Benchmark {
+
+	private static final int NUM_PARTICIPANTS = 1000;
+
+	public static void main(String[] args) throws InterruptedException {
+		EngineRuntime runtime = args.length > 0 ? EngineRuntime.valueOf(args[0].toUpperCase()) : EngineRuntime.RING;
+		int numberOfOrders = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+		int numberOfPartitions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		if(args.length > 3){
+			Main.MATCHING_MODE = MatchingMode.valueOf(args[3].toUpperCase());
+		}
+		Main.BUSY_SPIN = args.length > 4 && "spin".equalsIgnoreCase(args[4]);
+		Main.STUB_PERSISTENCE = args.length > 5 && "stub".equalsIgnoreCase(args[5]);
+		PartitioningStrategy partitioning = PartitioningStrategy.parse("range", numberOfPartitions);
+
+		String[] users = new String[NUM_PARTICIPANTS];
+		int[] participants = new int[NUM_PARTICIPANTS];
+		for(int i = 0; i < NUM_PARTICIPANTS; i++){
+			users[i] = "user" + i;
+			participants[i] = Participants.intern(users[i]);
+		}
+
+		long[] submitted = new long[numberOfOrders];
+		long[] latencies = new long[numberOfOrders];
+		AtomicInteger numberOfSales = new AtomicInteger();
+		Main.SALES_PROBE = sale -> {
+			int later = Math.max(sale.getSalesOrder().getId(), sale.getPurchaseOrder().getId());
+			int i = numberOfSales.getAndIncrement();
+			if(i < latencies.length){
+				latencies[i] = System.nanoTime() - submitted[later];
+			}
+		};
+
+		//buyers pay the market price and sellers ask around 10.00, so that most orders are matched
+		Random random = new Random(42);
+		long basePrice = Prices.parse("9.5");
+		long start;
+		if(EngineRuntime.RING.equals(runtime)){
+			RingEngine[] engines = new RingEngine[numberOfPartitions];
+			for(int partition = 0; partition < numberOfPartitions; partition++){
+				engines[partition] = new RingEngine(partition, Main.MAX_QUEUED_MESSAGES, Main.BUSY_SPIN);
+				engines[partition].start();
+			}
+			start = System.nanoTime();
+			for(int id = 0; id < numberOfOrders; id++){
+				int user = random.nextInt(NUM_PARTICIPANTS);
+				int productId = random.nextInt(Constants.NUM_PRODUCTS);
+				int quantity = 1 + random.nextInt(20);
+				OrderRing ring = engines[partitioning.partitionOf(productId)].getRing();
+				long sequence;
+				while((sequence = ring.tryClaim()) < 0){
+					Thread.yield();
+				}
+				submitted[id] = System.nanoTime();
+				if(random.nextBoolean()){
+					ring.get(sequence).sell(participants[user], users[user], productId, quantity, basePrice + random.nextInt(100), id, 0);
+				}else{
+					ring.get(sequence).buy(participants[user], users[user], productId, quantity, id, 0);
+				}
+				ring.publish(sequence);
+			}
+			awaitProcessed(engines, numberOfOrders);
+		}else if(EngineRuntime.VIRTUAL.equals(runtime)){
+			VirtualThreadEngine[] engines = new VirtualThreadEngine[numberOfPartitions];
+			for(int partition = 0; partition < numberOfPartitions; partition++){
+				engines[partition] = new VirtualThreadEngine(partition, Main.MAX_QUEUED_MESSAGES);
+				engines[partition].start();
+			}
+			start = System.nanoTime();
+			for(int id = 0; id < numberOfOrders; id++){
+				Object order = newOrder(random, id, basePrice, users, participants);
+				VirtualThreadEngine engine = engines[partitioning.partitionOf(productIdOf(order))];
+				submitted[id] = System.nanoTime();
+				while(!engine.offer(order)){
+					Thread.yield();
+				}
+			}
+			awaitProcessed(engines, numberOfOrders);
+		}else{
+			ActorRef[] engines = new ActorRef[numberOfPartitions];
+			AtomicInteger[] queued = new AtomicInteger[numberOfPartitions];
+			for(int partition = 0; partition < numberOfPartitions; partition++){
+				queued[partition] = new AtomicInteger();
+				engines[partition] = Main.system.actorOf(Props.create(Main.EngineActor.class, partition, queued[partition]).withDispatcher(Main.ENGINE_DISPATCHER));
+				engines[partition].tell(Main.EngineActor.RUN, ActorRef.noSender());
+			}
+			start = System.nanoTime();
+			for(int id = 0; id < numberOfOrders; id++){
+				Object order = newOrder(random, id, basePrice, users, participants);
+				int partition = partitioning.partitionOf(productIdOf(order));
+				while(queued[partition].get() >= Main.MAX_QUEUED_MESSAGES){
+					Thread.yield();
+				}
+				queued[partition].incrementAndGet();
+				submitted[id] = System.nanoTime();
+				engines[partition].tell(order, ActorRef.noSender());
+			}
+			int remaining;
+			do{
+				Thread.sleep(1);
+				remaining = 0;
+				for(AtomicInteger queue : queued){
+					remaining += queue.get();
+				}
+			}while(remaining > 0);
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		String label = EngineRuntime.VIRTUAL.equals(runtime) ? runtime + " (on " + VirtualThreadEngine.threadKind() + " threads)" : runtime.toString();
+		System.out.println(label + ": " + numberOfOrders + " orders applied by " + numberOfPartitions + " engines in "
+				+ millis + "ms, ie " + (numberOfOrders * 1000L / millis) + " orders per second, using "
+				+ ManagementFactory.getThreadMXBean().getThreadCount() + " platform threads");
+
+		//let the last sitting announce its sales
+		Thread.sleep(2 * Main.DELAY + 100);
+		int n = Math.min(numberOfSales.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		if(n > 0){
+			System.out.println(label + ": " + n + " sales, latency in microseconds: p50=" + sorted[n / 2] / 1000 
+					+ ", p99=" + sorted[(int) (n * 0.99)] / 1000 + ", p99.9=" + sorted[(int) (n * 0.999)] / 1000 
+					+ ", max=" + sorted[n - 1] / 1000);
+		}
+		System.exit(0);
+	}
+
+	private static Object newOrder(Random random, int id, long basePrice, String[] users, int[] participants) {
+		int user = random.nextInt(NUM_PARTICIPANTS);
+		int productId = random.nextInt(Constants.NUM_PRODUCTS);
+		int quantity = 1 + random.nextInt(20);
+		if(random.nextBoolean()){
+			SalesOrder so = new SalesOrder(basePrice + random.nextInt(100), productId, quantity, id);
+			so.setUserId(users[user]);
+			so.setParticipant(participants[user]);
+			return so;
+		}else{
+			PurchaseOrder po = new PurchaseOrder(productId, quantity, Prices.parse("9999.9"), id);
+			po.setUserId(users[user]);
+			po.setParticipant(participants[user]);
+			return po;
+		}
+	}
+
+	private static int productIdOf(Object order) {
+		return order instanceof SalesOrder ? ((SalesOrder) order).getProductId() : ((PurchaseOrder) order).getProductId();
+	}
+
+	private static void awaitProcessed(EngineLoop[] engines, long numberOfOrders) throws InterruptedException {
+		long processed;
+		do{
+			Thread.sleep(1);
+			processed = 0;
+			for(EngineLoop engine : engines){
+				processed += engine.getProcessed();
+			}
+		}while(processed < numberOfOrders);
+	}
+}
@@ -0,0 +1,22 @@
+package akkabased;
+
+/**
+ * an engine which runs on a thread of its own, and takes orders from a bounded queue, rather than
+ * being an actor, see {@link Main#RUNTIME}
+ */
+public interface EngineLoop {
+
+	void start();
+
+	void stop();
+
+	/**
+	 * hands the order, cancellation or amendment to the engine.
+	 *
+	 * @return false if its queue is full
+	 */
+	boolean offer(Object message);
+
+	/** @return the number of orders, cancellations and amendments applied since starting */
+	long getProcessed();
+}
@@ -0,0 +1,112 @@
+package akkabased;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.japi.pf.ReceiveBuilder;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+import ch.maxant.tradingengine.model.TradingEngine.MatchingMode;
+
+/**
+ * runs an engine in a JVM of its own, for the HTTP node which it connects to, see
+ * {@link Main#CLUSTER_PORT}. the HTTP node makes it a partition and moves a fair share of the
+ * products to it. if the node leaves, its products are moved back to the remaining engines. several
+ * nodes can be started on one machine, e.g. to try it out:
+ *
+ * <pre>
+ * java akkabased.Main 2 3 localhost batch 0 range 5000 10000 1000 actors yield 3002
+ * java akkabased.EngineNode localhost 3002
+ * java akkabased.EngineNode localhost 3002
+ * </pre>
+ *
+ * usage: EngineNode [httpNodeHost] [clusterPort] [delay] [dbHost] [batch|continuous]
+ */
+public class EngineNode {
+
+	private static final Logger LOGGER = LogManager.getLogger(EngineNode.class);
+
+	public static void main(String[] args) {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 3002;
+		if(args.length > 2){
+			Main.DELAY = Long.parseLong(args[2]);
+		}
+		if(args.length > 3){
+			Main.DB_HOST = args[3];
+		}
+		if(args.length > 4){
+			Main.MATCHING_MODE = MatchingMode.valueOf(args[4].toUpperCase());
+		}
+		Main.system.actorOf(Props.create(NodeActor.class, new InetSocketAddress(host, port)), "node");
+	}
+
+	/** the nodes end of the connection, and the parent of its engine */
+	private static class NodeActor extends AbstractActor {
+
+		private final AtomicInteger queued = new AtomicInteger();
+		private final WireFormat.Decoder decoder = new WireFormat.Decoder();
+		private WireFormat.Outbox outbox;
+		private ActorRef engine;
+
+		@SuppressWarnings("unused") //used implicitly by akka
+		public NodeActor(InetSocketAddress httpNode) {
+			Tcp.get(Main.system).manager().tell(TcpMessage.connect(httpNode), self());
+
+			receive(ReceiveBuilder
+				.match(Tcp.Connected.class, c -> {
+					LOGGER.info("connected to " + c.remoteAddress());
+					sender().tell(TcpMessage.register(self()), self());
+					outbox = new WireFormat.Outbox(sender(), self());
+				}).match(Tcp.Received.class, r -> {
+					decoder.decode(r.data(), this::onMessageFromHttpNode);
+				}).match(Tcp.Event.class, e -> e == WireFormat.ACK, e -> {
+					outbox.acknowledged();
+				}).match(BookTransfer.class, t -> {
+					outbox.send(t);
+				}).match(Main.BookImported.class, i -> {
+					outbox.send(i);
+				}).match(Main.EngineLoad.class, l -> {
+					outbox.send(l);
+				}).match(MarketSnapshots.Published.class, p -> {
+					outbox.send(p);
+				}).match(Tcp.CommandFailed.class, f -> {
+					LOGGER.error("failed to talk to " + httpNode + ", shutting down: " + f);
+					Main.system.shutdown();
+				}).match(Tcp.ConnectionClosed.class, c -> {
+					LOGGER.error("lost the connection to " + httpNode + ", shutting down: " + c);
+					Main.system.shutdown();
+				}).matchAny(o -> {
+					LOGGER.error("received unknown message in engine node " + o);
+				}).build());
+		}
+
+		private void onMessageFromHttpNode(Object message) {
+			if(message instanceof WireFormat.Welcome){
+				int partition = ((WireFormat.Welcome) message).partition;
+				LOGGER.info("starting engine " + partition);
+				engine = getContext().actorOf(Props.create(Main.EngineActor.class, partition, queued, true).withDispatcher(Main.ENGINE_DISPATCHER));
+				engine.tell(Main.EngineActor.RUN, ActorRef.noSender());
+			}else if(message instanceof WireFormat.ExportBookRequest){
+				engine.tell(new Main.ExportBook(((WireFormat.ExportBookRequest) message).productId, self()), self());
+			}else{
+				if(message instanceof SalesOrder || message instanceof PurchaseOrder
+						|| message instanceof Cancellation || message instanceof Amendment){
+					queued.incrementAndGet();
+				}
+				engine.tell(message, self());
+			}
+		}
+	}
+}
@@ -1,13 +1,20 @@
 package akkabased;
 
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,40 +30,50 @@ import spray.can.HttpExt;
 import spray.can.server.ServerSettings;
 import spray.http.ContentTypes;
 import spray.http.HttpHeader;
+import spray.http.HttpHeaders;
 import spray.http.HttpProtocol;
 import spray.http.HttpProtocols;
 import spray.http.HttpRequest;
 import spray.http.HttpResponse;
 import spray.http.StatusCodes;
+import spray.http.Uri;
 import spray.io.ServerSSLEngineProvider;
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
 import akka.actor.ExtensionId;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.io.IO;
 import akka.io.Inet;
 import akka.io.Tcp;
+import akka.io.TcpMessage;
 import akka.japi.pf.ReceiveBuilder;
 import akka.routing.ActorRefRoutee;
 import akka.routing.Routee;
 import akka.routing.Router;
 import akka.routing.RoutingLogic;
-import ch.maxant.tradingengine.model.Buyer;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Cancellation;
 import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.OrderStatus;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.Prices;
 import ch.maxant.tradingengine.model.PurchaseOrder;
 import ch.maxant.tradingengine.model.Sale;
 import ch.maxant.tradingengine.model.SalesOrder;
-import ch.maxant.tradingengine.model.Seller;
 import ch.maxant.tradingengine.model.TradingEngine;
 import ch.maxant.tradingengine.model.TradingEngine.EventType;
 import ch.maxant.tradingengine.model.TradingEngine.Listener;
+import ch.maxant.tradingengine.model.TradingEngine.MatchingMode;
 
 public class Main {
 
 	public static final ActorSystem system = ActorSystem.create("system");
 	private static final Logger LOGGER = LogManager.getLogger(Main.class);
-	private static final AtomicInteger numSales = new AtomicInteger();
+	static final AtomicInteger numSales = new AtomicInteger();
 
 	/** override using arg0 */
 	public static int NUM_KIDS = 4;
@@ -67,6 +84,76 @@ public class Main {
 	/** override using arg2 */
 	public static String DB_HOST = "localhost";
 
+	/** override using arg3, either "batch" or "continuous" */
+	public static MatchingMode MATCHING_MODE = MatchingMode.BATCH;
+
+	/** override using arg4, the number of threads on which each engine may trade its products in 
+	 * parallel during a batch sitting. 0 trades them one after the other, on the engines thread. */
+	public static int MATCHING_PARALLELISM = 0;
+
+	/** shared by all engines, null unless {@link #MATCHING_PARALLELISM} is set */
+	static ForkJoinPool MATCHING_POOL;
+
+	/** override using arg5, see {@link PartitioningStrategy#parse} */
+	public static PartitioningStrategy PARTITIONING = null;
+
+	/** override using arg6, how often in milliseconds to consider moving a product from the busiest 
+	 * engine to the least busy one. 0 disables rebalancing. */
+	public static long REBALANCE_INTERVAL = 5000;
+
+	/** override using arg7, the most messages which may wait for an engine. once an engine has 
+	 * this many, further orders for its products are rejected with 503 until it catches up. */
+	public static int MAX_QUEUED_MESSAGES = 10000;
+
+	/** override using arg8, the most messages which an engine applies in one batch */
+	public static int MAX_BATCH_SIZE = 1000;
+
+	/** how the engines are run */
+	public static enum EngineRuntime {
+		/** each engine is an actor on a pinned thread, which receives orders as messages */
+		ACTORS, 
+		/** each engine has a thread of its own, which takes orders from a {@link RingEngine ring} */
+		RING,
+		/** each engine loops on a {@link VirtualThreadEngine thread of its own}, which is virtual if the JDK has them, and blocks to persist sales */
+		VIRTUAL
+	}
+
+	/** override using arg9, either "actors", "ring" or "virtual" */
+	public static EngineRuntime RUNTIME = EngineRuntime.ACTORS;
+
+	/** override using arg10, true if ring engines should busy spin rather than yield when idle, 
+	 * which is best when they are pinned to cores of their own */
+	public static boolean BUSY_SPIN = false;
+
+	/** override using arg11, the port on which {@link EngineNode engine nodes} in other JVMs may join, 
+	 * or 0 for none. only used with the actor runtime. */
+	public static int CLUSTER_PORT = 0;
+
+	/** override using arg12, the port on which the {@link MarketFeed market data feed} is served 
+	 * over WebSocket, or 0 for none. products traded by engine nodes aren't in it. */
+	public static int FEED_PORT = 3003;
+
+	/** override using arg13, the port on which clients may enter orders in the {@link OrderEntry binary 
+	 * protocol}, or 0 for none. */
+	public static int ORDER_PORT = 3001;
+
+	/** override using arg14, the most sales which an engine inserts with a single statement */
+	public static int INSERT_BATCH_SIZE = 500;
+
+	/** how often engines report their load */
+	private static final long LOAD_REPORT_INTERVAL = 1000;
+
+	/** if set, told about every sale, see {@link Benchmark} */
+	static volatile Consumer<Sale> SALES_PROBE;
+
+	/** true if sales are merely taken to be persisted, without a database, see {@link Benchmark} */
+	public static boolean STUB_PERSISTENCE = false;
+
+	/** the dispatchers configured in application.conf */
+	public static final String ENGINE_DISPATCHER = "akkatrader.engine-dispatcher";
+	public static final String HTTP_DISPATCHER = "akkatrader.http-dispatcher";
+	public static final String DB_DISPATCHER = "akkatrader.db-dispatcher";
+
 	public static void main(String[] args) {
 
 		if(args.length > 0){
@@ -78,8 +165,49 @@ public class Main {
 		if(args.length > 2){
 			DB_HOST = args[2];
 		}
+		if(args.length > 3){
+			MATCHING_MODE = MatchingMode.valueOf(args[3].toUpperCase());
+		}
+		if(args.length > 4){
+			MATCHING_PARALLELISM = Integer.parseInt(args[4]);
+		}
+		PARTITIONING = PartitioningStrategy.parse(args.length > 5 ? args[5] : "range", NUM_KIDS);
+		if(args.length > 6){
+			REBALANCE_INTERVAL = Long.parseLong(args[6]);
+		}
+		if(args.length > 7){
+			MAX_QUEUED_MESSAGES = Integer.parseInt(args[7]);
+		}
+		if(args.length > 8){
+			MAX_BATCH_SIZE = Integer.parseInt(args[8]);
+		}
+		if(args.length > 9){
+			RUNTIME = EngineRuntime.valueOf(args[9].toUpperCase());
+		}
+		if(args.length > 10){
+			BUSY_SPIN = "spin".equalsIgnoreCase(args[10]);
+		}
+		if(args.length > 11){
+			CLUSTER_PORT = Integer.parseInt(args[11]);
+		}
+		if(args.length > 12){
+			FEED_PORT = Integer.parseInt(args[12]);
+		}
+		if(args.length > 13){
+			ORDER_PORT = Integer.parseInt(args[13]);
+		}
+		if(args.length > 14){
+			INSERT_BATCH_SIZE = Integer.parseInt(args[14]);
+		}
+		if(MATCHING_PARALLELISM > 0){
+			MATCHING_POOL = new ForkJoinPool(MATCHING_PARALLELISM, pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("matching-" + thread.getPoolIndex());
+				return thread;
+			}, null, false);
+		}
 		
-		ActorRef listener = system.actorOf(Props.create(HttpActor.class), "httpActor"); 
+		ActorRef listener = system.actorOf(Props.create(HttpActor.class).withDispatcher(HTTP_DISPATCHER), "httpActor"); 
 		
 		InetSocketAddress endpoint = new InetSocketAddress(3000);
 		int backlog = 100;
@@ -89,169 +217,1249 @@ public class Main {
 		Bind bind = new Http.Bind(listener, endpoint, backlog, options, settings, sslEngineProvider);
 		IO.apply(spray.can.Http$.MODULE$, system).tell(bind, ActorRef.noSender());
 		
+		if(FEED_PORT > 0){
+			system.actorOf(Props.create(MarketFeed.FeedActor.class, FEED_PORT).withDispatcher(HTTP_DISPATCHER), "feed");
+		}
+		
 		system.scheduler().schedule(new FiniteDuration(5, TimeUnit.SECONDS), new FiniteDuration(5, TimeUnit.SECONDS), ()->{
 			System.out.println(new Date() + " - numSales=" + numSales.get());
-		}, system.dispatcher());
+		}, system.dispatchers().lookup(HTTP_DISPATCHER));
 	}
 
+	/** 
+	 * owns the engines and decides which of them handles each product, publishing that decision as
+	 * an immutable {@link RoutingTable}. each connection gets a {@link RequestHandler} of its own,
+	 * which routes straight to the engines using the current table, so that requests are parsed and
+	 * routed on as many threads as there are busy connections.
+	 */
 	private static class HttpActor extends AbstractActor {
 
-		private static final HttpProtocol HTTP_1_1 = HttpProtocols.HTTP$div1$u002E1();
+		private static final String REBALANCE = "REBALANCE";
+		/** the least difference in load per interval which is worth moving a product for */
+		private static final long MINIMUM_IMBALANCE = 1000;
+
+		/** the current routing, read by the handlers for each request, and only replaced by this actor */
+		private final AtomicReference<RoutingTable> table = new AtomicReference<>();
+		/** the request handlers and order entry sessions, one per connection */
+		private final Set<ActorRef> handlers = new HashSet<>();
+		/** indexed by partition */
+		private java.util.List<ActorRef> engines = new ArrayList<>();
+		/** the last load reported by each engine, indexed by partition */
+		private EngineLoad[] loads;
+		/** the product currently being moved, or -1 */
+		private int migrating = -1;
+		private int migratingFrom;
+		private int migratingTo;
+		/** sent to the handlers when the product being moved was rerouted, or null once they've all returned it */
+		private Fence fence;
+		/** the handlers which have yet to return the fence */
+		private Set<ActorRef> unfenced = new HashSet<>();
+		/** products waiting to be moved, each with the partition they should go to */
+		private java.util.Deque<int[]> pendingMigrations = new java.util.ArrayDeque<>();
+		private Cancellable rebalancing;
 
 		@SuppressWarnings("unused")
 		// used implicitly by Props
 		public HttpActor() {
 
-		    final Router router = partitionAndCreateRouter();
-			
+		    boolean loops = !EngineRuntime.ACTORS.equals(RUNTIME);
+		    table.set(loops ? partitionAndStartEngineLoops() : partitionAndCreateRouter());
+		    if(CLUSTER_PORT > 0 && !loops){
+		    	Tcp.get(system).manager().tell(TcpMessage.bind(self(), new InetSocketAddress(CLUSTER_PORT), 100), self());
+		    }
+		    if(ORDER_PORT > 0){
+		    	Tcp.get(system).manager().tell(TcpMessage.bind(self(), new InetSocketAddress(ORDER_PORT), 100), self());
+		    }
+		    if(REBALANCE_INTERVAL > 0 && !loops){
+		    	FiniteDuration interval = new FiniteDuration(REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+		    	rebalancing = system.scheduler().schedule(interval, interval, self(), REBALANCE, system.dispatcher(), self());
+		    }
+
 			receive(ReceiveBuilder
-				.match(HttpRequest.class, r -> {
-					int id = Constants.ID.getAndIncrement();
-					String path = String.valueOf(r.uri().path());
-					if("/sell".equals(path)){
-						String productId = r.uri().query().get("productId").get();
-						int quantity = Integer.parseInt(r.uri().query().get("quantity").get());
-						String who = r.uri().query().get("userId").get();
-						double price = Double.parseDouble(r.uri().query().get("price").get());
-						SalesOrder so = new SalesOrder(price, productId, quantity, id);
-						so.setSeller(new Seller(who));
-						router.route(so, self());
-						replyOK(id);
-					}else if("/buy".equals(path)){
-						String productId = r.uri().query().get("productId").get();
-						int quantity = Integer.parseInt(r.uri().query().get("quantity").get());
-						String who = r.uri().query().get("userId").get();
-						PurchaseOrder po = new PurchaseOrder(productId, quantity, 2000.0, id);
-						po.setBuyer(new Buyer(who));
-						router.route(po, self());
-						replyOK(id);
+				.match(EngineLoad.class, load -> {
+					LOGGER.debug("engine " + load.partition + " applied " + load.batched + " messages in " + load.batches 
+							+ " batches, the largest having " + load.largestBatch);
+					loads[load.partition] = load;
+				}).match(BookImported.class, imported -> {
+					LOGGER.info("product " + imported.productId + " is now traded by engine " + table.get().partitionByProduct[imported.productId]);
+					migrating = -1;
+					migrateNext();
+				}).match(String.class, s -> REBALANCE.equals(s), command -> {
+					rebalance();
+				}).match(Fence.class, f -> {
+					if(f == fence){
+						unfenced.remove(sender());
+						exportOnceFenced();
+					}
+				}).match(Tcp.Bound.class, b -> {
+					if(b.localAddress().getPort() == ORDER_PORT){
+						LOGGER.info("orders may be entered on " + b.localAddress());
 					}else{
-						handleUnexpected(r);
+						LOGGER.info("engine nodes may join on " + b.localAddress());
+					}
+				}).match(Tcp.CommandFailed.class, f -> {
+					LOGGER.error("failed to bind, engine nodes cannot join or orders cannot be entered: " + f);
+				}).match(Terminated.class, t -> {
+					if(handlers.remove(t.actor())){
+						if(unfenced.remove(t.actor())){
+							exportOnceFenced();
+						}
+					}else{
+						engineLeft(t.actor());
 					}
 				}).match(Tcp.Connected.class, r ->{
-					sender().tell(new Http.Register(self(), Http.EmptyFastPath$.MODULE$), self()); //tell that connection will be handled here!
-				}).matchAny(o -> {
-					if("PeerClosed".equals(String.valueOf(o))){
-						//TODO why does this happen? is it normal?
+					if(CLUSTER_PORT > 0 && r.localAddress().getPort() == CLUSTER_PORT){
+						engineNodeJoined(sender(), r.remoteAddress());
+					}else if(ORDER_PORT > 0 && r.localAddress().getPort() == ORDER_PORT){
+						handle(Props.create(OrderEntry.Session.class, sender(), table));
 					}else{
-						handleUnexpected(o);
+						ActorRef handler = handle(Props.create(RequestHandler.class, sender(), table));
+						sender().tell(new Http.Register(handler, Http.EmptyFastPath$.MODULE$), self()); //tell that connection will be handled there!
+					}
+				}).matchAny(o -> {
+					LOGGER.error("received unknown message: " + (o != null ? o.getClass() : "null") + ", '" + o + "'");
+				}).build());
+		}
+
+		/** @return a new handler for a connection, which is watched so that it can be forgotten */
+		private ActorRef handle(Props props) {
+			ActorRef handler = getContext().actorOf(props.withDispatcher(HTTP_DISPATCHER));
+			getContext().watch(handler);
+			handlers.add(handler);
+			return handler;
+		}
+
+		/**
+		 * moves the product which best evens out the load from the busiest engine to the least busy 
+		 * one, if the difference is big enough. the load of an engine is the number of messages 
+		 * routed to it since the last rebalancing, plus those it has yet to process.
+		 */
+		private void rebalance() {
+			RoutingTable routing = table.get();
+			long[] routedByProduct = new long[Constants.NUM_PRODUCTS];
+			for(int productId = 0; productId < Constants.NUM_PRODUCTS; productId++){
+				routedByProduct[productId] = routing.routedByProduct.getAndSet(productId, 0);
+			}
+			if(migrating < 0 && pendingMigrations.isEmpty()){
+				long[] load = new long[engines.size()];
+				int[] numProducts = new int[engines.size()];
+				for(int productId = 0; productId < Constants.NUM_PRODUCTS; productId++){
+					int partition = routing.partitionByProduct[productId];
+					if(partition >= 0){
+						load[partition] += routedByProduct[productId];
+						numProducts[partition]++;
+					}
+				}
+				int busiest = firstEngine(), idlest = busiest;
+				for(int partition = 0; partition < load.length; partition++){
+					if(engines.get(partition) == null){
+						continue;
+					}
+					load[partition] += routing.queued[partition].get();
+					if(loads[partition] != null){
+						LOGGER.debug("engine " + partition + " has a load of " + load[partition] 
+								+ " and its last sitting took " + loads[partition].sittingMillis + "ms");
+					}
+					if(load[partition] > load[busiest]) busiest = partition;
+					if(load[partition] < load[idlest]) idlest = partition;
+				}
+				long imbalance = load[busiest] - load[idlest];
+				if(numProducts[busiest] > 1 && imbalance >= MINIMUM_IMBALANCE && load[busiest] >= 2 * load[idlest]){
+					int best = -1;
+					long bestDifference = Long.MAX_VALUE;
+					for(int productId = 0; productId < Constants.NUM_PRODUCTS; productId++){
+						long routed = routedByProduct[productId];
+						if(routing.partitionByProduct[productId] == busiest && routed > 0 && routed < imbalance){
+							//moving the product leaves a difference of |imbalance - 2 * routed|
+							long difference = Math.abs(imbalance - 2 * routed);
+							if(difference < bestDifference){
+								best = productId;
+								bestDifference = difference;
+							}
+						}
+					}
+					if(best >= 0){
+						migrate(best, busiest, idlest);
+					}
+				}
+			}
+		}
+
+		/**
+		 * moves the product and its book to another engine while trading continues. the target holds 
+		 * back messages for the product until it has the book, and the source exports the book only 
+		 * once it has processed the messages routed to it before the table was swapped, so that
+		 * nothing is lost or reordered. since every handler routes, the export waits until they have
+		 * all returned a {@link Fence}, after which none of them can still be using the old table.
+		 */
+		private void migrate(int productId, int from, int to) {
+			LOGGER.info("moving product " + productId + " from engine " + from + " to engine " + to);
+			migrating = productId;
+			migratingFrom = from;
+			migratingTo = to;
+			ActorRef target = engines.get(to);
+			target.tell(new AwaitBook(productId), self());
+			table.set(table.get().reroute(productId, to, target));
+			fence = new Fence();
+			unfenced = new HashSet<>(handlers);
+			unfenced.forEach(handler -> handler.tell(fence, self()));
+			exportOnceFenced();
+		}
+
+		/** tells the source of the migration to export the book, once every handler has returned the fence */
+		private void exportOnceFenced() {
+			if(fence != null && unfenced.isEmpty()){
+				fence = null;
+				engines.get(migratingFrom).tell(new ExportBook(migrating, engines.get(migratingTo)), self());
+			}
+		}
+
+		/** starts the next pending migration, unless one is under way */
+		private void migrateNext() {
+			while(migrating < 0 && !pendingMigrations.isEmpty()){
+				int[] migration = pendingMigrations.poll();
+				int productId = migration[0], to = migration[1];
+				int from = table.get().partitionByProduct[productId];
+				if(from >= 0 && from != to && engines.get(to) != null){
+					migrate(productId, from, to);
+				}
+			}
+		}
+
+		/** @return the first engine which hasn't left */
+		private int firstEngine() {
+			for(int partition = 0; partition < engines.size(); partition++){
+				if(engines.get(partition) != null){
+					return partition;
+				}
+			}
+			throw new IllegalStateException("no engines left");
+		}
+
+		/** @return the number of products handled by each engine, indexed by partition */
+		private int[] countProducts() {
+			int[] partitionByProduct = table.get().partitionByProduct;
+			int[] numProducts = new int[engines.size()];
+			for(int productId = 0; productId < Constants.NUM_PRODUCTS; productId++){
+				if(partitionByProduct[productId] >= 0){
+					numProducts[partitionByProduct[productId]]++;
+				}
+			}
+			return numProducts;
+		}
+
+		/**
+		 * makes the node a new partition, and moves a fair share of the products to it, one at a 
+		 * time, each time taking one from the engine with the most products
+		 */
+		private void engineNodeJoined(ActorRef connection, InetSocketAddress address) {
+			int partition = engines.size();
+			AtomicInteger queue = new AtomicInteger();
+			ActorRef engine = getContext().actorOf(Props.create(RemoteEngine.class, connection, partition, queue).withDispatcher(HTTP_DISPATCHER));
+			getContext().watch(engine);
+			engines.add(engine);
+			loads = Arrays.copyOf(loads, engines.size());
+			table.set(table.get().withEngine(engine, queue));
+
+			int[] numProducts = countProducts();
+			int alive = (int) engines.stream().filter(e -> e != null).count();
+			int share = Arrays.stream(numProducts).sum() / alive;
+			int[] planned = Arrays.copyOf(table.get().partitionByProduct, Constants.NUM_PRODUCTS);
+			LOGGER.info("engine node " + address + " joined as engine " + partition + ", moving " + share + " products to it");
+			for(int i = 0; i < share; i++){
+				int busiest = firstEngine();
+				for(int p = 0; p < numProducts.length; p++){
+					if(engines.get(p) != null && numProducts[p] > numProducts[busiest]) busiest = p;
+				}
+				for(int productId = Constants.NUM_PRODUCTS - 1; productId >= 0; productId--){
+					if(planned[productId] == busiest){
+						planned[productId] = partition;
+						numProducts[busiest]--;
+						numProducts[partition]++;
+						pendingMigrations.add(new int[]{productId, partition});
+						break;
+					}
+				}
+			}
+			migrateNext();
+		}
+
+		/**
+		 * moves the products of an engine which has left to the remaining engines with the fewest 
+		 * products. the orders resting in its books are lost with it. 
+		 */
+		private void engineLeft(ActorRef engine) {
+			int partition = engines.indexOf(engine);
+			if(partition < 0){
+				return;
+			}
+			engines.set(partition, null);
+			loads[partition] = null;
+			RoutingTable routing = table.get().withoutEngine(partition, engine);
+
+			int[] numProducts = countProducts();
+			int moved = 0;
+			for(int productId = 0; productId < Constants.NUM_PRODUCTS; productId++){
+				if(routing.partitionByProduct[productId] == partition){
+					int to = firstEngine();
+					for(int p = 0; p < numProducts.length; p++){
+						if(engines.get(p) != null && numProducts[p] < numProducts[to]) to = p;
+					}
+					routing = routing.reroute(productId, to, engines.get(to));
+					numProducts[to]++;
+					moved++;
+				}
+			}
+			table.set(routing);
+			LOGGER.warn("engine " + partition + " has left, so its " + moved + " products are now traded by the remaining engines, without their resting orders");
+
+			if(migrating >= 0 && migratingFrom == partition){
+				//the target is waiting for a book which will never come
+				fence = null;
+				int productId = migrating;
+				engines.get(routing.partitionByProduct[productId]).tell(new BookTransfer(productId, null, null), self());
+			}else if(migrating >= 0 && migratingTo == partition){
+				//the product has just been moved on, so the book exported to it is lost too
+				fence = null;
+				migrating = -1;
+				migrateNext();
+			}
+		}
+
+		@Override
+		public void postStop() throws Exception {
+			if(rebalancing != null){
+				rebalancing.cancel();
+			}
+			if(table.get().loops != null){
+				Arrays.stream(table.get().loops).forEach(EngineLoop::stop);
+			}
+			super.postStop();
+		}
+
+		/** engine loops share the engine actors' partitioning, but can't be rebalanced */
+		private RoutingTable partitionAndStartEngineLoops() {
+			PartitioningStrategy partitioning = PARTITIONING;
+			EngineLoop[] engines = new EngineLoop[partitioning.getNumberOfPartitions()];
+			for (int partition = 0; partition < engines.length; partition++) {
+				engines[partition] = EngineRuntime.RING.equals(RUNTIME) 
+						? new RingEngine(partition, MAX_QUEUED_MESSAGES, BUSY_SPIN) 
+						: new VirtualThreadEngine(partition, MAX_QUEUED_MESSAGES);
+			}
+			int[] partitionByProduct = new int[Constants.NUM_PRODUCTS];
+			for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+				partitionByProduct[productId] = partitioning.partitionOf(productId);
+				if(partitionByProduct[productId] < 0){
+					LOGGER.warn("product " + productId + " is not traded, since it belongs to no partition");
+				}
+			}
+			loads = new EngineLoad[engines.length];
+			for (EngineLoop engine : engines) {
+				LOGGER.info("created engine using " + partitioning);
+				engine.start();
+			}
+			return new RoutingTable(engines, partitionByProduct);
+		}
+
+		/** partitions the market by product ID using {@link Main#PARTITIONING} and creates an actor 
+		 * encapsulating an engine, per partition. returns a table containing a router to all the kids
+		 * together with the suitable logic to route to the correct engine. */
+		private RoutingTable partitionAndCreateRouter() {
+			PartitioningStrategy partitioning = PARTITIONING;
+			java.util.List<Routee> routees = new ArrayList<Routee>();
+			java.util.List<AtomicInteger> queues = new ArrayList<AtomicInteger>();
+			for (int partition = 0; partition < partitioning.getNumberOfPartitions(); partition++) {
+			    AtomicInteger queue = new AtomicInteger();
+			    ActorRef actor = getContext().actorOf(Props.create(EngineActor.class, partition, queue).withDispatcher(ENGINE_DISPATCHER));
+			    getContext().watch(actor);
+			    engines.add(actor);
+			    queues.add(queue);
+			    routees.add(new ActorRefRoutee(actor));
+			}
+			loads = new EngineLoad[engines.size()];
+
+			int[] partitionByProduct = new int[Constants.NUM_PRODUCTS];
+			Routee[] routeeByProduct = new Routee[Constants.NUM_PRODUCTS];
+			for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+				int partition = partitioning.partitionOf(productId);
+				partitionByProduct[productId] = partition;
+				if(partition >= 0){
+					LOGGER.debug("mapping productId '" + productId + "' to engine " + partition);
+					routeeByProduct[productId] = routees.get(partition);
+				}else{
+					LOGGER.warn("product " + productId + " is not traded, since it belongs to no partition");
+				}
+			}
+
+			for (int partition = 0; partition < routees.size(); partition++) {
+			    LOGGER.info("created engine " + partition + " using " + partitioning);
+			    LOGGER.info("---started trading");
+			    ((ActorRefRoutee) routees.get(partition)).ref().tell(EngineActor.RUN, ActorRef.noSender());
+			}
+			return new RoutingTable(new Router(new PartitioningRoutingLogic(routeeByProduct), routees), partitionByProduct,
+					queues.toArray(new AtomicInteger[queues.size()]));
+		}
+	}
+
+	/** 
+	 * parses the requests of one connection, and routes the orders in them straight to the engines,
+	 * using the current {@link RoutingTable}. a handler returns a {@link Fence} as soon as it gets
+	 * one, so that its owner knows that it has finished with any older table.
+	 */
+	static class RequestHandler extends AbstractActor {
+
+		private static final HttpProtocol HTTP_1_1 = HttpProtocols.HTTP$div1$u002E1();
+		static final long MAXIMUM_PURCHASE_PRICE = Prices.parse("2000.0");
+		/** seconds after which a client whose order was rejected may try again */
+		private static final String RETRY_AFTER = "1";
+		private static final List<HttpHeader> NO_HEADERS = scala.collection.immutable.List$.MODULE$.empty();
+		private static final ResponseTemplate OK = new ResponseTemplate(StatusCodes.OK(), NO_HEADERS, "{msg: 'ok', id: ", "}");
+		private static final ResponseTemplate UNKNOWN_PRODUCT = new ResponseTemplate(StatusCodes.NotFound(), NO_HEADERS, 
+				"{msg: 'unknown product', productId: ", "}");
+		private static final List<HttpHeader> RETRY = JavaConversions.asScalaBuffer(Arrays.<HttpHeader>asList(new HttpHeaders.RawHeader("Retry-After", RETRY_AFTER))).toList();
+		private static final ResponseTemplate OVERLOADED = new ResponseTemplate(StatusCodes.ServiceUnavailable(), RETRY, 
+				"{msg: 'overloaded', productId: ", "}");
+		private static final Uri.Path SELL = Uri.Path$.MODULE$.apply("/sell", StandardCharsets.UTF_8);
+		private static final Uri.Path BUY = Uri.Path$.MODULE$.apply("/buy", StandardCharsets.UTF_8);
+		private static final Uri.Path CANCEL = Uri.Path$.MODULE$.apply("/cancel", StandardCharsets.UTF_8);
+		private static final Uri.Path AMEND = Uri.Path$.MODULE$.apply("/amend", StandardCharsets.UTF_8);
+		private static final Uri.Path ORDERS = Uri.Path$.MODULE$.apply("/orders", StandardCharsets.UTF_8);
+		/** followed by the ID of the order, see {@link MarketSnapshots} */
+		private static final String ORDER = "/order/";
+		/** followed by the ID of the product, see {@link MarketSnapshots} */
+		private static final String BOOK = "/book/";
+		private static final ResponseTemplate UNKNOWN_ORDER = new ResponseTemplate(StatusCodes.NotFound(), NO_HEADERS, 
+				"{msg: 'unknown order', id: ", "}");
+
+		private final AtomicReference<RoutingTable> table;
+		/** reused for every request, since the actor handles one at a time */
+		private final OrderQuery query = new OrderQuery();
+
+		@SuppressWarnings("unused")
+		// used implicitly by Props
+		public RequestHandler(ActorRef connection, AtomicReference<RoutingTable> table) {
+			this.table = table;
+			//spray watches the handler too, so it must outlive the connection
+			getContext().watch(connection);
+
+			receive(ReceiveBuilder
+				.match(HttpRequest.class, r -> {
+					Uri.Path path = r.uri().path();
+					try{
+						if(SELL.equals(path)){
+							query.parse(rawQuery(r));
+							SalesOrder so = newSalesOrder();
+							route(so, so.getProductId(), so.getId());
+						}else if(BUY.equals(path)){
+							query.parse(rawQuery(r));
+							PurchaseOrder po = newPurchaseOrder();
+							route(po, po.getProductId(), po.getId());
+						}else if(ORDERS.equals(path)){
+							submit(parseOrders(r.entity().asString()));
+						}else if(CANCEL.equals(path)){
+							query.parse(rawQuery(r));
+							int productId = query.getProductId();
+							int orderId = query.getId();
+							String who = query.getUserId();
+							route(new Cancellation(productId, orderId, who, Participants.intern(who)), productId, orderId);
+						}else if(AMEND.equals(path)){
+							query.parse(rawQuery(r));
+							int productId = query.getProductId();
+							int orderId = query.getId();
+							String who = query.getUserId();
+							route(new Amendment(productId, orderId, query.getRemainingQuantity(), query.getPrice(Amendment.UNCHANGED_PRICE), who, Participants.intern(who)), productId, orderId);
+						}else{
+							String target = path.toString();
+							if(target.startsWith(ORDER)){
+								replyOrder(Integer.parseInt(target.substring(ORDER.length())));
+							}else if(target.startsWith(BOOK)){
+								replyBook(Integer.parseInt(target.substring(BOOK.length())));
+							}else{
+								handleUnexpected(r);
+							}
+						}
+					}catch(IllegalArgumentException e){
+						replyBadRequest(e);
 					}
+				}).match(Fence.class, f -> {
+					sender().tell(f, self());
+				}).match(Terminated.class, t -> {
+					getContext().stop(self());
+				}).match(Tcp.ConnectionClosed.class, c -> {
+					//stops once the connection has
+				}).matchAny(o -> {
+					handleUnexpected(o);
 				}).build());
 		}
 
+		/** @return a sales order made of the parameters of the current {@link #query} */
+		private SalesOrder newSalesOrder() {
+			String who = query.getUserId();
+			SalesOrder so = new SalesOrder(query.getPrice(), query.getProductId(), query.getQuantity(), Constants.ID.getAndIncrement());
+			so.setUserId(who);
+			so.setParticipant(Participants.intern(who));
+			so.setTimeToLive(query.getTimeToLive());
+			return so;
+		}
+
+		/** @return a purchase order made of the parameters of the current {@link #query} */
+		private PurchaseOrder newPurchaseOrder() {
+			String who = query.getUserId();
+			PurchaseOrder po = new PurchaseOrder(query.getProductId(), query.getQuantity(), MAXIMUM_PURCHASE_PRICE, Constants.ID.getAndIncrement());
+			po.setUserId(who);
+			po.setParticipant(Participants.intern(who));
+			po.setTimeToLive(query.getTimeToLive());
+			return po;
+		}
+
+		/** 
+		 * parses the body of a request to /orders, which has an order per line, each like the target 
+		 * of a request to /sell or /buy, eg "sell?productId=1&quantity=10&userId=ant&price=12.5".
+		 * 
+		 * @throws IllegalArgumentException if any line is malformed, naming it
+		 */
+		private java.util.List<Object> parseOrders(String body) {
+			java.util.List<Object> orders = new ArrayList<>();
+			int line = 1;
+			for(int start = 0; start < body.length(); line++){
+				int end = body.indexOf('\n', start);
+				if(end < 0){
+					end = body.length();
+				}
+				int last = end > start && body.charAt(end - 1) == '\r' ? end - 1 : end;
+				int from = start < last && body.charAt(start) == '/' ? start + 1 : start;
+				try{
+					if(body.startsWith("sell?", from)){
+						query.parse(body, from + 5, last);
+						orders.add(newSalesOrder());
+					}else if(body.startsWith("buy?", from)){
+						query.parse(body, from + 4, last);
+						orders.add(newPurchaseOrder());
+					}else if(from < last){
+						throw new IllegalArgumentException("neither a sale nor a purchase");
+					}
+				}catch(IllegalArgumentException e){
+					throw new IllegalArgumentException("line " + line + ": " + e.getMessage(), e);
+				}
+				start = end + 1;
+			}
+			return orders;
+		}
+
+		/** 
+		 * hands a batch of orders to the engines and replies with their IDs, in the order in which 
+		 * they were sent. orders are rejected, and their ID given as -1, if their product is unknown, 
+		 * or their engine is saturated, in which case the reply says when to retry. engine actors 
+		 * are sent their share of the batch in a single {@link OrderBatch}.
+		 */
+		private void submit(java.util.List<Object> orders) {
+			byte[] outcomes = table.get().submit(orders, self());
+			boolean overloaded = false;
+			StringBuilder body = new StringBuilder(16 + 12 * outcomes.length).append("{msg: 'ok', ids: [");
+			for(int i = 0; i < outcomes.length; i++){
+				Object order = orders.get(i);
+				int id = order instanceof SalesOrder ? ((SalesOrder) order).getId() : ((PurchaseOrder) order).getId();
+				body.append(i == 0 ? "" : ", ").append(outcomes[i] == OrderEntry.ACCEPTED ? id : -1);
+				overloaded |= outcomes[i] == OrderEntry.OVERLOADED;
+			}
+			body.append("]}");
+			HttpResponse response = new HttpResponse(StatusCodes.OK(),
+					spray.http.HttpEntity$.MODULE$.apply(ContentTypes.application$divjson(), body.toString()), overloaded ? RETRY : NO_HEADERS, HTTP_1_1);
+			sender().tell(response, self());
+		}
+
+		/** routes the message to the engine handling the product and replies OK, or replies why not */
+		private void route(Object message, int productId, int id) {
+			byte outcome = table.get().route(message, productId, self());
+			if(outcome == OrderEntry.ACCEPTED){
+				replyOK(id);
+			}else if(outcome == OrderEntry.OVERLOADED){
+				replyOverloaded(productId);
+			}else{
+				replyUnknownProduct(productId);
+			}
+		}
+
+		private void replyUnknownProduct(int productId) {
+			sender().tell(UNKNOWN_PRODUCT.with(productId), self());
+		}
+
+		/** replies with the status of the order as of the last sitting of its engine */
+		private void replyOrder(int id) {
+			OrderStatus status = MarketSnapshots.order(id);
+			if(status == null){
+				sender().tell(UNKNOWN_ORDER.with(id), self());
+			}else{
+				replyJson(MarketSnapshots.toJson(status));
+			}
+		}
+
+		/** replies with the best levels of the product's book as of the last sitting of its engine */
+		private void replyBook(int productId) {
+			if(!table.get().routes(productId)){
+				replyUnknownProduct(productId);
+			}else{
+				replyJson(MarketSnapshots.toJson(MarketSnapshots.book(productId)));
+			}
+		}
+
+		private void replyJson(String body) {
+			sender().tell(new HttpResponse(StatusCodes.OK(), 
+					spray.http.HttpEntity$.MODULE$.apply(ContentTypes.application$divjson(), body), NO_HEADERS, HTTP_1_1), self());
+		}
+
 		private void handleUnexpected(Object o) {
-			List<HttpHeader> headers = JavaConversions.asScalaBuffer(new ArrayList<HttpHeader>()).toList();
 			System.err.println("received unknown message: " + (o != null ? o.getClass() : "null") + ", '" + o + "'");
 			HttpResponse response = new HttpResponse(StatusCodes.BadRequest(),
-					spray.http.HttpEntity$.MODULE$.apply("Unexpected message! " + o), headers, HTTP_1_1);
+					spray.http.HttpEntity$.MODULE$.apply("Unexpected message! " + o), NO_HEADERS, HTTP_1_1);
 			sender().tell(response, self());
 		}
 
-		/** sends an OK response to the caller */
-		private void replyOK(int id) {
-			List<HttpHeader> headers = JavaConversions.asScalaBuffer(new ArrayList<HttpHeader>()).toList();
-			HttpResponse response = new HttpResponse(StatusCodes.OK(),
-					spray.http.HttpEntity$.MODULE$.apply(ContentTypes.application$divjson(), "{msg: 'ok', id: " + id + "}"), headers, HTTP_1_1);
+		/** tells the caller that the parameters of their request are missing or malformed */
+		private void replyBadRequest(IllegalArgumentException e) {
+			HttpResponse response = new HttpResponse(StatusCodes.BadRequest(),
+					spray.http.HttpEntity$.MODULE$.apply(ContentTypes.application$divjson(), "{msg: 'bad request', reason: '" + e.getMessage() + "'}"), NO_HEADERS, HTTP_1_1);
 			sender().tell(response, self());
 		}
 
-		/** partitions the market by product ID and creates an actor encapsulating an engine, per 
-		 * partition. returns a router containing all the kids together with the suitable logic 
-		 * to route to the correct engine. */
-		private Router partitionAndCreateRouter() {
-			Map<String, ActorRef> kids = new HashMap<>();
-			java.util.List<Routee> routees = new ArrayList<Routee>();
-			int chunk = Constants.PRODUCT_IDS.length / NUM_KIDS;
-			for (int i = 0, j = Constants.PRODUCT_IDS.length; i < j; i += chunk) {
-			    String[] temparray = Arrays.copyOfRange(Constants.PRODUCT_IDS, i, i + chunk);
-			    LOGGER.info("created engine for products " + temparray);
-			    ActorRef actor = getContext().actorOf(Props.create(EngineActor.class));
-			    getContext().watch(actor);
-			    routees.add(new ActorRefRoutee(actor));
+		/** 
+		 * @return the query of the request as it was sent, which spray doesn't parse, see 
+		 * "uri-parsing-mode" in application.conf, unless configured otherwise
+		 */
+		private static String rawQuery(HttpRequest r) {
+			Uri.Query query = r.uri().query();
+			return query.isEmpty() ? "" : query.isRaw() ? query.value() : query.toString();
+		}
 
-			    for (int k = 0; k < temparray.length; k++) {
-			    	LOGGER.debug("mapping productId '" + temparray[k] + "' to engine " + i);
-			    	kids.put(temparray[k], actor);
-			    }
-			    LOGGER.info("---started trading");
-			    actor.tell(EngineActor.RUN, ActorRef.noSender());
-			}			
-			Router router = new Router(new PartitioningRoutingLogic(kids), routees);
-			return router;
+		/** tells the caller to try again later */
+		private void replyOverloaded(int productId) {
+			sender().tell(OVERLOADED.with(productId), self());
+		}
+
+		/** sends an OK response to the caller */
+		private void replyOK(int id) {
+			sender().tell(OK.with(id), self());
 		}
 	}
 
 	/** an actor encapsulating an engine which represents a partition of the market */
-	private static class EngineActor extends AbstractActor implements Listener {
+	static class EngineActor extends AbstractActor implements Listener {
 
-		private static final String RUN = "RUN";
+		static final String RUN = "RUN";
+		private static final String REPORT_LOAD = "REPORT_LOAD";
+		private static final String FLUSH = "FLUSH";
+
+		/** sent to itself once the sales of the sitting are persisted, see {@link EventType#PERSISTED} */
+		private static final class Persisted {
+			final Throwable failure;
+			Persisted(Throwable failure) {
+				this.failure = failure;
+			}
+		}
 
-		private TradingEngine engine = new TradingEngine(DELAY, Constants.TIMEOUT, this);
+		private TradingEngine engine = new TradingEngine(DELAY, Constants.TIMEOUT, this, MATCHING_MODE, MATCHING_POOL);
+		private final int partition;
+		/** the number of messages which this engine has yet to process, shared with its parent */
+		private final AtomicInteger queued;
+		/** the number of messages processed since starting */
+		private long processed;
+		private long sittingMillis;
+		/** messages held back per product, until its book arrives, see {@link AwaitBook} */
+		private java.util.Map<Integer, java.util.List<Object>> awaiting = new java.util.HashMap<>();
+		/** indexed by product, the messages of the current batch, in the order in which they arrived */
+		@SuppressWarnings("unchecked")
+		private java.util.List<Object>[] batch = (java.util.List<Object>[]) new java.util.List<?>[Constants.NUM_PRODUCTS];
+		/** the products in the current batch, in the order in which they first appeared */
+		private int[] batchedProducts = new int[Constants.NUM_PRODUCTS];
+		private int numberOfBatchedProducts;
+		private int batchSize;
+		/** true if a {@link #FLUSH} is on its way */
+		private boolean flushing;
+		/** statistics since the last load report */
+		private int batches;
+		private long batched;
+		private int largestBatch;
+		private Cancellable reporting;
+		/** true if the engine runs in an {@link EngineNode}, which relays its snapshots to the HTTP node */
+		private final boolean relaySnapshots;
 		
 		@SuppressWarnings("unused") //used implicitly by akka
-		public EngineActor() {
+		public EngineActor(int partition, AtomicInteger queued) {
+			this(partition, queued, false);
+		}
+
+		public EngineActor(int partition, AtomicInteger queued, boolean relaySnapshots) {
+			this.partition = partition;
+			this.queued = queued;
+			this.relaySnapshots = relaySnapshots;
+			//the engine dispatcher is pinned, so this is the thread which runs this engine from now on
+			Thread.currentThread().setName("engine-" + partition);
+			FiniteDuration interval = new FiniteDuration(LOAD_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+			reporting = system.scheduler().schedule(interval, interval, self(), REPORT_LOAD, system.dispatcher(), self());
 		    receive(ReceiveBuilder
 			      .match(SalesOrder.class, so -> {
-					engine.addSalesOrder(so.getSeller().getName(),
-						so.getProductId(),
-						so.getRemainingQuantity(),
-						so.getPrice(), so.getId());
+			    	processOrHold(so.getProductId(), so);
 			    }).match(PurchaseOrder.class, po -> {
-					engine.addPurchaseOrder(
-						po.getBuyer().getName(),
-						po.getProductId(),
-						po.getRemainingQuantity(), po.getId());
+			    	processOrHold(po.getProductId(), po);
+			    }).match(Cancellation.class, c -> {
+			    	processOrHold(c.getProductId(), c);
+			    }).match(Amendment.class, a -> {
+			    	processOrHold(a.getProductId(), a);
+			    }).match(OrderBatch.class, b -> {
+			    	for(int i = 0; i < b.orders.size(); i++){
+			    		Object order = b.orders.get(i);
+			    		processOrHold(productIdOf(order), order);
+			    	}
+			    }).match(String.class, s -> FLUSH.equals(s), command -> {
+			    	flushing = false;
+			    	flush();
 			    }).match(String.class, s -> RUN.equals(s), command -> {
+			    	flush();
+			    	long start = System.nanoTime();
 			    	engine.run();
+			    	sittingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			    }).match(Persisted.class, p -> {
+			    	engine.onPersisted(p.failure);
+			    }).match(String.class, s -> REPORT_LOAD.equals(s), command -> {
+			    	getContext().parent().tell(new EngineLoad(partition, processed, sittingMillis, batches, batched, largestBatch), self());
+			    	batches = 0;
+			    	batched = 0;
+			    	largestBatch = 0;
+			    }).match(AwaitBook.class, a -> {
+			    	awaiting.put(a.productId, new ArrayList<>());
+			    }).match(ExportBook.class, e -> {
+			    	flush();
+			    	e.target.tell(engine.exportBook(e.productId), self());
+			    }).match(BookTransfer.class, t -> {
+			    	engine.importBook(t);
+			    	java.util.List<Object> held = awaiting.remove(t.getProductId());
+			    	if(held != null){
+			    		held.forEach(message -> apply(engine, message));
+			    		processed += held.size();
+			    		queued.addAndGet(-held.size());
+			    	}
+			    	getContext().parent().tell(new BookImported(t.getProductId()), self());
 				}).matchAny(o -> {
 					LOGGER.error("received unknown message in engine actor " + o);
 				}).build());
 		}
 
+		/** 
+		 * adds the message to the current batch, unless the book of its product is still on its way 
+		 * here. the batch is applied once it is full, or when the {@link #FLUSH} sent after its first 
+		 * message arrives, by which time the messages which were already waiting have joined it.
+		 */
+		private void processOrHold(int productId, Object message) {
+			java.util.List<Object> held = awaiting.isEmpty() ? null : awaiting.get(productId);
+			if(held != null){
+				held.add(message);
+				return;
+			}
+			java.util.List<Object> messages = batch[productId];
+			if(messages == null){
+				messages = new ArrayList<>();
+				batch[productId] = messages;
+			}
+			if(messages.isEmpty()){
+				batchedProducts[numberOfBatchedProducts++] = productId;
+			}
+			messages.add(message);
+			if(++batchSize >= MAX_BATCH_SIZE){
+				flush();
+			}else if(!flushing){
+				flushing = true;
+				self().tell(FLUSH, self());
+			}
+		}
+
+		/** 
+		 * applies the current batch, product by product. the messages of a product are applied in 
+		 * the order in which they arrived, and products never interact, so the outcome is the same 
+		 * as if they had been applied one by one.
+		 */
+		private void flush() {
+			if(batchSize == 0){
+				return;
+			}
+			for(int i = 0; i < numberOfBatchedProducts; i++){
+				java.util.List<Object> messages = batch[batchedProducts[i]];
+				for(int j = 0; j < messages.size(); j++){
+					apply(engine, messages.get(j));
+				}
+				messages.clear();
+			}
+			processed += batchSize;
+			queued.addAndGet(-batchSize);
+			batches++;
+			batched += batchSize;
+			largestBatch = Math.max(largestBatch, batchSize);
+			numberOfBatchedProducts = 0;
+			batchSize = 0;
+		}
+
+		@Override
+		public void postStop() throws Exception {
+			if(reporting != null){
+				reporting.cancel();
+			}
+			super.postStop();
+		}
+
 		@Override
 		public void onEvent(EventType type, Object data) {
 			
-			if(EventType.SALE.equals(type) && ((Sale)data).getSalesOrder().getRemainingQuantity() == 0){
-				numSales.getAndIncrement();
+			if(EventType.SALE.equals(type)){
+				onSale((Sale) data);
 			}
 			
-			//time to rerun the market!
+			if(EventType.STATS.equals(type)){
+				if(relaySnapshots){
+					getContext().parent().tell(MarketSnapshots.Published.of(data), self());
+				}else{
+					MarketFeed.onStats(data);
+					MarketSnapshots.onStats(data);
+				}
+			}
+			
+			//raised on the database's thread, so the sitting is completed on this engine's own
+			if(EventType.PERSISTED.equals(type)){
+				self().tell(new Persisted((Throwable) data), self());
+			}
+			
+			//time to rerun the market, once the delay has passed, taking orders in the meantime
 			if(EventType.STOPPED.equals(type)){
-				self().tell(RUN, self());
+				system.scheduler().scheduleOnce(new FiniteDuration(engine.getDelay(), TimeUnit.MILLISECONDS), self(), RUN, system.dispatcher(), self());
 			}
 		}
 	}
 	
 
+	/** @return the product of the order, cancellation or amendment, or -1 for other messages */
+	static int productIdOf(Object message) {
+		if(message instanceof PurchaseOrder){
+			return ((PurchaseOrder) message).getProductId();
+		}else if(message instanceof SalesOrder){
+			return ((SalesOrder) message).getProductId();
+		}else if(message instanceof Cancellation){
+			return ((Cancellation) message).getProductId();
+		}else if(message instanceof Amendment){
+			return ((Amendment) message).getProductId();
+		}
+		return -1;
+	}
+
+	/** applies an order, cancellation or amendment to the engine */
+	static void apply(TradingEngine engine, Object message) {
+		if(message instanceof SalesOrder){
+			SalesOrder so = (SalesOrder) message;
+			engine.addSalesOrder(so.getParticipant(),
+				so.getUserId(),
+				so.getProductId(),
+				so.getRemainingQuantity(),
+				so.getPrice(), so.getId(),
+				so.getTimeToLive());
+		}else if(message instanceof PurchaseOrder){
+			PurchaseOrder po = (PurchaseOrder) message;
+			engine.addPurchaseOrder(
+				po.getParticipant(),
+				po.getUserId(),
+				po.getProductId(),
+				po.getRemainingQuantity(), po.getId(),
+				po.getTimeToLive());
+		}else if(message instanceof Cancellation){
+			Cancellation c = (Cancellation) message;
+			engine.cancel(c.getParticipant(), c.getProductId(), c.getId());
+		}else if(message instanceof Amendment){
+			Amendment a = (Amendment) message;
+			engine.amend(a.getParticipant(), a.getProductId(), a.getId(), a.getQuantity(), a.getPrice());
+		}
+	}
+
+	/** counts the sale, if it completes its sales order, and tells the {@link MarketFeed feed} and the {@link #SALES_PROBE} */
+	static void onSale(Sale sale) {
+		if(sale.getSalesOrder().getRemainingQuantity() == 0){
+			numSales.getAndIncrement();
+		}
+		MarketFeed.onSale(sale);
+		Consumer<Sale> probe = SALES_PROBE;
+		if(probe != null){
+			probe.accept(sale);
+		}
+	}
+
+	/** routes messages concerning a product to the engine handling it, in constant time */
 	public static class PartitioningRoutingLogic implements RoutingLogic {
 
-		private Map<String, ActorRef> kids;
+		/** indexed by product ID, null if no engine handles the product */
+		private final Routee[] routeeByProduct;
+
+		public PartitioningRoutingLogic(Routee[] routeeByProduct) {
+			this.routeeByProduct = routeeByProduct;
+		}
 
-		public PartitioningRoutingLogic(Map<String, ActorRef> kids) {
-			this.kids = kids;
+		/** @return true if an engine handles the given product */
+		public boolean routes(int productId) {
+			return productId >= 0 && productId < routeeByProduct.length && routeeByProduct[productId] != null;
 		}
 
 		@Override
 		public Routee select(Object message, IndexedSeq<Routee> routees) {
 
-			//find which product ID is relevant here
-			String productId = null;
-			if(message instanceof PurchaseOrder){
-				productId = ((PurchaseOrder) message).getProductId();
-			}else if(message instanceof SalesOrder){
-				productId = ((SalesOrder) message).getProductId();
+			//find which product ID is relevant here. the orders of a batch all belong to the same engine
+			int productId = message instanceof OrderBatch ? productIdOf(((OrderBatch) message).orders.get(0)) : productIdOf(message);
+			if(!routes(productId)){
+				return akka.routing.NoRoutee$.MODULE$; //unknown product, callers check using routes(int) first
 			}
-			ActorRef actorHandlingProduct = kids.get(productId);
+			return routeeByProduct[productId];
+		}
+
+		/** @return logic like this one, except that it routes the product to the given routee */
+		public PartitioningRoutingLogic reroute(int productId, Routee routee) {
+			Routee[] rerouted = Arrays.copyOf(routeeByProduct, routeeByProduct.length);
+			rerouted[productId] = routee;
+			return new PartitioningRoutingLogic(rerouted);
+		}
+	}
+
+	/** 
+	 * which engine handles each product, and how busy each one is. a table is never changed, but 
+	 * replaced as a whole by the {@link HttpActor}, so that any number of handlers may route with it 
+	 * at the same time. the counters are shared with the tables which replace it. since handlers 
+	 * check and then count, {@link Main#MAX_QUEUED_MESSAGES} may be overshot by a message or so 
+	 * per handler.
+	 */
+	static final class RoutingTable {
+		/** null with engine loops */
+		final Router router;
+		/** indexed by partition, only used by the {@link EngineRuntime#RING ring} and {@link EngineRuntime#VIRTUAL virtual} runtimes */
+		final EngineLoop[] loops;
+		/** which partition handles each product, or -1 */
+		final int[] partitionByProduct;
+		/** the number of messages which each engine has yet to process, indexed by partition */
+		final AtomicInteger[] queued;
+		/** the number of orders rejected since each engine became saturated, indexed by partition */
+		final AtomicLong[] rejected;
+		/** the number of messages routed per product since the last rebalancing */
+		final AtomicLongArray routedByProduct;
+
+		RoutingTable(Router router, int[] partitionByProduct, AtomicInteger[] queued) {
+			this(router, null, partitionByProduct, queued, newCounters(queued.length), new AtomicLongArray(Constants.NUM_PRODUCTS));
+		}
+
+		RoutingTable(EngineLoop[] loops, int[] partitionByProduct) {
+			this(null, loops, partitionByProduct, null, null, new AtomicLongArray(Constants.NUM_PRODUCTS));
+		}
 
-			//no go find the routee for the relevant actor
-			for(Routee r : JavaConversions.asJavaIterable(routees)){
-				ActorRef a = ((ActorRefRoutee) r).ref(); //cast ok, since the are by definition in this program all routees to ActorRefs
-				if(a.equals(actorHandlingProduct)){
-					return r;
+		private RoutingTable(Router router, EngineLoop[] loops, int[] partitionByProduct, AtomicInteger[] queued, 
+				AtomicLong[] rejected, AtomicLongArray routedByProduct) {
+			this.router = router;
+			this.loops = loops;
+			this.partitionByProduct = partitionByProduct;
+			this.queued = queued;
+			this.rejected = rejected;
+			this.routedByProduct = routedByProduct;
+		}
+
+		private static AtomicLong[] newCounters(int n) {
+			AtomicLong[] counters = new AtomicLong[n];
+			for(int i = 0; i < n; i++){
+				counters[i] = new AtomicLong();
+			}
+			return counters;
+		}
+
+		/** @return a table like this one, except that the given engine handles the product */
+		RoutingTable reroute(int productId, int partition, ActorRef engine) {
+			int[] rerouted = Arrays.copyOf(partitionByProduct, partitionByProduct.length);
+			rerouted[productId] = partition;
+			PartitioningRoutingLogic logic = ((PartitioningRoutingLogic) router.logic()).reroute(productId, new ActorRefRoutee(engine));
+			return new RoutingTable(new Router(logic, router.routees()), loops, rerouted, queued, rejected, routedByProduct);
+		}
+
+		/** @return a table like this one, with a new partition, which handles no products yet */
+		RoutingTable withEngine(ActorRef engine, AtomicInteger queue) {
+			AtomicInteger[] moreQueued = Arrays.copyOf(queued, queued.length + 1);
+			moreQueued[queued.length] = queue;
+			AtomicLong[] moreRejected = Arrays.copyOf(rejected, rejected.length + 1);
+			moreRejected[rejected.length] = new AtomicLong();
+			return new RoutingTable(router.addRoutee(new ActorRefRoutee(engine)), loops, partitionByProduct, moreQueued, moreRejected, routedByProduct);
+		}
+
+		/** @return a table like this one, without the engine, whose products must be rerouted */
+		RoutingTable withoutEngine(int partition, ActorRef engine) {
+			queued[partition].set(0);
+			return new RoutingTable(router.removeRoutee(engine), loops, partitionByProduct, queued, rejected, routedByProduct);
+		}
+
+		/** @return true if an engine handles the product */
+		boolean routes(int productId) {
+			return productId >= 0 && productId < Constants.NUM_PRODUCTS && partitionByProduct[productId] >= 0;
+		}
+
+		/** 
+		 * routes the message to the engine handling the product. 
+		 * @return whether it was {@link OrderEntry#ACCEPTED accepted}, or why not 
+		 */
+		byte route(Object message, int productId, ActorRef sender) {
+			int partition = productId >= 0 && productId < Constants.NUM_PRODUCTS ? partitionByProduct[productId] : -1;
+			if(partition < 0){
+				return OrderEntry.UNKNOWN_PRODUCT;
+			}else if(loops != null){
+				return loops[partition].offer(message) ? OrderEntry.ACCEPTED : OrderEntry.OVERLOADED;
+			}else if(saturated(partition, 1)){
+				return OrderEntry.OVERLOADED;
+			}
+			queued[partition].incrementAndGet();
+			router.route(message, sender);
+			routedByProduct.incrementAndGet(productId);
+			return OrderEntry.ACCEPTED;
+		}
+
+		/** 
+		 * hands the orders and cancellations to their engines, each engine actor getting its share in 
+		 * one {@link OrderBatch}.
+		 * @return whether each one was {@link OrderEntry#ACCEPTED accepted}, or why not 
+		 */
+		byte[] submit(java.util.List<Object> orders, ActorRef sender) {
+			byte[] outcomes = new byte[orders.size()];
+			int[] partitions = new int[orders.size()];
+			@SuppressWarnings("unchecked")
+			java.util.List<Object>[] shares = (java.util.List<Object>[]) new java.util.List<?>[loops != null ? loops.length : queued.length];
+			for(int i = 0; i < outcomes.length; i++){
+				Object order = orders.get(i);
+				int productId = productIdOf(order);
+				partitions[i] = productId >= 0 && productId < Constants.NUM_PRODUCTS ? partitionByProduct[productId] : -1;
+				if(partitions[i] < 0){
+					outcomes[i] = OrderEntry.UNKNOWN_PRODUCT;
+				}else if(loops != null){
+					if(!loops[partitions[i]].offer(order)){
+						outcomes[i] = OrderEntry.OVERLOADED;
+					}
+				}else{
+					if(shares[partitions[i]] == null){
+						shares[partitions[i]] = new ArrayList<>();
+					}
+					shares[partitions[i]].add(order);
 				}
 			}
-			
-			return akka.routing.NoRoutee$.MODULE$; //none found, return NoRoutee
+			for(int partition = 0; partition < shares.length; partition++){
+				java.util.List<Object> share = shares[partition];
+				if(share == null){
+					continue;
+				}
+				if(saturated(partition, share.size())){
+					for(int i = 0; i < outcomes.length; i++){
+						if(partitions[i] == partition){
+							outcomes[i] = OrderEntry.OVERLOADED;
+						}
+					}
+					continue;
+				}
+				queued[partition].addAndGet(share.size());
+				router.route(new OrderBatch(share), sender);
+				share.forEach(order -> routedByProduct.incrementAndGet(productIdOf(order)));
+			}
+			return outcomes;
+		}
+
+		/** 
+		 * @return true if the engine has too much to do to take the given number of messages, which 
+		 * are then counted as rejected. an engine with nothing to do takes any number of them.
+		 */
+		private boolean saturated(int partition, int messages) {
+			int backlog = queued[partition].get();
+			if(backlog > 0 && backlog + messages > MAX_QUEUED_MESSAGES){
+				if(rejected[partition].getAndAdd(messages) == 0){
+					LOGGER.warn("engine " + partition + " is saturated, rejecting orders");
+				}
+				return true;
+			}else if(rejected[partition].get() > 0){
+				long count = rejected[partition].getAndSet(0);
+				if(count > 0){
+					LOGGER.warn("engine " + partition + " has caught up, after rejecting " + count + " orders");
+				}
+			}
+			return false;
+		}
+	}
+
+	/** 
+	 * sent by each engine to its parent every {@link Main#LOAD_REPORT_INTERVAL}, so that it can 
+	 * rebalance, see {@link Main#REBALANCE_INTERVAL}. the batch statistics are since the last report.
+	 */
+	static class EngineLoad {
+		final int partition;
+		final long processed;
+		final long sittingMillis;
+		final int batches;
+		final long batched;
+		final int largestBatch;
+
+		public EngineLoad(int partition, long processed, long sittingMillis, int batches, long batched, int largestBatch) {
+			this.partition = partition;
+			this.processed = processed;
+			this.sittingMillis = sittingMillis;
+			this.batches = batches;
+			this.batched = batched;
+			this.largestBatch = largestBatch;
+		}
+	}
+
+	/** orders for products which all belong to the engine it is sent to, see /orders */
+	static class OrderBatch {
+		final java.util.List<Object> orders;
+
+		public OrderBatch(java.util.List<Object> orders) {
+			this.orders = orders;
+		}
+	}
+
+	/** returned by every handler once it routes with the newer table, see {@link HttpActor#migrate} */
+	static final class Fence {
+	}
+
+	/** tells an engine to hold back messages for the product until its book arrives */
+	static class AwaitBook {
+		final int productId;
+
+		public AwaitBook(int productId) {
+			this.productId = productId;
+		}
+	}
+
+	/** tells an engine to hand the product over to the target, by sending it a {@link BookTransfer} */
+	static class ExportBook {
+		final int productId;
+		final ActorRef target;
+
+		public ExportBook(int productId, ActorRef target) {
+			this.productId = productId;
+			this.target = target;
+		}
+	}
+
+	/** sent by an engine to its parent once it has taken over the product */
+	static class BookImported {
+		final int productId;
+
+		public BookImported(int productId) {
+			this.productId = productId;
+		}
+	}
+
+	/** decides which partition, ie engine, handles each product */
+	public static abstract class PartitioningStrategy {
+
+		protected final int numberOfPartitions;
+
+		protected PartitioningStrategy(int numberOfPartitions) {
+			this.numberOfPartitions = numberOfPartitions;
+		}
+
+		public int getNumberOfPartitions() {
+			return numberOfPartitions;
+		}
+
+		/** @return the partition handling the given product, or -1 if none does */
+		public abstract int partitionOf(int productId);
+
+		/**
+		 * @param spec
+		 *            "range" for contiguous ranges of products per partition, "hash" to spread 
+		 *            the products over the partitions, or an explicit map of product ranges to 
+		 *            partitions such as "0-49=0,50-89=1,90=2". products which aren't mapped are not
+		 *            traded.
+		 * @param numberOfPartitions
+		 *            used by "range" and "hash". an explicit map has as many partitions as it names.
+		 */
+		public static PartitioningStrategy parse(String spec, int numberOfPartitions) {
+			if("range".equalsIgnoreCase(spec)){
+				return new RangePartitioning(numberOfPartitions);
+			}else if("hash".equalsIgnoreCase(spec)){
+				return new HashPartitioning(numberOfPartitions);
+			}else{
+				return ExplicitPartitioning.parse(spec);
+			}
+		}
+	}
+
+	/** contiguous ranges of products per partition, with the sizes differing by at most one */
+	public static class RangePartitioning extends PartitioningStrategy {
+
+		public RangePartitioning(int numberOfPartitions) {
+			super(numberOfPartitions);
+		}
+
+		@Override
+		public int partitionOf(int productId) {
+			return (int) ((long) productId * numberOfPartitions / Constants.NUM_PRODUCTS);
+		}
+
+		@Override
+		public String toString() {
+			return "range partitioning over " + numberOfPartitions + " partitions";
+		}
+	}
+
+	/** spreads neighbouring products over the partitions, so that hot ranges don't share an engine */
+	public static class HashPartitioning extends PartitioningStrategy {
+
+		public HashPartitioning(int numberOfPartitions) {
+			super(numberOfPartitions);
+		}
+
+		@Override
+		public int partitionOf(int productId) {
+			int h = productId * 0x9E3779B9;
+			return Math.floorMod(h ^ (h >>> 16), numberOfPartitions);
+		}
+
+		@Override
+		public String toString() {
+			return "hash partitioning over " + numberOfPartitions + " partitions";
+		}
+	}
+
+	/** a given partition per product */
+	public static class ExplicitPartitioning extends PartitioningStrategy {
+
+		/** indexed by product ID */
+		private final int[] partitionByProduct;
+
+		public ExplicitPartitioning(int[] partitionByProduct) {
+			super(Arrays.stream(partitionByProduct).max().orElse(-1) + 1);
+			this.partitionByProduct = partitionByProduct;
+		}
+
+		/** @see PartitioningStrategy#parse */
+		public static ExplicitPartitioning parse(String spec) {
+			int[] partitionByProduct = new int[Constants.NUM_PRODUCTS];
+			Arrays.fill(partitionByProduct, -1);
+			for(String mapping : spec.split(",")){
+				String[] productsAndPartition = mapping.trim().split("=");
+				if(productsAndPartition.length != 2){
+					throw new IllegalArgumentException("expected 'from-to=partition' but got '" + mapping + "' in " + spec);
+				}
+				String[] range = productsAndPartition[0].split("-");
+				int from = Integer.parseInt(range[0].trim());
+				int to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+				int partition = Integer.parseInt(productsAndPartition[1].trim());
+				if(from < 0 || to >= Constants.NUM_PRODUCTS || from > to || partition < 0){
+					throw new IllegalArgumentException("invalid mapping '" + mapping + "' in " + spec);
+				}
+				Arrays.fill(partitionByProduct, from, to + 1, partition);
+			}
+			return new ExplicitPartitioning(partitionByProduct);
+		}
+
+		@Override
+		public int partitionOf(int productId) {
+			return partitionByProduct[productId];
+		}
+
+		@Override
+		public String toString() {
+			return "explicit partitioning over " + numberOfPartitions + " partitions";
 		}
 	}
 	
@@ -0,0 +1,552 @@
+package akkabased;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.japi.pf.ReceiveBuilder;
+import akka.util.ByteString;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.Market.MarketInfo;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.Sale;
+import ch.maxant.tradingengine.model.TradingEngine.MarketPrice;
+import ch.maxant.tradingengine.model.TradingEngine.VolumeRecord;
+import ch.maxant.tradingengine.model.VolumeStatistics;
+
+/**
+ * pushes the state of each product to subscribers over WebSocket, see {@link Main#FEED_PORT}, so
+ * that they needn't poll. a subscriber connects to e.g. "ws://host:3003/feed?productIds=1,2,3", or
+ * leaves out the query to follow all products, and is sent the latest {@link Quote} of each
+ * product, then a new one whenever the product changes, and every {@link Trade}.
+ *
+ * engines take a snapshot of the products which changed at the end of each sitting, see
+ * {@link #onStats(Object)}, and copy their sales while the feed is running, see
+ * {@link #onSale(Sale)}, which is all they ever do for the feed. the {@link FeedActor} picks both
+ * up every {@link #FEED_INTERVAL} and passes them to each subscriber, which only keeps the latest
+ * quote per product while its connection is busy, so that slow subscribers skip quotes rather than
+ * falling behind. trades aren't skipped, unless a subscriber is {@link #MAX_PENDING_TRADES} behind.
+ */
+public class MarketFeed {
+
+	private static final Logger LOGGER = LogManager.getLogger(MarketFeed.class);
+
+	/** how often the feed picks up new quotes, in milliseconds */
+	static final long FEED_INTERVAL = 100;
+
+	/** the most trades which are kept for a subscriber whose connection is busy, after which the oldest are dropped */
+	static final int MAX_PENDING_TRADES = 10000;
+
+	/** the latest quote of each product, written by the engine trading the product */
+	private static final AtomicReferenceArray<Quote> QUOTES = new AtomicReferenceArray<>(Constants.NUM_PRODUCTS);
+	/** the trades which the {@link FeedActor} has yet to pick up */
+	private static final ConcurrentLinkedQueue<Trade> TRADES = new ConcurrentLinkedQueue<>();
+	/** true while there is a {@link FeedActor} to pick up the trades */
+	private static volatile boolean running;
+
+	/**
+	 * to be called by an engine on its own thread, with the data of its STATS event. only the
+	 * products which changed since the last time are quoted.
+	 */
+	static void onStats(Object data) {
+		onStats(data, System.currentTimeMillis());
+	}
+
+	static void onStats(Object data, long now) {
+		Object[] stats = (Object[]) data;
+		MarketInfo info = (MarketInfo) stats[0];
+		MarketPrice[] prices = (MarketPrice[]) stats[1];
+		VolumeStatistics volumes = (VolumeStatistics) stats[2];
+		int[] changed = (int[]) stats[3];
+		for (int productId : changed) {
+			QUOTES.lazySet(productId, new Quote(productId, info, prices[productId], volumes.getCurrentVolume(productId, now), now));
+		}
+		// sales fall out of the volume as time goes by, without the product changing. only the 
+		// engine trading a product has volume for it, and it can only drop once per bucket
+		long bucket = now / VolumeStatistics.BUCKET_MS;
+		for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+			Quote quote = QUOTES.get(productId);
+			if (quote != null && quote.timestamp / VolumeStatistics.BUCKET_MS < bucket && volumes.hasVolume(productId)) {
+				VolumeRecord volume = volumes.getCurrentVolume(productId, now);
+				if (volume.numberOfSales != quote.volume || volume.turnover != quote.turnover || volume.count != quote.trades) {
+					QUOTES.lazySet(productId, new Quote(productId, info, prices[productId], volume, now));
+				}
+			}
+		}
+	}
+
+	/** @return the latest quote of the product, or null if it hasn't changed since the start */
+	static Quote latest(int productId) {
+		return QUOTES.get(productId);
+	}
+
+	/**
+	 * to be called by an engine on its own thread, for each of its sales. the sale is copied, since
+	 * the market recycles it, but only while the feed is running.
+	 */
+	static void onSale(Sale sale) {
+		if (running) {
+			TRADES.add(new Trade(sale.getProductId(), sale.getPrice(), sale.getQuantity(), sale.getTimestamp()));
+		}
+	}
+
+	/** the state of a product at the end of a sitting */
+	static final class Quote {
+		final int productId;
+		/** the price of the cheapest sales order, or -1 if nobody is selling */
+		final long ask;
+		final long askQuantity;
+		final int sellers;
+		/** buyers pay the market price, so the bid side is just what they still want */
+		final long bidQuantity;
+		final int buyers;
+		/** the price of the last trade, or -1 if there wasn't one yet */
+		final long lastPrice;
+		final long lastTradeAt;
+		/** traded within the last {@link VolumeStatistics#WINDOW_MS} */
+		final int volume;
+		final long turnover;
+		final int trades;
+		final long timestamp;
+		/** rendered on demand, then shared by all subscribers */
+		private volatile ByteString frame;
+
+		Quote(int productId, MarketInfo info, MarketPrice price, VolumeRecord volume, long timestamp) {
+			this.productId = productId;
+			this.ask = info.getCheapestPrice(productId);
+			this.askQuantity = info.getSalesQuantity(productId);
+			this.sellers = info.getNumberOfSalesOrders(productId);
+			this.bidQuantity = info.getPurchaseQuantity(productId);
+			this.buyers = info.getNumberOfPurchaseOrders(productId);
+			this.lastPrice = price == null ? -1 : price.getPrice();
+			this.lastTradeAt = price == null ? 0 : price.getTimestamp();
+			this.volume = volume.numberOfSales;
+			this.turnover = volume.turnover;
+			this.trades = volume.count;
+			this.timestamp = timestamp;
+		}
+
+		String toJson() {
+			return "{\"type\":\"quote\",\"productId\":" + productId
+					+ ",\"ask\":" + (ask < 0 ? "null" : Prices.format(ask)) + ",\"askQuantity\":" + askQuantity + ",\"sellers\":" + sellers
+					+ ",\"bidQuantity\":" + bidQuantity + ",\"buyers\":" + buyers
+					+ ",\"lastPrice\":" + (lastPrice < 0 ? "null" : Prices.format(lastPrice)) + ",\"lastTradeAt\":" + lastTradeAt
+					+ ",\"volume\":" + volume + ",\"turnover\":" + Prices.format(turnover) + ",\"trades\":" + trades
+					+ ",\"timestamp\":" + timestamp + "}";
+		}
+
+		/** @return this quote as a WebSocket text frame */
+		ByteString frame() {
+			ByteString f = frame;
+			if (f == null) {
+				f = WebSocket.textFrame(toJson());
+				frame = f;
+			}
+			return f;
+		}
+	}
+
+	/** a single sale, as seen by the public, ie without the buyer and seller */
+	static final class Trade {
+		final int productId;
+		final long price;
+		final int quantity;
+		final long timestamp;
+		/** rendered on demand, then shared by all subscribers */
+		private volatile ByteString frame;
+
+		Trade(int productId, long price, int quantity, long timestamp) {
+			this.productId = productId;
+			this.price = price;
+			this.quantity = quantity;
+			this.timestamp = timestamp;
+		}
+
+		String toJson() {
+			return "{\"type\":\"trade\",\"productId\":" + productId + ",\"price\":" + Prices.format(price)
+					+ ",\"quantity\":" + quantity + ",\"timestamp\":" + timestamp + "}";
+		}
+
+		/** @return this trade as a WebSocket text frame */
+		ByteString frame() {
+			ByteString f = frame;
+			if (f == null) {
+				f = WebSocket.textFrame(toJson());
+				frame = f;
+			}
+			return f;
+		}
+	}
+
+	/** the quotes which changed and the trades made since the previous update, sent to every subscriber */
+	static final class Update {
+		final List<Quote> quotes;
+		final List<Trade> trades;
+
+		Update(List<Quote> quotes, List<Trade> trades) {
+			this.quotes = quotes;
+			this.trades = trades;
+		}
+	}
+
+	/** accepts subscribers and passes new quotes on to them */
+	static class FeedActor extends AbstractActor {
+
+		private static final String TICK = "TICK";
+
+		/** the last quote passed on, per product */
+		private final Quote[] published = new Quote[Constants.NUM_PRODUCTS];
+		private final Cancellable ticking;
+
+		@SuppressWarnings("unused") //used implicitly by akka
+		public FeedActor(int port) {
+			running = true;
+			Tcp.get(Main.system).manager().tell(TcpMessage.bind(self(), new InetSocketAddress(port), 100), self());
+			FiniteDuration interval = new FiniteDuration(FEED_INTERVAL, TimeUnit.MILLISECONDS);
+			ticking = Main.system.scheduler().schedule(interval, interval, self(), TICK, getContext().dispatcher(), self());
+
+			receive(ReceiveBuilder
+				.match(Tcp.Bound.class, b -> {
+					LOGGER.info("market data feed is available on " + b.localAddress());
+				}).match(Tcp.CommandFailed.class, f -> {
+					LOGGER.error("market data feed is unavailable: " + f);
+				}).match(Tcp.Connected.class, c -> {
+					getContext().actorOf(Props.create(Subscriber.class, sender()).withDispatcher(Main.HTTP_DISPATCHER));
+				}).match(String.class, s -> TICK.equals(s), tick -> {
+					List<Quote> changed = null;
+					for (int productId = 0; productId < published.length; productId++) {
+						Quote quote = QUOTES.get(productId);
+						if (quote != published[productId]) {
+							published[productId] = quote;
+							if (changed == null) {
+								changed = new ArrayList<>();
+							}
+							changed.add(quote);
+						}
+					}
+					List<Trade> trades = new ArrayList<>();
+					for (Trade trade = TRADES.poll(); trade != null; trade = TRADES.poll()) {
+						trades.add(trade);
+					}
+					if (changed != null || !trades.isEmpty()) {
+						Update update = new Update(changed == null ? new ArrayList<>() : changed, trades);
+						getContext().getChildren().forEach(subscriber -> subscriber.tell(update, self()));
+					}
+				}).matchAny(o -> {
+					LOGGER.error("received unknown message in market data feed " + o);
+				}).build());
+		}
+
+		@Override
+		public void postStop() throws Exception {
+			ticking.cancel();
+			running = false;
+			TRADES.clear();
+			super.postStop();
+		}
+	}
+
+	/**
+	 * the feeds end of a WebSocket connection. quotes are written one write at a time, and those
+	 * arriving in the meantime replace any pending quote of the same product. trades are written
+	 * ahead of them, each of them.
+	 */
+	static class Subscriber extends AbstractActor {
+
+		private final ActorRef connection;
+		/** null until the handshake is complete */
+		private WebSocket.Decoder decoder;
+		private ByteString request = ByteString.empty();
+		/** the products subscribed to, or null for all of them */
+		private boolean[] products;
+		/** the handshake and control frames, which are written ahead of quotes */
+		private ByteString control = ByteString.empty();
+		private final Map<Integer, Quote> pending = new LinkedHashMap<>();
+		private final ArrayDeque<Trade> trades = new ArrayDeque<>();
+		private boolean writing;
+		/** true once the subscriber asked to close the connection */
+		private boolean closing;
+
+		@SuppressWarnings("unused") //used implicitly by akka
+		public Subscriber(ActorRef connection) {
+			this.connection = connection;
+			connection.tell(TcpMessage.register(self()), self());
+
+			receive(ReceiveBuilder
+				.match(Tcp.Received.class, r -> {
+					if (decoder == null) {
+						handshake(r.data());
+					} else {
+						decoder.decode(r.data());
+					}
+				}).match(Update.class, u -> {
+					if (decoder != null) {
+						u.trades.forEach(this::offer);
+						u.quotes.forEach(this::offer);
+						flush();
+					}
+				}).match(Tcp.Event.class, e -> e == WireFormat.ACK, e -> {
+					writing = false;
+					flush();
+				}).match(Tcp.ConnectionClosed.class, c -> {
+					getContext().stop(self());
+				}).match(Tcp.CommandFailed.class, f -> {
+					LOGGER.warn("failed to write to subscriber: " + f);
+					getContext().stop(self());
+				}).matchAny(o -> {
+					LOGGER.error("received unknown message in market data subscriber " + o);
+				}).build());
+		}
+
+		private void offer(Quote quote) {
+			if (quote != null && (products == null || products[quote.productId])) {
+				pending.put(quote.productId, quote);
+			}
+		}
+
+		private void offer(Trade trade) {
+			if (products == null || products[trade.productId]) {
+				if (trades.size() == MAX_PENDING_TRADES) {
+					trades.poll();
+				}
+				trades.add(trade);
+			}
+		}
+
+		/** the connection takes one write at a time, so everything goes out through here */
+		private void flush() {
+			if (!writing && (control.nonEmpty() || !pending.isEmpty() || !trades.isEmpty())) {
+				ByteString frames = control;
+				control = ByteString.empty();
+				if (!closing) {
+					for (Trade trade : trades) {
+						frames = frames.concat(trade.frame());
+					}
+					for (Quote quote : pending.values()) {
+						frames = frames.concat(quote.frame());
+					}
+				}
+				pending.clear();
+				trades.clear();
+				connection.tell(TcpMessage.write(frames, WireFormat.ACK), self());
+				writing = true;
+				if (closing) {
+					// flushes the write first
+					connection.tell(TcpMessage.close(), self());
+				}
+			}
+		}
+
+		/** reads the opening handshake, and once it is complete, accepts it and sends the latest quotes */
+		private void handshake(ByteString data) {
+			request = request.concat(data);
+			String text = request.decodeString("ISO-8859-1");
+			int end = text.indexOf("\r\n\r\n");
+			if (end < 0) {
+				if (request.size() > 8 * 1024) {
+					reject("400 Bad Request");
+				}
+				return;
+			}
+			String[] lines = text.substring(0, end).split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			String key = null;
+			for (String line : lines) {
+				int colon = line.indexOf(':');
+				if (colon > 0 && "Sec-WebSocket-Key".equalsIgnoreCase(line.substring(0, colon).trim())) {
+					key = line.substring(colon + 1).trim();
+				}
+			}
+			if (requestLine.length < 2 || !requestLine[1].startsWith("/feed") || key == null) {
+				reject(requestLine.length < 2 || requestLine[1].startsWith("/feed") ? "400 Bad Request" : "404 Not Found");
+				return;
+			}
+			try {
+				products = parseProductIds(requestLine[1]);
+			} catch (NumberFormatException e) {
+				reject("400 Bad Request");
+				return;
+			}
+			control = ByteString.fromString("HTTP/1.1 101 Switching Protocols\r\n"
+					+ "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+					+ "Sec-WebSocket-Accept: " + WebSocket.accept(key) + "\r\n\r\n", "ISO-8859-1");
+			decoder = new WebSocket.Decoder(reply -> {
+				control = control.concat(reply);
+				flush();
+			}, () -> {
+				closing = true;
+				flush();
+			});
+			request = null;
+			for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+				offer(latest(productId));
+			}
+			flush();
+		}
+
+		private void reject(String status) {
+			connection.tell(TcpMessage.write(ByteString.fromString("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n", "ISO-8859-1")), self());
+			connection.tell(TcpMessage.close(), self());
+		}
+
+		/** @return the products listed in the "productIds" parameter of the target, or null for all of them */
+		private static boolean[] parseProductIds(String target) {
+			int start = target.indexOf("productIds=");
+			if (start < 0) {
+				return null;
+			}
+			int end = target.indexOf('&', start);
+			boolean[] products = new boolean[Constants.NUM_PRODUCTS];
+			for (String id : target.substring(start + "productIds=".length(), end < 0 ? target.length() : end).split(",|%2C")) {
+				int productId = Integer.parseInt(id);
+				if (productId >= 0 && productId < products.length) {
+					products[productId] = true;
+				}
+			}
+			return products;
+		}
+	}
+
+	/** just enough of RFC 6455 for a server which pushes text */
+	static final class WebSocket {
+
+		private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+		private static final int TEXT = 0x1;
+		private static final int CLOSE = 0x8;
+		private static final int PING = 0x9;
+		private static final int PONG = 0xA;
+
+		/** @return the Sec-WebSocket-Accept header for the given key */
+		static String accept(String key) {
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+				return Base64.getEncoder().encodeToString(digest);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		static ByteString textFrame(String text) {
+			return frame(TEXT, text.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/** @return an unmasked frame, as sent by servers */
+		static ByteString frame(int opcode, byte[] payload) {
+			ByteBuffer frame = ByteBuffer.allocate(10 + payload.length);
+			frame.put((byte) (0x80 | opcode));
+			if (payload.length < 126) {
+				frame.put((byte) payload.length);
+			} else if (payload.length < 65536) {
+				frame.put((byte) 126);
+				frame.putShort((short) payload.length);
+			} else {
+				frame.put((byte) 127);
+				frame.putLong(payload.length);
+			}
+			frame.put(payload);
+			frame.flip();
+			return ByteString.fromByteBuffer(frame);
+		}
+
+		/**
+		 * reads the frames which clients send, however they were split, answering pings and closes.
+		 * anything else is ignored, since subscribers have nothing to say.
+		 */
+		static final class Decoder {
+			private final Consumer<ByteString> replies;
+			private final Runnable close;
+			private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+			/**
+			 * @param replies
+			 *            told the frames to send back
+			 * @param close
+			 *            run once the connection should be closed, after sending the replies
+			 */
+			Decoder(Consumer<ByteString> replies, Runnable close) {
+				this.replies = replies;
+				this.close = close;
+			}
+
+			void decode(ByteString data) {
+				if (buffer.remaining() < data.size()) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + data.size()));
+					buffer.flip();
+					bigger.put(buffer);
+					buffer = bigger;
+				}
+				data.copyToBuffer(buffer);
+				buffer.flip();
+				while (readFrame()) {
+				}
+				buffer.compact();
+			}
+
+			/** @return true if a whole frame was read */
+			private boolean readFrame() {
+				int start = buffer.position();
+				if (buffer.remaining() < 2) {
+					return false;
+				}
+				int opcode = buffer.get() & 0x0F;
+				int second = buffer.get() & 0xFF;
+				boolean masked = (second & 0x80) != 0;
+				long length = second & 0x7F;
+				int header = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + (masked ? 4 : 0);
+				if (buffer.remaining() < header - 2) {
+					buffer.position(start);
+					return false;
+				}
+				length = length == 126 ? buffer.getShort() & 0xFFFF : length == 127 ? buffer.getLong() : length;
+				if (length > 64 * 1024) {
+					LOGGER.warn("subscriber sent a frame of " + length + " bytes, closing");
+					buffer.clear();
+					close.run();
+					return false;
+				}
+				byte[] mask = new byte[4];
+				if (masked) {
+					buffer.get(mask);
+				}
+				if (buffer.remaining() < length) {
+					buffer.position(start);
+					return false;
+				}
+				byte[] payload = new byte[(int) length];
+				buffer.get(payload);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i % 4];
+				}
+				if (opcode == PING) {
+					replies.accept(frame(PONG, payload));
+				} else if (opcode == CLOSE) {
+					replies.accept(frame(CLOSE, payload));
+					close.run();
+				}
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package akkabased;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.maxant.tradingengine.model.BookSnapshot;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.OrderStatus;
+import ch.maxant.tradingengine.model.Prices;
+
+/**
+ * the latest book of each product and status of each recent order, as the engines published them
+ * at the end of their last sitting, so that /book/{productId} and /order/{id} can be answered by
+ * any request handler without asking the engines, who have better things to do. the engines write
+ * the snapshots in {@link #onStats(Object)}, and readers just take whatever is there, so neither
+ * waits for the other. an answer is at most a sitting old.
+ *
+ * statuses are kept by order ID in a ring, so that only the latest {@link #RECENT_ORDERS} are
+ * known. engine nodes relay their snapshots to the HTTP node, see {@link Published}.
+ */
+final class MarketSnapshots {
+
+	/** how many orders are remembered, a power of two */
+	static final int RECENT_ORDERS = 1 << 18;
+
+	/** the latest snapshot of each product's book, written by the engine trading the product */
+	private static final AtomicReferenceArray<BookSnapshot> BOOKS = new AtomicReferenceArray<>(Constants.NUM_PRODUCTS);
+
+	/** indexed by order ID, modulo the size, written by the engine trading the order's product */
+	private static final AtomicReferenceArray<OrderStatus> ORDERS = new AtomicReferenceArray<>(RECENT_ORDERS);
+
+	private MarketSnapshots() {
+	}
+
+	/**
+	 * the snapshots which an engine node published at the end of a sitting, which it relays to the
+	 * HTTP node, where its {@link RemoteEngine} publishes them, see {@link WireFormat}
+	 */
+	static final class Published {
+		final BookSnapshot[] books;
+		final List<OrderStatus> statuses;
+
+		Published(BookSnapshot[] books, List<OrderStatus> statuses) {
+			this.books = books;
+			this.statuses = statuses;
+		}
+
+		/** @return the snapshots in the data of a STATS event */
+		@SuppressWarnings("unchecked")
+		static Published of(Object data) {
+			Object[] stats = (Object[]) data;
+			return new Published((BookSnapshot[]) stats[4], (List<OrderStatus>) stats[5]);
+		}
+	}
+
+	/** to be called by an engine on its own thread, with the data of its STATS event */
+	static void onStats(Object data) {
+		publish(Published.of(data));
+	}
+
+	/** to be called by the engine trading the products, or the remote engine standing in for it */
+	static void publish(Published published) {
+		for (BookSnapshot book : published.books) {
+			BOOKS.lazySet(book.getProductId(), book);
+		}
+		for (OrderStatus status : published.statuses) {
+			ORDERS.lazySet(status.getId() & (RECENT_ORDERS - 1), status);
+		}
+	}
+
+	/** @return the latest snapshot of the product's book, or an empty one if it has never been traded */
+	static BookSnapshot book(int productId) {
+		BookSnapshot book = BOOKS.get(productId);
+		return book != null ? book : BookSnapshot.empty(productId);
+	}
+
+	/** @return the latest status of the order, or null if it is unknown, or too old to be remembered */
+	static OrderStatus order(int id) {
+		OrderStatus status = ORDERS.get(id & (RECENT_ORDERS - 1));
+		return status != null && status.getId() == id ? status : null;
+	}
+
+	/** @return the status as the body of a response, like the others of the HTTP API */
+	static String toJson(OrderStatus status) {
+		StringBuilder sb = new StringBuilder(160).append("{msg: 'ok', id: ").append(status.getId())
+				.append(", productId: ").append(status.getProductId())
+				.append(", side: '").append(status.isSale() ? "sell" : "buy")
+				.append("', state: '").append(status.getState().name().toLowerCase())
+				.append("', quantity: ").append(status.getOriginalQuantity())
+				.append(", remaining: ").append(status.getRemainingQuantity());
+		if (status.isSale()) {
+			sb.append(", price: ").append(Prices.format(status.getPrice()));
+		}
+		return sb.append(", asOf: ").append(status.getAsOf()).append("}").toString();
+	}
+
+	/** @return the book as the body of a response, like the others of the HTTP API */
+	static String toJson(BookSnapshot book) {
+		StringBuilder sb = new StringBuilder(128 + 48 * book.getDepth()).append("{msg: 'ok', productId: ").append(book.getProductId())
+				.append(", sales: [");
+		for (int level = 0; level < book.getDepth(); level++) {
+			sb.append(level == 0 ? "" : ", ").append("{price: ").append(Prices.format(book.getPrice(level)))
+					.append(", quantity: ").append(book.getQuantity(level))
+					.append(", orders: ").append(book.getNumberOfOrders(level)).append("}");
+		}
+		sb.append("], numberOfSalesOrders: ").append(book.getNumberOfSalesOrders())
+				.append(", salesQuantity: ").append(book.getSalesQuantity())
+				.append(", numberOfPurchaseOrders: ").append(book.getNumberOfPurchaseOrders())
+				.append(", purchaseQuantity: ").append(book.getPurchaseQuantity());
+		if (book.getLastPrice() >= 0) {
+			sb.append(", lastPrice: ").append(Prices.format(book.getLastPrice()))
+					.append(", lastPriceTimestamp: ").append(book.getLastPriceTimestamp());
+		}
+		return sb.append(", asOf: ").append(book.getAsOf()).append("}").toString();
+	}
+}
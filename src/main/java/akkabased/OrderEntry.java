@@ -0,0 +1,270 @@
+package akkabased;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.japi.pf.ReceiveBuilder;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+
+/**
+ * order entry in binary over persistent TCP connections, for clients who can't afford HTTP, see
+ * {@link Main#ORDER_PORT}. every frame is the length of the rest of it as an int, a type, and the
+ * fields of the message, big endian:
+ *
+ * <pre>
+ * LOGON      1  userId: short length, then UTF-8
+ * NEW_ORDER  2  clientRef: int, side: byte 'B' or 'S', productId: int, quantity: int,
+ *               price: long ticks (ignored when buying), timeToLive: long ms (0 for the default)
+ * CANCEL     3  clientRef: int, productId: int, orderId: int
+ * ACK        4  clientRef: int, orderId: int, status: byte, see {@link #ACCEPTED} etc.
+ * </pre>
+ *
+ * a client logs on once, and the orders it enters afterwards are its own, so they carry no strings.
+ * it can only cancel its own orders.
+ * a frame which is empty, longer than {@link #MAX_FRAME_LENGTH}, too short for the fields of its
+ * type, or of an unknown type closes the connection. a client may send as many frames as it likes
+ * without waiting. each order is acknowledged with the reference which the client gave it, and the
+ * ID which the market gave it, if it was accepted.
+ * the frames received in one read are handed to the engines together, see {@link Main.OrderBatch},
+ * and acknowledged together, in the order in which they were received.
+ */
+public class OrderEntry {
+
+	private static final Logger LOGGER = LogManager.getLogger(OrderEntry.class);
+
+	static final byte LOGON = 1;
+	static final byte NEW_ORDER = 2;
+	static final byte CANCEL = 3;
+	static final byte ACK = 4;
+
+	static final byte ACCEPTED = 0;
+	static final byte UNKNOWN_PRODUCT = 1;
+	static final byte OVERLOADED = 2;
+	/** the client hasn't logged on yet, or the order has no positive quantity or price */
+	static final byte REJECTED = 3;
+
+	/** the longest frame, after its length, which is a logon with the longest user ID */
+	static final int MAX_FRAME_LENGTH = 1 + 2 + 0xFFFF;
+	/** the size of the fields of each type of frame, after the type */
+	private static final int NEW_ORDER_SIZE = 4 + 1 + 4 + 4 + 8 + 8;
+	private static final int CANCEL_SIZE = 4 + 4 + 4;
+
+	private static final byte BUY = 'B';
+	private static final byte SELL = 'S';
+
+	/** the frames received in one read which the client wants acknowledged, in the order they were received */
+	static final class Batch {
+		/** the orders and cancellations to hand to the engines */
+		final List<Object> orders = new ArrayList<>();
+		/** the reference which the client gave each frame */
+		final List<Integer> clientRefs = new ArrayList<>();
+		/** the order or cancellation of each frame, or null if it was rejected without reaching the engines */
+		final List<Object> frames = new ArrayList<>();
+
+		void add(int clientRef, Object order) {
+			orders.add(order);
+			clientRefs.add(clientRef);
+			frames.add(order);
+		}
+
+		void reject(int clientRef) {
+			clientRefs.add(clientRef);
+			frames.add(null);
+		}
+	}
+
+	/** turns what a client sends into batches, remembering who it logged on as */
+	static final class Decoder {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		private String userId;
+		private int participant;
+		/** what was wrong with the frame which made {@link #decode(ByteString)} give up */
+		private String invalid;
+
+		/** 
+		 * @return the complete frames received so far, or null if one of them is invalid, in which 
+		 * case none of them count and the connection must be closed, see {@link #getInvalid()}
+		 */
+		Batch decode(ByteString data) {
+			if (buffer.remaining() < data.size()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + data.size()));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			data.copyToBuffer(buffer);
+			buffer.flip();
+			Batch batch = new Batch();
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt(buffer.position());
+				if (length < 1 || length > MAX_FRAME_LENGTH) {
+					invalid = "a frame of " + length + " bytes";
+					return null;
+				}
+				if (buffer.remaining() < 4 + length) {
+					break; // the rest of the frame is still on its way
+				}
+				int end = buffer.position() + 4 + length;
+				buffer.position(buffer.position() + 4);
+				byte type = buffer.get();
+				int size = end - buffer.position();
+				if (type == LOGON && size >= 2 && size >= 2 + (buffer.getShort(buffer.position()) & 0xFFFF)) {
+					byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+					buffer.get(bytes);
+					userId = new String(bytes, StandardCharsets.UTF_8);
+					participant = Participants.intern(userId);
+				} else if (type == NEW_ORDER && size >= NEW_ORDER_SIZE) {
+					readOrder(batch);
+				} else if (type == CANCEL && size >= CANCEL_SIZE) {
+					int clientRef = buffer.getInt();
+					int productId = buffer.getInt();
+					int orderId = buffer.getInt();
+					if (userId == null) {
+						batch.reject(clientRef);
+					} else {
+						batch.add(clientRef, new Cancellation(productId, orderId, userId, participant));
+					}
+				} else {
+					invalid = "a frame of type " + type + " with " + size + " bytes of fields";
+					return null;
+				}
+				buffer.position(end);
+			}
+			buffer.compact();
+			return batch;
+		}
+
+		/** orders are only given an ID once they are known to be valid, so that rejections use none up */
+		private void readOrder(Batch batch) {
+			int clientRef = buffer.getInt();
+			byte side = buffer.get();
+			int productId = buffer.getInt();
+			int quantity = buffer.getInt();
+			long price = buffer.getLong();
+			long timeToLive = buffer.getLong();
+			if (userId == null || (side != SELL && side != BUY) || quantity <= 0 || (side == SELL && price <= 0)) {
+				batch.reject(clientRef);
+			} else if (side == SELL) {
+				SalesOrder so = new SalesOrder(price, productId, quantity, Constants.ID.getAndIncrement());
+				so.setUserId(userId);
+				so.setParticipant(participant);
+				so.setTimeToLive(timeToLive);
+				batch.add(clientRef, so);
+			} else {
+				PurchaseOrder po = new PurchaseOrder(productId, quantity, Main.RequestHandler.MAXIMUM_PURCHASE_PRICE, Constants.ID.getAndIncrement());
+				po.setUserId(userId);
+				po.setParticipant(participant);
+				po.setTimeToLive(timeToLive);
+				batch.add(clientRef, po);
+			}
+		}
+
+		String getUserId() {
+			return userId;
+		}
+
+		String getInvalid() {
+			return invalid;
+		}
+	}
+
+	/** 
+	 * the markets end of a client connection, which routes orders straight to the engines, like a 
+	 * {@link Main.RequestHandler} 
+	 */
+	static class Session extends AbstractActor {
+
+		private final ActorRef connection;
+		private final AtomicReference<Main.RoutingTable> table;
+		private final Decoder decoder = new Decoder();
+		/** acknowledgements waiting for the previous write to complete */
+		private ByteStringBuilder acks = new ByteStringBuilder();
+		private boolean writing;
+		/** true once the connection is being closed, after which nothing more is decoded */
+		private boolean closing;
+
+		@SuppressWarnings("unused") //used implicitly by akka
+		public Session(ActorRef connection, AtomicReference<Main.RoutingTable> table) {
+			this.connection = connection;
+			this.table = table;
+			connection.tell(TcpMessage.register(self()), self());
+
+			receive(ReceiveBuilder
+				.match(Tcp.Received.class, r -> {
+					if (closing) {
+						return;
+					}
+					Batch batch = decoder.decode(r.data());
+					if (batch == null) {
+						LOGGER.warn("closing the connection of " + decoder.getUserId() + ", which sent " + decoder.getInvalid());
+						connection.tell(TcpMessage.close(), self());
+						closing = true;
+						return;
+					}
+					byte[] outcomes = batch.orders.isEmpty() ? new byte[0] : table.get().submit(batch.orders, self());
+					for (int i = 0, submitted = 0; i < batch.frames.size(); i++) {
+						Object order = batch.frames.get(i);
+						byte status = order == null ? REJECTED : outcomes[submitted++];
+						ack(batch.clientRefs.get(i), status == ACCEPTED ? idOf(order) : -1, status);
+					}
+					flush();
+				}).match(Main.Fence.class, f -> {
+					sender().tell(f, self());
+				}).match(Tcp.Event.class, e -> e == WireFormat.ACK, e -> {
+					writing = false;
+					flush();
+				}).match(Tcp.ConnectionClosed.class, c -> {
+					getContext().stop(self());
+				}).match(Tcp.CommandFailed.class, f -> {
+					LOGGER.warn("failed to write to " + decoder.getUserId() + ": " + f);
+					getContext().stop(self());
+				}).matchAny(o -> {
+					LOGGER.error("received unknown message in order entry session " + o);
+				}).build());
+		}
+
+		private void ack(int clientRef, int orderId, byte status) {
+			acks.putInt(1 + 4 + 4 + 1, ByteOrder.BIG_ENDIAN);
+			acks.putByte(ACK);
+			acks.putInt(clientRef, ByteOrder.BIG_ENDIAN);
+			acks.putInt(orderId, ByteOrder.BIG_ENDIAN);
+			acks.putByte(status);
+		}
+
+		/** the connection takes one write at a time, so acknowledgements go out together */
+		private void flush() {
+			if (!writing && acks.length() > 0) {
+				connection.tell(TcpMessage.write(acks.result(), WireFormat.ACK), self());
+				acks = new ByteStringBuilder();
+				writing = true;
+			}
+		}
+
+		private static int idOf(Object order) {
+			if (order instanceof SalesOrder) {
+				return ((SalesOrder) order).getId();
+			} else if (order instanceof PurchaseOrder) {
+				return ((PurchaseOrder) order).getId();
+			}
+			return ((Cancellation) order).getId();
+		}
+	}
+}
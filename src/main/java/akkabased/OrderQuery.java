@@ -0,0 +1,192 @@
+package akkabased;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import ch.maxant.tradingengine.model.Prices;
+
+/**
+ * the parameters of a request for an order, a cancellation or an amendment, parsed in a single pass
+ * over the raw query, which spray leaves alone, see "uri-parsing-mode" in application.conf. each
+ * request handler reuses one instance, so that numbers are read straight out of the query, and only the
+ * user ID becomes a string of its own.
+ */
+final class OrderQuery {
+
+	private static final int PRODUCT_ID = 1;
+	private static final int QUANTITY = 2;
+	private static final int USER_ID = 4;
+	private static final int PRICE = 8;
+	private static final int ID = 16;
+	private static final int TIME_TO_LIVE = 32;
+
+	/** the parameters which were present, as a set of the bits above */
+	private int present;
+	private int productId;
+	private int quantity;
+	private String userId;
+	private long price;
+	private int id;
+	private long timeToLive;
+
+	/**
+	 * parses the given query, forgetting the previous one. unknown parameters are ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a known parameter is malformed
+	 */
+	void parse(String query) {
+		parse(query, 0, query.length());
+	}
+
+	/** parses the query between the given indices, eg a line of a batch, see {@link #parse(String)} */
+	void parse(String query, int from, int to) {
+		present = 0;
+		userId = null;
+		int start = from;
+		while (start < to) {
+			int end = query.indexOf('&', start);
+			if (end < 0 || end > to) {
+				end = to;
+			}
+			int equals = query.indexOf('=', start);
+			if (equals > start && equals < end) {
+				parameter(query, start, equals, equals + 1, end);
+			}
+			start = end + 1;
+		}
+	}
+
+	private void parameter(String query, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+		if (is(query, keyStart, keyEnd, "productId")) {
+			productId = parseInt(query, valueStart, valueEnd);
+			present |= PRODUCT_ID;
+		} else if (is(query, keyStart, keyEnd, "quantity")) {
+			quantity = parseInt(query, valueStart, valueEnd);
+			present |= QUANTITY;
+		} else if (is(query, keyStart, keyEnd, "userId")) {
+			userId = decode(query, valueStart, valueEnd);
+			present |= USER_ID;
+		} else if (is(query, keyStart, keyEnd, "price")) {
+			price = Prices.parse(query, valueStart, valueEnd);
+			present |= PRICE;
+		} else if (is(query, keyStart, keyEnd, "id")) {
+			id = parseInt(query, valueStart, valueEnd);
+			present |= ID;
+		} else if (is(query, keyStart, keyEnd, "timeToLive")) {
+			timeToLive = parseLong(query, valueStart, valueEnd);
+			present |= TIME_TO_LIVE;
+		}
+	}
+
+	int getProductId() {
+		require(PRODUCT_ID, "productId");
+		return productId;
+	}
+
+	/** @return the quantity of a new order, which must be positive */
+	int getQuantity() {
+		require(QUANTITY, "quantity");
+		return positive(quantity, "quantity");
+	}
+
+	/** @return the new remaining quantity of an amended order, where 0 cancels it */
+	int getRemainingQuantity() {
+		require(QUANTITY, "quantity");
+		if (quantity < 0) {
+			throw new IllegalArgumentException("quantity must not be negative, but was " + quantity);
+		}
+		return quantity;
+	}
+
+	String getUserId() {
+		require(USER_ID, "userId");
+		return userId;
+	}
+
+	/** @return the price in ticks, which must be positive */
+	long getPrice() {
+		require(PRICE, "price");
+		return positivePrice(price);
+	}
+
+	/** @return the price, which must be positive, or the given default if there was none */
+	long getPrice(long orElse) {
+		return (present & PRICE) != 0 ? positivePrice(price) : orElse;
+	}
+
+	int getId() {
+		require(ID, "id");
+		return id;
+	}
+
+	/** @return the optional time to live in milliseconds, or 0 for the engines default */
+	long getTimeToLive() {
+		return (present & TIME_TO_LIVE) != 0 ? timeToLive : 0;
+	}
+
+	private static int positive(int value, String name) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + " must be positive, but was " + value);
+		}
+		return value;
+	}
+
+	private static long positivePrice(long price) {
+		if (price <= 0) {
+			throw new IllegalArgumentException("price must be positive, but was " + Prices.format(price));
+		}
+		return price;
+	}
+
+	private void require(int parameter, String name) {
+		if ((present & parameter) == 0) {
+			throw new IllegalArgumentException("missing parameter '" + name + "'");
+		}
+	}
+
+	private static boolean is(String query, int start, int end, String key) {
+		return end - start == key.length() && query.regionMatches(start, key, 0, key.length());
+	}
+
+	private static int parseInt(String query, int start, int end) {
+		long value = parseLong(query, start, end);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("'" + query.substring(start, end) + "' is out of range");
+		}
+		return (int) value;
+	}
+
+	private static long parseLong(String query, int start, int end) {
+		boolean negative = start < end && query.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end || end - i > 18) {
+			throw new NumberFormatException("'" + query.substring(start, end) + "' is not a number");
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			char c = query.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("'" + query.substring(start, end) + "' is not a number");
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/** @return the value with "+" and percent encoded UTF-8 decoded, which is rarely necessary */
+	private static String decode(String query, int start, int end) {
+		int i = start;
+		while (i < end && query.charAt(i) != '%' && query.charAt(i) != '+') {
+			i++;
+		}
+		if (i == end) {
+			return query.substring(start, end);
+		}
+		try {
+			return URLDecoder.decode(query.substring(start, end), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package akkabased;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a ring of pre-allocated slots through which any number of producers hand orders to a single
+ * consumer, without allocating or locking. a producer claims the next sequence, fills in its slot
+ * and publishes it. the consumer applies published slots in sequence order and releases them,
+ * after which producers may reuse them. this is the handoff of the LMAX disruptor, see
+ * {@link RingEngine}.
+ */
+public class OrderRing {
+
+	public static final byte SALES_ORDER = 1;
+	public static final byte PURCHASE_ORDER = 2;
+	public static final byte CANCELLATION = 3;
+	public static final byte AMENDMENT = 4;
+
+	/**
+	 * an order, cancellation or amendment. only to be written by the producer which claimed it,
+	 * before publishing it, and only to be read by the consumer, before releasing it.
+	 */
+	public static class Slot {
+		byte type;
+		int participant;
+		String userId;
+		int productId;
+		int quantity;
+		long price;
+		int id;
+		long timeToLive;
+
+		public void sell(int participant, String userId, int productId, int quantity, long price, int id, long timeToLive) {
+			set(SALES_ORDER, participant, userId, productId, quantity, price, id, timeToLive);
+		}
+
+		public void buy(int participant, String userId, int productId, int quantity, int id, long timeToLive) {
+			set(PURCHASE_ORDER, participant, userId, productId, quantity, 0, id, timeToLive);
+		}
+
+		public void cancel(int participant, int productId, int id) {
+			set(CANCELLATION, participant, null, productId, 0, 0, id, 0);
+		}
+
+		public void amend(int participant, int productId, int id, int quantity, long price) {
+			set(AMENDMENT, participant, null, productId, quantity, price, id, 0);
+		}
+
+		private void set(byte type, int participant, String userId, int productId, int quantity, long price, int id, long timeToLive) {
+			this.type = type;
+			this.participant = participant;
+			this.userId = userId;
+			this.productId = productId;
+			this.quantity = quantity;
+			this.price = price;
+			this.id = id;
+			this.timeToLive = timeToLive;
+		}
+	}
+
+	private final int mask;
+	private final Slot[] slots;
+	/** indexed like the slots, the sequence last published in each */
+	private final AtomicLongArray published;
+	/** the last sequence claimed by a producer */
+	private final AtomicLong claimed = new AtomicLong(-1);
+	/** the last sequence released by the consumer */
+	private final AtomicLong released = new AtomicLong(-1);
+
+	/** @param capacity rounded up to a power of two */
+	public OrderRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+		slots = new Slot[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+			published.set(i, -1);
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/** @return the number of slots claimed but not yet released */
+	public int size() {
+		return (int) (claimed.get() - released.get());
+	}
+
+	/** @return the claimed sequence, or -1 if the ring is full */
+	public long tryClaim() {
+		long current;
+		do {
+			current = claimed.get();
+			if (current + 1 - slots.length > released.get()) {
+				return -1;
+			}
+		} while (!claimed.compareAndSet(current, current + 1));
+		return current + 1;
+	}
+
+	public Slot get(long sequence) {
+		return slots[(int) sequence & mask];
+	}
+
+	/** hands the filled in slot to the consumer */
+	public void publish(long sequence) {
+		published.lazySet((int) sequence & mask, sequence);
+	}
+
+	/**
+	 * only to be called by the consumer.
+	 *
+	 * @return the last of at most max sequences from the given one on which have been published
+	 *         without a gap, or from - 1 if the given one hasn't been published yet
+	 */
+	public long available(long from, int max) {
+		long last = from - 1;
+		while (last + 1 - from < max && published.get((int) (last + 1) & mask) == last + 1) {
+			last++;
+		}
+		return last;
+	}
+
+	/** only to be called by the consumer, once it is done with all slots up to the given sequence */
+	public void release(long sequence) {
+		released.lazySet(sequence);
+	}
+}
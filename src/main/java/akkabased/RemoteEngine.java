@@ -0,0 +1,96 @@
+package akkabased;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.japi.pf.ReceiveBuilder;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+
+/**
+ * stands in for the engine of an {@link EngineNode}, so that requests can be routed to it, and its
+ * owner can move products to and from it just as it does with local engine actors. messages are relayed over
+ * the nodes connection, see {@link WireFormat}. the actor stops when the connection closes, which
+ * tells its parent that the node has left.
+ */
+class RemoteEngine extends AbstractActor {
+
+	private static final Logger LOGGER = LogManager.getLogger(RemoteEngine.class);
+
+	private final int partition;
+	/** shared with the parent, which counts messages in, while this counts them out as the node reports progress */
+	private final AtomicInteger queued;
+	private final WireFormat.Outbox outbox;
+	private final WireFormat.Decoder decoder = new WireFormat.Decoder();
+	/** where the books which the node was told to export should go, by product */
+	private final Map<Integer, ActorRef> exportTargets = new HashMap<>();
+	private long processed;
+
+	@SuppressWarnings("unused") //used implicitly by akka
+	public RemoteEngine(ActorRef connection, int partition, AtomicInteger queued) {
+		this.partition = partition;
+		this.queued = queued;
+		this.outbox = new WireFormat.Outbox(connection, self());
+		//registering first makes sure that the connection doesn't receive writes before it
+		connection.tell(TcpMessage.register(self()), self());
+		outbox.send(new WireFormat.Welcome(partition));
+
+		receive(ReceiveBuilder
+			.match(SalesOrder.class, outbox::send)
+			.match(PurchaseOrder.class, outbox::send)
+			.match(Cancellation.class, outbox::send)
+			.match(Amendment.class, outbox::send)
+			.match(Main.OrderBatch.class, b -> b.orders.forEach(outbox::send))
+			.match(Main.AwaitBook.class, outbox::send)
+			.match(BookTransfer.class, outbox::send)
+			.match(Main.ExportBook.class, e -> {
+				exportTargets.put(e.productId, e.target);
+				outbox.send(new WireFormat.ExportBookRequest(e.productId));
+			}).match(Tcp.Received.class, r -> {
+				decoder.decode(r.data(), this::onMessageFromNode);
+			}).match(Tcp.Event.class, e -> e == WireFormat.ACK, e -> {
+				outbox.acknowledged();
+			}).match(Tcp.ConnectionClosed.class, c -> {
+				LOGGER.warn("lost engine node " + partition + ": " + c);
+				getContext().stop(self());
+			}).match(Tcp.CommandFailed.class, f -> {
+				LOGGER.error("failed to send to engine node " + partition + ": " + f);
+				getContext().stop(self());
+			}).matchAny(o -> {
+				LOGGER.error("received unknown message in remote engine " + o);
+			}).build());
+	}
+
+	private void onMessageFromNode(Object message) {
+		if(message instanceof BookTransfer){
+			BookTransfer transfer = (BookTransfer) message;
+			ActorRef target = exportTargets.remove(transfer.getProductId());
+			if(target != null){
+				target.tell(transfer, self());
+			}else{
+				LOGGER.error("engine node " + partition + " exported a book nobody asked for: " + transfer);
+			}
+		}else if(message instanceof MarketSnapshots.Published){
+			MarketSnapshots.publish((MarketSnapshots.Published) message);
+		}else if(message instanceof Main.EngineLoad){
+			//the node counts what it has processed, so the backlog shrinks by what it processed since its last report
+			Main.EngineLoad load = (Main.EngineLoad) message;
+			queued.addAndGet((int) -(load.processed - processed));
+			processed = load.processed;
+			getContext().parent().tell(message, self());
+		}else{
+			getContext().parent().tell(message, self());
+		}
+	}
+}
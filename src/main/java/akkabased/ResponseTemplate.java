@@ -0,0 +1,52 @@
+package akkabased;
+
+import java.nio.charset.StandardCharsets;
+
+import scala.collection.immutable.List;
+import spray.http.ContentTypes;
+import spray.http.HttpEntity$;
+import spray.http.HttpHeader;
+import spray.http.HttpProtocols;
+import spray.http.HttpResponse;
+import spray.http.StatusCode;
+
+/**
+ * a JSON response around a single number, eg "{msg: 'ok', id: 42}", whose body is encoded once
+ * up front, so that each response just copies the bytes either side of the number and writes its
+ * digits in between, without formatting or encoding a string.
+ */
+final class ResponseTemplate {
+
+	private final StatusCode status;
+	private final List<HttpHeader> headers;
+	private final byte[] prefix;
+	private final byte[] suffix;
+
+	ResponseTemplate(StatusCode status, List<HttpHeader> headers, String prefix, String suffix) {
+		this.status = status;
+		this.headers = headers;
+		this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+		this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+	}
+
+	HttpResponse with(long number) {
+		int digits = 1;
+		for (long n = Math.abs(number / 10); n > 0; n /= 10) {
+			digits++;
+		}
+		int sign = number < 0 ? 1 : 0;
+		byte[] body = new byte[prefix.length + sign + digits + suffix.length];
+		System.arraycopy(prefix, 0, body, 0, prefix.length);
+		if (sign > 0) {
+			body[prefix.length] = '-';
+		}
+		int end = prefix.length + sign + digits;
+		long n = number;
+		for (int i = end - 1; i >= prefix.length + sign; i--) {
+			body[i] = (byte) ('0' + Math.abs(n % 10));
+			n /= 10;
+		}
+		System.arraycopy(suffix, 0, body, end, suffix.length);
+		return new HttpResponse(status, HttpEntity$.MODULE$.apply(ContentTypes.application$divjson(), body), headers, HttpProtocols.HTTP$div1$u002E1());
+	}
+}
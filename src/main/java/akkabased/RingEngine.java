@@ -0,0 +1,175 @@
+package akkabased;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.Sale;
+import ch.maxant.tradingengine.model.SalesOrder;
+import ch.maxant.tradingengine.model.TradingEngine;
+import ch.maxant.tradingengine.model.TradingEngine.EventType;
+import ch.maxant.tradingengine.model.TradingEngine.Listener;
+
+/**
+ * the alternative to the engine actors, see {@link Main#RUNTIME}. a thread of its own applies the
+ * orders published in its {@link OrderRing}, in batches of up to {@link Main#MAX_BATCH_SIZE}, and
+ * runs the sittings of its engine in between. nothing is allocated to hand an order over.
+ */
+public class RingEngine implements EngineLoop, Runnable, Listener {
+
+	private static final Logger LOGGER = LogManager.getLogger(RingEngine.class);
+
+	/** how many times an idle engine polls its ring before yielding, unless it spins */
+	private static final int SPINS_BEFORE_YIELDING = 100;
+
+	private final int partition;
+	private final OrderRing ring;
+	private final boolean busySpin;
+	private final TradingEngine engine;
+	private final Thread thread;
+	private volatile boolean running = true;
+	/** set once the previous sitting is complete, see {@link #onEvent} */
+	private boolean sittingDue = true;
+	private long nextSittingAt;
+	/** set by the database's thread once the sales of the sitting are persisted, see {@link #onEvent} */
+	private volatile boolean persisted;
+	/** written before {@link #persisted} is set, so read after it */
+	private Throwable persistenceFailure;
+	/** the next sequence to apply */
+	private long next;
+	private volatile long processed;
+
+	/**
+	 * @param busySpin
+	 *            true to poll the ring without ever giving up the core, which is best when the
+	 *            engine is pinned to a core of its own. otherwise the engine yields when idle.
+	 */
+	public RingEngine(int partition, int capacity, boolean busySpin) {
+		this.partition = partition;
+		this.ring = new OrderRing(capacity);
+		this.busySpin = busySpin;
+		this.engine = new TradingEngine(Main.DELAY, Constants.TIMEOUT, this, Main.MATCHING_MODE, Main.MATCHING_POOL);
+		this.thread = new Thread(this, "engine-" + partition);
+	}
+
+	@Override
+	public void start() {
+		LOGGER.info("starting engine " + partition + " with a ring of " + ring.getCapacity() + " slots");
+		thread.start();
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+	}
+
+	public OrderRing getRing() {
+		return ring;
+	}
+
+	@Override
+	public long getProcessed() {
+		return processed;
+	}
+
+	/** copies the given order, cancellation or amendment into the ring */
+	@Override
+	public boolean offer(Object message) {
+		long sequence = ring.tryClaim();
+		if (sequence < 0) {
+			return false;
+		}
+		OrderRing.Slot slot = ring.get(sequence);
+		if (message instanceof SalesOrder) {
+			SalesOrder so = (SalesOrder) message;
+			slot.sell(so.getParticipant(), so.getUserId(), so.getProductId(), so.getRemainingQuantity(), so.getPrice(), so.getId(), so.getTimeToLive());
+		} else if (message instanceof PurchaseOrder) {
+			PurchaseOrder po = (PurchaseOrder) message;
+			slot.buy(po.getParticipant(), po.getUserId(), po.getProductId(), po.getRemainingQuantity(), po.getId(), po.getTimeToLive());
+		} else if (message instanceof Cancellation) {
+			Cancellation c = (Cancellation) message;
+			slot.cancel(c.getParticipant(), c.getProductId(), c.getId());
+		} else if (message instanceof Amendment) {
+			Amendment a = (Amendment) message;
+			slot.amend(a.getParticipant(), a.getProductId(), a.getId(), a.getQuantity(), a.getPrice());
+		}
+		ring.publish(sequence);
+		return true;
+	}
+
+	@Override
+	public void run() {
+		int idle = 0;
+		while (running) {
+			long last = ring.available(next, Main.MAX_BATCH_SIZE);
+			if (last >= next) {
+				for (long sequence = next; sequence <= last; sequence++) {
+					apply(ring.get(sequence));
+				}
+				ring.release(last);
+				processed += last - next + 1;
+				next = last + 1;
+				idle = 0;
+			} else if (!busySpin && ++idle > SPINS_BEFORE_YIELDING) {
+				Thread.yield();
+			}
+			if (persisted) {
+				// completes the sitting on this thread, rather than the database's
+				persisted = false;
+				engine.onPersisted(persistenceFailure);
+			}
+			if (sittingDue && System.currentTimeMillis() >= nextSittingAt) {
+				sittingDue = false;
+				engine.run();
+			}
+		}
+		LOGGER.info("stopped engine " + partition);
+	}
+
+	private void apply(OrderRing.Slot slot) {
+		switch (slot.type) {
+		case OrderRing.SALES_ORDER:
+			engine.addSalesOrder(slot.participant, slot.userId, slot.productId, slot.quantity, slot.price, slot.id, slot.timeToLive);
+			break;
+		case OrderRing.PURCHASE_ORDER:
+			engine.addPurchaseOrder(slot.participant, slot.userId, slot.productId, slot.quantity, slot.id, slot.timeToLive);
+			break;
+		case OrderRing.CANCELLATION:
+			engine.cancel(slot.participant, slot.productId, slot.id);
+			break;
+		case OrderRing.AMENDMENT:
+			engine.amend(slot.participant, slot.productId, slot.id, slot.quantity, slot.price);
+			break;
+		default:
+			LOGGER.error("unknown slot type " + slot.type + " in engine " + partition);
+		}
+	}
+
+	@Override
+	public void onEvent(EventType type, Object data) {
+
+		if (EventType.SALE.equals(type)) {
+			Main.onSale((Sale) data);
+		}
+
+		if (EventType.STATS.equals(type)) {
+			MarketFeed.onStats(data);
+			MarketSnapshots.onStats(data);
+		}
+
+		// the only event raised on the database's thread, see run
+		if (EventType.PERSISTED.equals(type)) {
+			persistenceFailure = (Throwable) data;
+			persisted = true;
+		}
+
+		// time to rerun the market, once the delay has passed
+		if (EventType.STOPPED.equals(type)) {
+			nextSittingAt = System.currentTimeMillis() + engine.getDelay();
+			sittingDue = true;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package akkabased;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.Sale;
+import ch.maxant.tradingengine.model.TradingEngine;
+import ch.maxant.tradingengine.model.TradingEngine.EventType;
+import ch.maxant.tradingengine.model.TradingEngine.Listener;
+
+/**
+ * an engine which runs as a plain loop on a thread of its own, see {@link Main#RUNTIME}. it takes
+ * orders from a bounded queue, waiting for them until the next sitting is due, and persists the
+ * sales of each sitting with blocking calls, see {@link TradingEngine#setBlockingPersistence(boolean)}.
+ * the thread is virtual if the JDK has virtual threads, ie from JDK 21, in which case all the
+ * waiting merely parks it, so that the loop is as simple as if it had a platform thread to itself,
+ * without costing one. on older JDKs, the loop does get a platform thread to itself, see
+ * {@link #VIRTUAL_THREADS}.
+ */
+public class VirtualThreadEngine implements EngineLoop, Listener {
+
+	private static final Logger LOGGER = LogManager.getLogger(VirtualThreadEngine.class);
+
+	/** true if the JDK has virtual threads, otherwise engines run on platform threads */
+	static final boolean VIRTUAL_THREADS = hasVirtualThreads();
+
+	private final int partition;
+	private final BlockingQueue<Object> queue;
+	private final TradingEngine engine;
+	private volatile boolean running = true;
+	private Thread thread;
+	/** only used by the engines thread, since persistence blocks it */
+	private long nextSittingAt;
+	private volatile long processed;
+
+	public VirtualThreadEngine(int partition, int capacity) {
+		this.partition = partition;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.engine = new TradingEngine(Main.DELAY, Constants.TIMEOUT, this, Main.MATCHING_MODE, Main.MATCHING_POOL);
+		this.engine.setBlockingPersistence(true);
+	}
+
+	@Override
+	public void start() {
+		thread = startVirtualThread("engine-" + partition, this::run);
+		LOGGER.info("started engine " + partition + " on a " + threadKind() + " thread");
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	@Override
+	public boolean offer(Object message) {
+		return queue.offer(message);
+	}
+
+	@Override
+	public long getProcessed() {
+		return processed;
+	}
+
+	private void run() {
+		List<Object> batch = new ArrayList<>(Main.MAX_BATCH_SIZE);
+		try {
+			while (running) {
+				long wait = nextSittingAt - System.currentTimeMillis();
+				Object message = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+				if (message != null) {
+					batch.add(message);
+					queue.drainTo(batch, Main.MAX_BATCH_SIZE - 1);
+					for (int i = 0; i < batch.size(); i++) {
+						Main.apply(engine, batch.get(i));
+					}
+					processed += batch.size();
+					batch.clear();
+				}
+				if (System.currentTimeMillis() >= nextSittingAt) {
+					// blocks until the sales are persisted, see onEvent
+					engine.run();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info("stopped engine " + partition);
+	}
+
+	@Override
+	public void onEvent(EventType type, Object data) {
+
+		if (EventType.SALE.equals(type)) {
+			Main.onSale((Sale) data);
+		}
+
+		if (EventType.STATS.equals(type)) {
+			MarketFeed.onStats(data);
+			MarketSnapshots.onStats(data);
+		}
+
+		// in either mode, take orders until the delay has passed, then rerun the market
+		if (EventType.STOPPED.equals(type)) {
+			nextSittingAt = System.currentTimeMillis() + engine.getDelay();
+		}
+	}
+
+	/** @return "virtual" or "platform", depending on the kind of thread which the engines run on */
+	static String threadKind() {
+		return VIRTUAL_THREADS ? "virtual" : "platform";
+	}
+
+	/** the build targets Java 8, so virtual threads can only be found reflectively */
+	private static boolean hasVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			LOGGER.warn("virtual threads need JDK 21 or later, so engines get platform threads");
+			return false;
+		}
+	}
+
+	/** starts a virtual thread, if the JDK has them, otherwise a platform thread */
+	static Thread startVirtualThread(String name, Runnable task) {
+		if (VIRTUAL_THREADS) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				return (Thread) builderClass.getMethod("start", Runnable.class).invoke(builder, task);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("failed to start a virtual thread", e);
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,419 @@
+package akkabased;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import akka.actor.ActorRef;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.util.ByteString;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookSnapshot;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.OrderStatus;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+import ch.maxant.tradingengine.model.VolumeStatistics;
+import ch.maxant.tradingengine.model.TradingEngine.MarketPrice;
+
+/**
+ * the compact binary frames in which the HTTP node and its engine nodes talk, see
+ * {@link EngineNode}. a frame is the length of the rest of it, a type, and the fields of the
+ * message, big endian. strings are UTF-8 preceded by their length. participant handles only mean
+ * something within a JVM, so orders carry their user ID and are interned again on arrival.
+ */
+public class WireFormat {
+
+	private static final byte SALES_ORDER = 1;
+	private static final byte PURCHASE_ORDER = 2;
+	private static final byte CANCELLATION = 3;
+	private static final byte AMENDMENT = 4;
+	private static final byte WELCOME = 5;
+	private static final byte AWAIT_BOOK = 6;
+	private static final byte EXPORT_BOOK = 7;
+	private static final byte BOOK = 8;
+	private static final byte BOOK_IMPORTED = 9;
+	private static final byte ENGINE_LOAD = 10;
+	private static final byte SNAPSHOTS = 11;
+
+	/** tells a node which partition its engine is */
+	static class Welcome {
+		final int partition;
+
+		Welcome(int partition) {
+			this.partition = partition;
+		}
+	}
+
+	/** tells a node to send the book of the product back, which {@link Main.ExportBook} does locally */
+	static class ExportBookRequest {
+		final int productId;
+
+		ExportBookRequest(int productId) {
+			this.productId = productId;
+		}
+	}
+
+	/** acknowledges a write, see {@link Outbox} */
+	private static final class Ack implements Tcp.Event {
+	}
+
+	static final Tcp.Event ACK = new Ack();
+
+	/**
+	 * writes frames to a connection, one write at a time. frames sent while a write is under way
+	 * are collected, and written together once it is acknowledged with {@link WireFormat#ACK}.
+	 */
+	static class Outbox {
+		private final ActorRef connection;
+		private final ActorRef owner;
+		private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		private boolean writing;
+
+		Outbox(ActorRef connection, ActorRef owner) {
+			this.connection = connection;
+			this.owner = owner;
+		}
+
+		void send(Object message) {
+			int start = buffer.position();
+			ensure(4);
+			buffer.putInt(0);
+			encode(message);
+			buffer.putInt(start, buffer.position() - start - 4);
+			if (!writing) {
+				flush();
+			}
+		}
+
+		/** to be called when the owner receives {@link WireFormat#ACK} */
+		void acknowledged() {
+			writing = false;
+			if (buffer.position() > 0) {
+				flush();
+			}
+		}
+
+		private void flush() {
+			buffer.flip();
+			connection.tell(TcpMessage.write(ByteString.fromByteBuffer(buffer), ACK), owner);
+			buffer.clear();
+			writing = true;
+		}
+
+		private void encode(Object message) {
+			if (message instanceof SalesOrder) {
+				SalesOrder so = (SalesOrder) message;
+				putByte(SALES_ORDER);
+				putSalesOrder(so);
+			} else if (message instanceof PurchaseOrder) {
+				PurchaseOrder po = (PurchaseOrder) message;
+				putByte(PURCHASE_ORDER);
+				putPurchaseOrder(po);
+			} else if (message instanceof Cancellation) {
+				Cancellation c = (Cancellation) message;
+				putByte(CANCELLATION);
+				putInt(c.getProductId());
+				putInt(c.getId());
+				putString(c.getUserId());
+			} else if (message instanceof Amendment) {
+				Amendment a = (Amendment) message;
+				putByte(AMENDMENT);
+				putInt(a.getProductId());
+				putInt(a.getId());
+				putInt(a.getQuantity());
+				putLong(a.getPrice());
+				putString(a.getUserId());
+			} else if (message instanceof Welcome) {
+				putByte(WELCOME);
+				putInt(((Welcome) message).partition);
+			} else if (message instanceof Main.AwaitBook) {
+				putByte(AWAIT_BOOK);
+				putInt(((Main.AwaitBook) message).productId);
+			} else if (message instanceof ExportBookRequest) {
+				putByte(EXPORT_BOOK);
+				putInt(((ExportBookRequest) message).productId);
+			} else if (message instanceof BookTransfer) {
+				BookTransfer t = (BookTransfer) message;
+				putByte(BOOK);
+				putInt(t.getProductId());
+				MarketPrice price = t.getMarketPrice();
+				putByte((byte) (price == null ? 0 : 1));
+				if (price != null) {
+					putLong(price.getPrice());
+					putLong(price.getTimestamp());
+				}
+				VolumeStatistics.Window volume = t.getVolume();
+				putByte((byte) (volume == null ? 0 : 1));
+				if (volume != null) {
+					putLong(volume.getHead());
+					putInt(volume.getQuantities().length);
+					for (int i = 0; i < volume.getQuantities().length; i++) {
+						putInt(volume.getQuantities()[i]);
+						putLong(volume.getTurnovers()[i]);
+						putInt(volume.getCounts()[i]);
+					}
+				}
+				putInt(t.getSalesOrders().size());
+				t.getSalesOrders().forEach(this::putSalesOrder);
+				putInt(t.getPurchaseOrders().size());
+				t.getPurchaseOrders().forEach(this::putPurchaseOrder);
+			} else if (message instanceof Main.BookImported) {
+				putByte(BOOK_IMPORTED);
+				putInt(((Main.BookImported) message).productId);
+			} else if (message instanceof Main.EngineLoad) {
+				Main.EngineLoad load = (Main.EngineLoad) message;
+				putByte(ENGINE_LOAD);
+				putInt(load.partition);
+				putLong(load.processed);
+				putLong(load.sittingMillis);
+				putInt(load.batches);
+				putLong(load.batched);
+				putInt(load.largestBatch);
+			} else if (message instanceof MarketSnapshots.Published) {
+				MarketSnapshots.Published published = (MarketSnapshots.Published) message;
+				putByte(SNAPSHOTS);
+				putInt(published.books.length);
+				for (BookSnapshot book : published.books) {
+					putBook(book);
+				}
+				putInt(published.statuses.size());
+				published.statuses.forEach(this::putStatus);
+			} else {
+				throw new IllegalArgumentException("cannot encode " + message);
+			}
+		}
+
+		private void putBook(BookSnapshot book) {
+			putInt(book.getProductId());
+			putInt(book.getDepth());
+			for (int level = 0; level < book.getDepth(); level++) {
+				putLong(book.getPrice(level));
+				putLong(book.getQuantity(level));
+				putInt(book.getNumberOfOrders(level));
+			}
+			putInt(book.getNumberOfSalesOrders());
+			putLong(book.getSalesQuantity());
+			putInt(book.getNumberOfPurchaseOrders());
+			putLong(book.getPurchaseQuantity());
+			putLong(book.getLastPrice());
+			putLong(book.getLastPriceTimestamp());
+			putLong(book.getAsOf());
+		}
+
+		private void putStatus(OrderStatus status) {
+			putInt(status.getId());
+			putInt(status.getProductId());
+			putByte((byte) (status.isSale() ? 1 : 0));
+			putByte((byte) status.getState().ordinal());
+			putInt(status.getOriginalQuantity());
+			putInt(status.getRemainingQuantity());
+			putLong(status.getPrice());
+			putLong(status.getAsOf());
+		}
+
+		private void putSalesOrder(SalesOrder so) {
+			putInt(so.getId());
+			putInt(so.getProductId());
+			putInt(so.getRemainingQuantity());
+			putLong(so.getPrice());
+			putLong(so.getTimeToLive());
+			putString(so.getUserId());
+		}
+
+		private void putPurchaseOrder(PurchaseOrder po) {
+			putInt(po.getId());
+			putInt(po.getProductId());
+			putInt(po.getRemainingQuantity());
+			putLong(po.getMaximumAcceptedPrice());
+			putLong(po.getTimeToLive());
+			putString(po.getUserId());
+		}
+
+		private void putByte(byte b) {
+			ensure(1);
+			buffer.put(b);
+		}
+
+		private void putInt(int i) {
+			ensure(4);
+			buffer.putInt(i);
+		}
+
+		private void putLong(long l) {
+			ensure(8);
+			buffer.putLong(l);
+		}
+
+		private void putString(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			ensure(2 + bytes.length);
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		}
+
+		private void ensure(int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+		}
+	}
+
+	/** turns the bytes received from a connection back into messages, however they were split */
+	static class Decoder {
+		private static final OrderStatus.State[] STATES = OrderStatus.State.values();
+
+		private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		void decode(ByteString data, Consumer<Object> messages) {
+			if (buffer.remaining() < data.size()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + data.size()));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			data.copyToBuffer(buffer);
+			buffer.flip();
+			while (buffer.remaining() >= 4 && buffer.remaining() >= 4 + buffer.getInt(buffer.position())) {
+				int end = buffer.position() + 4 + buffer.getInt();
+				messages.accept(read());
+				buffer.position(end);
+			}
+			buffer.compact();
+		}
+
+		private Object read() {
+			byte type = buffer.get();
+			switch (type) {
+			case SALES_ORDER:
+				return readSalesOrder();
+			case PURCHASE_ORDER:
+				return readPurchaseOrder();
+			case CANCELLATION:
+				return readCancellation();
+			case AMENDMENT:
+				return readAmendment();
+			case WELCOME:
+				return new Welcome(buffer.getInt());
+			case AWAIT_BOOK:
+				return new Main.AwaitBook(buffer.getInt());
+			case EXPORT_BOOK:
+				return new ExportBookRequest(buffer.getInt());
+			case BOOK:
+				int productId = buffer.getInt();
+				MarketPrice price = buffer.get() == 0 ? null : new MarketPrice(productId, buffer.getLong(), buffer.getLong());
+				BookTransfer transfer = new BookTransfer(productId, price, buffer.get() == 0 ? null : readVolume());
+				for (int i = buffer.getInt(); i > 0; i--) {
+					transfer.getSalesOrders().add(readSalesOrder());
+				}
+				for (int i = buffer.getInt(); i > 0; i--) {
+					transfer.getPurchaseOrders().add(readPurchaseOrder());
+				}
+				return transfer;
+			case BOOK_IMPORTED:
+				return new Main.BookImported(buffer.getInt());
+			case ENGINE_LOAD:
+				return new Main.EngineLoad(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getInt());
+			case SNAPSHOTS:
+				BookSnapshot[] books = new BookSnapshot[buffer.getInt()];
+				for (int i = 0; i < books.length; i++) {
+					books[i] = readBook();
+				}
+				int numberOfStatuses = buffer.getInt();
+				List<OrderStatus> statuses = new ArrayList<>(numberOfStatuses);
+				for (int i = 0; i < numberOfStatuses; i++) {
+					statuses.add(readStatus());
+				}
+				return new MarketSnapshots.Published(books, statuses);
+			default:
+				throw new IllegalArgumentException("unknown frame type " + type);
+			}
+		}
+
+		private SalesOrder readSalesOrder() {
+			int id = buffer.getInt();
+			int productId = buffer.getInt();
+			int quantity = buffer.getInt();
+			SalesOrder so = new SalesOrder(buffer.getLong(), productId, quantity, id);
+			so.setTimeToLive(buffer.getLong());
+			so.setUserId(readString());
+			so.setParticipant(Participants.intern(so.getUserId()));
+			return so;
+		}
+
+		private PurchaseOrder readPurchaseOrder() {
+			int id = buffer.getInt();
+			int productId = buffer.getInt();
+			int quantity = buffer.getInt();
+			PurchaseOrder po = new PurchaseOrder(productId, quantity, buffer.getLong(), id);
+			po.setTimeToLive(buffer.getLong());
+			po.setUserId(readString());
+			po.setParticipant(Participants.intern(po.getUserId()));
+			return po;
+		}
+
+		private BookSnapshot readBook() {
+			int productId = buffer.getInt();
+			int depth = buffer.getInt();
+			long[] prices = new long[depth];
+			long[] quantities = new long[depth];
+			int[] orders = new int[depth];
+			for (int level = 0; level < depth; level++) {
+				prices[level] = buffer.getLong();
+				quantities[level] = buffer.getLong();
+				orders[level] = buffer.getInt();
+			}
+			return new BookSnapshot(productId, prices, quantities, orders, buffer.getInt(), buffer.getLong(),
+					buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+		}
+
+		private OrderStatus readStatus() {
+			return new OrderStatus(buffer.getInt(), buffer.getInt(), buffer.get() == 1, STATES[buffer.get()],
+					buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+		}
+
+		private VolumeStatistics.Window readVolume() {
+			long head = buffer.getLong();
+			int buckets = buffer.getInt();
+			int[] quantities = new int[buckets];
+			long[] turnovers = new long[buckets];
+			int[] counts = new int[buckets];
+			for (int i = 0; i < buckets; i++) {
+				quantities[i] = buffer.getInt();
+				turnovers[i] = buffer.getLong();
+				counts[i] = buffer.getInt();
+			}
+			return new VolumeStatistics.Window(head, quantities, turnovers, counts);
+		}
+
+		private Cancellation readCancellation() {
+			int productId = buffer.getInt();
+			int id = buffer.getInt();
+			String userId = readString();
+			return new Cancellation(productId, id, userId, Participants.intern(userId));
+		}
+
+		private Amendment readAmendment() {
+			int productId = buffer.getInt();
+			int id = buffer.getInt();
+			int quantity = buffer.getInt();
+			long price = buffer.getLong();
+			String userId = readString();
+			return new Amendment(productId, id, quantity, price, userId, Participants.intern(userId));
+		}
+
+		private String readString() {
+			byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * A request to change the order with the given ID. The product is needed in
+ * order to find the engine and book holding the order. Only the participant
+ * who entered the order may change it.
+ */
+public class Amendment extends IdModel {
+
+    /** the price of a sales order is left as it is */
+    public static final long UNCHANGED_PRICE = -1;
+
+    private int productId;
+    private int quantity;
+    private long price;
+    private String userId;
+    private int participant;
+
+    /**
+     * @param quantity
+     *            the new remaining quantity. 0 cancels the order.
+     * @param price
+     *            the new price of a sales order in ticks (see {@link Prices}),
+     *            or {@link #UNCHANGED_PRICE}. ignored for purchase orders.
+     * @param participant
+     *            the handle of the user, see {@link Participants}
+     */
+    public Amendment(int productId, int id, int quantity, long price, String userId, int participant) {
+	this.productId = productId;
+	this.quantity = quantity;
+	this.price = price;
+	this.userId = userId;
+	this.participant = participant;
+	setId(id);
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    public int getQuantity() {
+	return quantity;
+    }
+
+    public long getPrice() {
+	return price;
+    }
+
+    public String getUserId() {
+	return userId;
+    }
+
+    public int getParticipant() {
+	return participant;
+    }
+
+}
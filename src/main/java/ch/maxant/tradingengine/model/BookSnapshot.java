@@ -0,0 +1,100 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * The best price levels of a product's book and its last price, as an engine
+ * published them, see {@link TradingEngine.EventType#STATS}. A snapshot never
+ * changes, so any thread may read it. Since buyers pay the market price, the
+ * buy side has no levels, just the number of orders and the quantity wanted.
+ */
+public final class BookSnapshot {
+
+    private final int productId;
+    /** indexed by level, cheapest first */
+    private final long[] prices;
+    private final long[] quantities;
+    private final int[] orders;
+    private final int numberOfSalesOrders;
+    private final long salesQuantity;
+    private final int numberOfPurchaseOrders;
+    private final long purchaseQuantity;
+    private final long lastPrice;
+    private final long lastPriceTimestamp;
+    private final long asOf;
+
+    /** see the getters, eg to rebuild a snapshot published by another JVM */
+    public BookSnapshot(int productId, long[] prices, long[] quantities, int[] orders, int numberOfSalesOrders,
+	    long salesQuantity, int numberOfPurchaseOrders, long purchaseQuantity, long lastPrice,
+	    long lastPriceTimestamp, long asOf) {
+	this.productId = productId;
+	this.prices = prices;
+	this.quantities = quantities;
+	this.orders = orders;
+	this.numberOfSalesOrders = numberOfSalesOrders;
+	this.salesQuantity = salesQuantity;
+	this.numberOfPurchaseOrders = numberOfPurchaseOrders;
+	this.purchaseQuantity = purchaseQuantity;
+	this.lastPrice = lastPrice;
+	this.lastPriceTimestamp = lastPriceTimestamp;
+	this.asOf = asOf;
+    }
+
+    /** @return the snapshot of a book which nobody has used yet */
+    public static BookSnapshot empty(int productId) {
+	return new BookSnapshot(productId, new long[0], new long[0], new int[0], 0, 0, 0, 0, -1, 0, 0);
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    /** @return the number of price levels in this snapshot */
+    public int getDepth() {
+	return prices.length;
+    }
+
+    /** @return the price in ticks of the given level, where 0 is the cheapest */
+    public long getPrice(int level) {
+	return prices[level];
+    }
+
+    /** @return the quantity on offer at the given level */
+    public long getQuantity(int level) {
+	return quantities[level];
+    }
+
+    /** @return the number of sales orders at the given level */
+    public int getNumberOfOrders(int level) {
+	return orders[level];
+    }
+
+    public int getNumberOfSalesOrders() {
+	return numberOfSalesOrders;
+    }
+
+    public long getSalesQuantity() {
+	return salesQuantity;
+    }
+
+    public int getNumberOfPurchaseOrders() {
+	return numberOfPurchaseOrders;
+    }
+
+    public long getPurchaseQuantity() {
+	return purchaseQuantity;
+    }
+
+    /** @return the price in ticks of the last sale, or -1 if there hasn't been one */
+    public long getLastPrice() {
+	return lastPrice;
+    }
+
+    public long getLastPriceTimestamp() {
+	return lastPriceTimestamp;
+    }
+
+    /** @return when the engine published this snapshot, in milliseconds since the epoch, or 0 if it never has */
+    public long getAsOf() {
+	return asOf;
+    }
+
+}
@@ -0,0 +1,58 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.maxant.tradingengine.model.TradingEngine.MarketPrice;
+
+/**
+ * The resting orders of a single product, as exported by one engine so that
+ * another can take over the product, see {@link TradingEngine#exportBook}.
+ * The orders are copies, which don't belong to any market, and are in the
+ * order in which they should be added to the new one.
+ */
+public class BookTransfer {
+
+    private int productId;
+    private List<SalesOrder> salesOrders = new ArrayList<>();
+    private List<PurchaseOrder> purchaseOrders = new ArrayList<>();
+    private MarketPrice marketPrice;
+    private VolumeStatistics.Window volume;
+
+    public BookTransfer(int productId, MarketPrice marketPrice,
+	    VolumeStatistics.Window volume) {
+	this.productId = productId;
+	this.marketPrice = marketPrice;
+	this.volume = volume;
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    public List<SalesOrder> getSalesOrders() {
+	return salesOrders;
+    }
+
+    public List<PurchaseOrder> getPurchaseOrders() {
+	return purchaseOrders;
+    }
+
+    /** @return the last known price, or null if none is known */
+    public MarketPrice getMarketPrice() {
+	return marketPrice;
+    }
+
+    /** @return the volume recently traded, or null if none is known */
+    public VolumeStatistics.Window getVolume() {
+	return volume;
+    }
+
+    @Override
+    public String toString() {
+	return "BookTransfer [productId=" + productId + ", salesOrders="
+		+ salesOrders.size() + ", purchaseOrders="
+		+ purchaseOrders.size() + "]";
+    }
+
+}
@@ -2,7 +2,6 @@ package ch.maxant.tradingengine.model;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,54 +13,111 @@ public class Buyer {
     private static final Logger LOGGER = LogManager.getLogger("buyer");
 
     private String name;
-    private List<PurchaseOrder> purchaseOrders = new ArrayList<>();
+    private int index;
+    private int participant;
+    /** indexed by product, in the order they were added, created when the first order is added */
+    private List<PurchaseOrder>[] purchaseOrders;
 
     public Listener listener;
 
     public Buyer(String name) {
+	this(name, Participants.intern(name));
+    }
+
+    /**
+     * @param participant
+     *            the handle of the given name, see {@link Participants}
+     */
+    public Buyer(String name, int participant) {
 	this.name = name;
+	this.participant = participant;
     }
 
     public String getName() {
 	return name;
     }
 
+    /** @return the handle of this buyers name, see {@link Participants} */
+    public int getParticipant() {
+	return participant;
+    }
+
+    /** @return the position at which this buyer entered the market */
+    public int getIndex() {
+	return index;
+    }
+
+    void setIndex(int index) {
+	this.index = index;
+    }
+
     public void addPurchaseOrder(PurchaseOrder purchaseOrder) {
-	LOGGER.debug(name + " adding " + purchaseOrder);
+	LOGGER.debug("{} adding {}", name, purchaseOrder);
 	purchaseOrder.setBuyer(this);
-	this.purchaseOrders.add(purchaseOrder);
+	if (this.purchaseOrders == null) {
+	    this.purchaseOrders = newProductIndex();
+	}
+	List<PurchaseOrder> pos = this.purchaseOrders[purchaseOrder.getProductId()];
+	if (pos == null) {
+	    pos = new ArrayList<>();
+	    this.purchaseOrders[purchaseOrder.getProductId()] = pos;
+	}
+	pos.add(purchaseOrder);
+    }
+
+    public boolean hasProduct(int productId) {
+	return this.purchaseOrders != null && this.purchaseOrders[productId] != null;
     }
 
     /**
      * @return {Array} all the {@link PurchaseOrder}s for the given product,
      *         where the maximum acceptable price is more than the given price
      */
-    public List<PurchaseOrder> getRelevantPurchaseOrders(String productId,
-	    double price) {
-	return this.purchaseOrders
-		.stream()
-		.filter(po -> {
-		    return po.getProductId().equals(productId)
-			    && po.getMaximumAcceptedPrice() >= price;
-		}).collect(Collectors.toList());
+    public List<PurchaseOrder> getRelevantPurchaseOrders(int productId,
+	    long price) {
+	List<PurchaseOrder> relevant = new ArrayList<>();
+	if (hasProduct(productId)) {
+	    for (PurchaseOrder po : this.purchaseOrders[productId]) {
+		if (po.getMaximumAcceptedPrice() >= price) {
+		    relevant.add(po);
+		}
+	    }
+	}
+	return relevant;
     }
 
-    public void removePurchaseOrder(PurchaseOrder purchaseOrder) {
-	this.purchaseOrders.remove(purchaseOrder);
+    /**
+     * @return the buyers purchase orders for the given product, in the order
+     *         they were added, or null if there are none. not a copy!
+     */
+    List<PurchaseOrder> getPurchaseOrders(int productId) {
+	return hasProduct(productId) ? this.purchaseOrders[productId] : null;
     }
 
-    public List<PurchaseOrder> removeOutdatedPurchaseOrders(long ageInMs) {
-	long now = System.currentTimeMillis();
-	List<PurchaseOrder> filter = this.purchaseOrders.stream()
-		.filter(po -> {
-		    return now - po.getCreated().getTime() > ageInMs;
-		}).collect(Collectors.toList());
-	this.purchaseOrders.removeAll(filter);
-	return filter;
+    public void removePurchaseOrder(PurchaseOrder purchaseOrder) {
+	int productId = purchaseOrder.getProductId();
+	if (hasProduct(productId)) {
+	    this.purchaseOrders[productId].removeIf(po -> po == purchaseOrder);
+	    if (this.purchaseOrders[productId].isEmpty()) {
+		this.purchaseOrders[productId] = null;
+	    }
+	}
     }
 
+    /** @return a copy of all of this buyers purchase orders */
     public List<PurchaseOrder> getPurchaseOrders() {
-	return purchaseOrders;
+	List<PurchaseOrder> all = new ArrayList<>();
+	for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+	    if (hasProduct(productId)) {
+		all.addAll(this.purchaseOrders[productId]);
+	    }
+	}
+	return all;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<PurchaseOrder>[] newProductIndex() {
+	return (List<PurchaseOrder>[]) new List<?>[Constants.NUM_PRODUCTS];
     }
 
     @Override
@@ -0,0 +1,37 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * A request to remove the order with the given ID from the market. The
+ * product is needed in order to find the engine and book holding the order.
+ * Only the participant who entered the order may cancel it.
+ */
+public class Cancellation extends IdModel {
+
+    private int productId;
+    private String userId;
+    private int participant;
+
+    /**
+     * @param participant
+     *            the handle of the user, see {@link Participants}
+     */
+    public Cancellation(int productId, int id, String userId, int participant) {
+	this.productId = productId;
+	this.userId = userId;
+	this.participant = participant;
+	setId(id);
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    public String getUserId() {
+	return userId;
+    }
+
+    public int getParticipant() {
+	return participant;
+    }
+
+}
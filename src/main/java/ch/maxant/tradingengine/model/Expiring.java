@@ -0,0 +1,15 @@
+package ch.maxant.tradingengine.model;
+
+/** Something which can be put into a {@link TimingWheel}. */
+public interface Expiring {
+
+    /** @return when this expires, in milliseconds since the epoch */
+    long getExpires();
+
+    /**
+     * @return true whilst this is still in the market. Once false, it is
+     *         simply dropped by the wheel the next time it is passed.
+     */
+    boolean isResting();
+
+}
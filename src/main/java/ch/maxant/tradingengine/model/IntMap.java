@@ -0,0 +1,132 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * A map of int keys to objects using open addressing with linear probing, so
+ * that looking up orders by ID neither boxes the key nor allocates an entry.
+ * Deleting shifts the following entries back, rather than leaving tombstones
+ * behind. Not thread safe.
+ */
+public class IntMap<T> {
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * @param expectedSize
+     *            how many entries are expected, before the map has to grow
+     */
+    public IntMap(int expectedSize) {
+	int capacity = 16;
+	while (capacity < expectedSize * 2) {
+	    capacity <<= 1;
+	}
+	allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+	keys = new int[capacity];
+	values = new Object[capacity];
+	mask = capacity - 1;
+	size = 0;
+    }
+
+    private static int hash(int key) {
+	int h = key * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+    /** @return the value of the given key, or null if there is none */
+    @SuppressWarnings("unchecked")
+    public T get(int key) {
+	for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+	    Object value = values[i];
+	    if (value == null) {
+		return null;
+	    }
+	    if (keys[i] == key) {
+		return (T) value;
+	    }
+	}
+    }
+
+    /** @param value may not be null */
+    public void put(int key, T value) {
+	if (value == null) {
+	    throw new IllegalArgumentException("value may not be null");
+	}
+	if ((size + 1) * 2 > values.length) {
+	    grow();
+	}
+	for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+	    if (values[i] == null) {
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		return;
+	    }
+	    if (keys[i] == key) {
+		values[i] = value;
+		return;
+	    }
+	}
+    }
+
+    /** @return the value which was removed, or null if there was none */
+    @SuppressWarnings("unchecked")
+    public T remove(int key) {
+	int i = hash(key) & mask;
+	while (true) {
+	    if (values[i] == null) {
+		return null;
+	    }
+	    if (keys[i] == key) {
+		break;
+	    }
+	    i = (i + 1) & mask;
+	}
+	T removed = (T) values[i];
+	size--;
+
+	// move back any following entries which would otherwise no longer be found
+	int gap = i;
+	for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+	    int ideal = hash(keys[j]) & mask;
+	    // the entry may only move if its ideal slot is not between the gap and itself
+	    if (((j - ideal) & mask) >= ((j - gap) & mask)) {
+		keys[gap] = keys[j];
+		values[gap] = values[j];
+		gap = j;
+	    }
+	}
+	values[gap] = null;
+	return removed;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    private void grow() {
+	int[] oldKeys = keys;
+	Object[] oldValues = values;
+	allocate(oldValues.length * 2);
+	for (int i = 0; i < oldValues.length; i++) {
+	    if (oldValues[i] != null) {
+		insert(oldKeys[i], oldValues[i]);
+	    }
+	}
+    }
+
+    private void insert(int key, Object value) {
+	int i = hash(key) & mask;
+	while (values[i] != null) {
+	    i = (i + 1) & mask;
+	}
+	keys[i] = key;
+	values[i] = value;
+	size++;
+    }
+
+}
@@ -1,14 +1,14 @@
 package ch.maxant.tradingengine.model;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
-import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,15 +27,268 @@ public class Market {
 
     private List<Seller> sellers = new ArrayList<>();
     private List<Buyer> buyers = new ArrayList<>();
-
-    private MarketInfo marketInfo;
+    /** indexed by participant handle, see {@link Participants} */
+    private Seller[] sellersByParticipant = new Seller[1024];
+    private Buyer[] buyersByParticipant = new Buyer[1024];
+    /** indexed by product, created on demand */
+    private OrderBook[] orderBooks = new OrderBook[Constants.NUM_PRODUCTS];
+
+    private MarketInfo marketInfo = new MarketInfo();
+
+    private static final int POOL_CAPACITY = 16384;
+    private Pool<SalesOrder> salesOrderPool = new Pool<>(SalesOrder::new, POOL_CAPACITY);
+    private Pool<PurchaseOrder> purchaseOrderPool = new Pool<>(PurchaseOrder::new, POOL_CAPACITY);
+
+    /** a tick of 100ms means that an expiry is ~102 seconds round */
+    private static final long EXPIRY_TICK_MS = 100;
+    private static final int EXPIRY_SLOTS = 1024;
+    private TimingWheel<SalesOrder> salesOrderExpiries = new TimingWheel<>(EXPIRY_TICK_MS, EXPIRY_SLOTS);
+    private TimingWheel<PurchaseOrder> purchaseOrderExpiries = new TimingWheel<>(EXPIRY_TICK_MS, EXPIRY_SLOTS);
+    private List<SalesOrder> expiredSalesOrders = new ArrayList<>();
+    private List<PurchaseOrder> expiredPurchaseOrders = new ArrayList<>();
+    private Consumer<SalesOrder> salesOrderExpiry = this::expire;
+    private Consumer<PurchaseOrder> purchaseOrderExpiry = this::expire;
+
+    /** reused by each sitting, see {@link #trade} */
+    private List<Sale> sales = new ArrayList<>();
+    /** reused by each parallel sitting, see {@link #trade(ForkJoinPool)} */
+    private List<ForkJoinTask<?>> tasks = new ArrayList<>();
 
     public void addSeller(Seller seller) {
+	seller.setIndex(this.sellers.size());
 	this.sellers.add(seller);
+	if (seller.getParticipant() >= sellersByParticipant.length) {
+	    sellersByParticipant = Arrays.copyOf(sellersByParticipant, Math.max(
+		    seller.getParticipant() + 1, sellersByParticipant.length * 2));
+	}
+	sellersByParticipant[seller.getParticipant()] = seller;
     }
 
     public void addBuyer(Buyer buyer) {
+	buyer.setIndex(this.buyers.size());
 	this.buyers.add(buyer);
+	if (buyer.getParticipant() >= buyersByParticipant.length) {
+	    buyersByParticipant = Arrays.copyOf(buyersByParticipant, Math.max(
+		    buyer.getParticipant() + 1, buyersByParticipant.length * 2));
+	}
+	buyersByParticipant[buyer.getParticipant()] = buyer;
+    }
+
+    /**
+     * @return the seller with the given handle (see {@link Participants}), or
+     *         null if they haven't entered the market yet
+     */
+    public Seller getSeller(int participant) {
+	return participant < sellersByParticipant.length ? sellersByParticipant[participant]
+		: null;
+    }
+
+    /**
+     * @return the buyer with the given handle (see {@link Participants}), or
+     *         null if they haven't entered the market yet
+     */
+    public Buyer getBuyer(int participant) {
+	return participant < buyersByParticipant.length ? buyersByParticipant[participant]
+		: null;
+    }
+
+    /**
+     * adds the sales order to the seller and to the order book of its product.
+     * it expires after its time to live, see {@link #removeExpiredSalesOrders}
+     */
+    public void addSalesOrder(Seller seller, SalesOrder salesOrder) {
+	rest(seller, salesOrder);
+	salesOrderExpiries.add(salesOrder);
+    }
+
+    /**
+     * adds the purchase order to the buyer and to the order book of its
+     * product. it expires after its time to live, see
+     * {@link #removeExpiredPurchaseOrders}
+     */
+    public void addPurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder) {
+	rest(buyer, purchaseOrder);
+	purchaseOrderExpiries.add(purchaseOrder);
+    }
+
+    /**
+     * adds the sales order again, after it was withdrawn and amended, see
+     * {@link #withdraw(SalesOrder)}. it is still in the timing wheel, so it
+     * expires when it originally would have.
+     */
+    public void reenter(Seller seller, SalesOrder salesOrder) {
+	rest(seller, salesOrder);
+    }
+
+    /**
+     * adds the purchase order again, after it was withdrawn and amended, see
+     * {@link #withdraw(PurchaseOrder)}. it is still in the timing wheel, so
+     * it expires when it originally would have.
+     */
+    public void reenter(Buyer buyer, PurchaseOrder purchaseOrder) {
+	rest(buyer, purchaseOrder);
+    }
+
+    private void rest(Seller seller, SalesOrder salesOrder) {
+	seller.addSalesOrder(salesOrder);
+	getOrderBook(salesOrder.getProductId()).addSalesOrder(salesOrder);
+	salesOrder.setResting(true);
+    }
+
+    private void rest(Buyer buyer, PurchaseOrder purchaseOrder) {
+	buyer.addPurchaseOrder(purchaseOrder);
+	getOrderBook(purchaseOrder.getProductId()).addPurchaseOrder(buyer, purchaseOrder);
+	purchaseOrder.setResting(true);
+    }
+
+    /**
+     * @return the sales orders which expired before now, which are no longer
+     *         in the market. the list is reused by the next call.
+     */
+    public List<SalesOrder> removeExpiredSalesOrders(long now) {
+	expiredSalesOrders.clear();
+	salesOrderExpiries.advance(now, salesOrderExpiry);
+	return expiredSalesOrders;
+    }
+
+    /**
+     * @return the purchase orders which expired before now, which are no
+     *         longer in the market. the list is reused by the next call.
+     */
+    public List<PurchaseOrder> removeExpiredPurchaseOrders(long now) {
+	expiredPurchaseOrders.clear();
+	purchaseOrderExpiries.advance(now, purchaseOrderExpiry);
+	return expiredPurchaseOrders;
+    }
+
+    private void expire(SalesOrder so) {
+	withdraw(so);
+	retire(so, OrderStatus.State.EXPIRED);
+	expiredSalesOrders.add(so);
+    }
+
+    private void expire(PurchaseOrder po) {
+	withdraw(po);
+	retire(po, OrderStatus.State.EXPIRED);
+	expiredPurchaseOrders.add(po);
+    }
+
+    /**
+     * @return the sales order with the given ID, if it is resting in the book
+     *         of the given product, otherwise null
+     */
+    public SalesOrder getSalesOrder(int productId, int id) {
+	OrderBook book = orderBooks[productId];
+	return book == null ? null : book.getSalesOrder(id);
+    }
+
+    /**
+     * @return the purchase order with the given ID, if it is resting in the
+     *         book of the given product, otherwise null
+     */
+    public PurchaseOrder getPurchaseOrder(int productId, int id) {
+	OrderBook book = orderBooks[productId];
+	return book == null ? null : book.getPurchaseOrder(id);
+    }
+
+    /** removes the resting sales order from the market for good */
+    public void cancel(SalesOrder so) {
+	withdraw(so);
+	retire(so, OrderStatus.State.CANCELLED);
+    }
+
+    /** removes the resting purchase order from the market for good */
+    public void cancel(PurchaseOrder po) {
+	withdraw(po);
+	retire(po, OrderStatus.State.CANCELLED);
+    }
+
+    /**
+     * takes the resting sales order out of the market, without retiring it,
+     * so that it can be amended and then added again
+     */
+    public void withdraw(SalesOrder so) {
+	so.getSeller().removeSalesOrder(so);
+	getOrderBook(so.getProductId()).removeSalesOrder(so);
+	so.setResting(false);
+    }
+
+    /**
+     * takes the resting purchase order out of the market, without retiring
+     * it, so that it can be amended and then added again
+     */
+    public void withdraw(PurchaseOrder po) {
+	Buyer buyer = po.getBuyer();
+	buyer.removePurchaseOrder(po);
+	getOrderBook(po.getProductId()).removePurchaseOrder(buyer, po);
+	po.setResting(false);
+    }
+
+    /** reduces the quantity of the resting sales order, which keeps its place in the book */
+    public void reduce(SalesOrder so, int quantity) {
+	so.reduceRemainingQuantity(quantity);
+	getOrderBook(so.getProductId()).reduceSalesQuantity(so, quantity);
+    }
+
+    /** reduces the quantity of the resting purchase order, which keeps its place in the book */
+    public void reduce(PurchaseOrder po, int quantity) {
+	po.reduceRemainingQuantity(quantity);
+	getOrderBook(po.getProductId()).reducePurchaseQuantity(po, quantity);
+    }
+
+    /**
+     * the order has left the market, and will be recycled, see
+     * {@link #recycle}
+     * 
+     * @param why
+     *            the order left, which its status reports from now on
+     */
+    private void retire(SalesOrder so, OrderStatus.State why) {
+	orderBooks[so.getProductId()].retire(so, why);
+    }
+
+    /** see {@link #retire(SalesOrder, OrderStatus.State)} */
+    private void retire(PurchaseOrder po, OrderStatus.State why) {
+	orderBooks[po.getProductId()].retire(po, why);
+    }
+
+    /**
+     * @return a sales order from this markets pool, which should be added to
+     *         the market
+     */
+    public SalesOrder newSalesOrder(long price, int productId, int quantity,
+	    int id) {
+	return salesOrderPool.acquire().init(price, productId, quantity, id);
+    }
+
+    /**
+     * @return a purchase order from this markets pool, which should be added
+     *         to the market
+     */
+    public PurchaseOrder newPurchaseOrder(int productId, int quantity,
+	    long maximumAcceptedPrice, int id) {
+	return purchaseOrderPool.acquire().init(productId, quantity,
+		maximumAcceptedPrice, id);
+    }
+
+    /**
+     * Returns the given sales, which are no longer needed, to the pool, along
+     * with the orders which left the market before the previous call. Sales
+     * and orders which were handed out therefore remain valid until the sitting
+     * after next, so that they can be persisted and their listeners notified.
+     */
+    public void recycle(List<Sale> sales) {
+	for (int i = 0; i < sales.size(); i++) {
+	    Sale sale = sales.get(i);
+	    orderBooks[sale.getProductId()].releaseSale(sale);
+	}
+	sales.clear();
+
+	for (OrderBook book : orderBooks) {
+	    if (book != null) {
+		book.recycle(salesOrderPool, purchaseOrderPool);
+	    }
+	}
     }
 
     /**
@@ -50,109 +303,246 @@ public class Market {
      * wait until the next trading session to find the next most suitable
      * seller.
      *
-     * @return {Array} array of {@link Sale}s in this trade
+     * The cheapest seller is found by looking at the best price level of the
+     * products {@link OrderBook}, rather than by sorting all sellers.
+     *
+     * @return {Array} array of {@link Sale}s in this trade. the list is reused
+     *         by the next sitting, see {@link #recycle}.
      */
     public List<Sale> trade() {
-	List<Sale> sales = new ArrayList<>();
-
-	Set<String> productsInMarket = getProductsInMarket();
-
-	this.collectMarketInfo();
-
-	// trade each product in succession
-	productsInMarket
-		.stream()
-		.forEach(
-			productId -> {
-
-			    MutableBoolean soldOutOfProduct = new MutableBoolean(
-				    false);
-			    LOGGER.debug("trading product " + productId);
-			    List<Buyer> buyersInterestedInProduct = getBuyersInterestedInProduct(productId);
-			    if (buyersInterestedInProduct.size() == 0) {
-				LOGGER.info("no buyers interested in product "
-					+ productId);
-			    } else {
-				buyersInterestedInProduct.forEach(buyer -> {
-				    if (soldOutOfProduct.isFalse()) {
-					LOGGER.debug("  buyer "
-						+ buyer.getName()
-						+ " is searching for product "
-						+ productId);
-					// select the cheapest seller
-					Optional<Seller> cheapestSeller = sellers
-						.stream()
-						.filter(seller -> {
-						    return seller
-							    .hasProduct(productId);
-						})
-						.sorted((s1, s2) -> Double
-							.compare(
-								s1.getCheapestSalesOrder(
-									productId)
-									.getPrice(),
-								s2.getCheapestSalesOrder(
-									productId)
-									.getPrice()))
-						.findFirst();
-					if (cheapestSeller.isPresent()) {
-					    LOGGER.debug("    cheapest seller is "
-						    + cheapestSeller.get()
-							    .getName());
-					    List<Sale> newSales = createSale(
-						    buyer,
-						    cheapestSeller.get(),
-						    productId);
-					    sales.addAll(newSales);
-					    LOGGER.debug("    sales completed");
-					} else {
-					    LOGGER.warn("    market sold out of product "
-						    + productId);
-					    soldOutOfProduct.setTrue();
-					}
-				    }
-				});
-			    }
-			});
+	return trade(null);
+    }
 
+    /**
+     * Like {@link #trade()}, but if a pool is given, each product is traded by
+     * a task of its own, since products never interact. The sales are
+     * gathered per product and then concatenated in the order of the
+     * products, so that the result is the same as when trading sequentially.
+     * This method still only returns once the sitting is complete.
+     *
+     * @param pool
+     *            on which to trade the products, or null to trade them one
+     *            after the other on the calling thread
+     */
+    public List<Sale> trade(ForkJoinPool pool) {
+	List<Sale> sales = this.sales;
+	sales.clear();
+
+	tasks.clear();
+	for (OrderBook book : orderBooks) {
+	    if (book == null) {
+		continue;
+	    }
+	    book.getSales().clear();
+	    if (!book.hasSalesOrders()) {
+		continue; // nothing on offer
+	    }
+	    if (pool == null) {
+		tradeProduct(book); // trade each product in succession
+	    } else {
+		tasks.add(pool.submit(() -> tradeProduct(book)));
+	    }
+	}
+	for (int i = 0; i < tasks.size(); i++) {
+	    tasks.get(i).join();
+	}
+	tasks.clear();
+
+	for (OrderBook book : orderBooks) {
+	    if (book != null) {
+		sales.addAll(book.getSales());
+	    }
+	}
 	return sales;
-    };
+    }
+
+    /** trades a single product, adding the sales to its book, see {@link OrderBook#getSales()} */
+    private void tradeProduct(OrderBook book) {
+	List<Sale> sales = book.getSales();
+	int productId = book.getProductId();
+	LOGGER.debug("trading product {}", productId);
+	// copy, since completed purchase orders remove their buyer
+	List<Buyer> buyersInterestedInProduct = book.copyBuyers();
+	if (buyersInterestedInProduct.size() == 0) {
+	    LOGGER.info("no buyers interested in product {}", productId);
+	} else {
+	    for (int i = 0; i < buyersInterestedInProduct.size(); i++) {
+		Buyer buyer = buyersInterestedInProduct.get(i);
+		LOGGER.debug("  buyer {} is searching for product {}",
+			buyer.getName(), productId);
+		// select the cheapest seller
+		SalesOrder cheapestSalesOrder = book.getCheapestSalesOrder();
+		if (cheapestSalesOrder != null) {
+		    Seller cheapestSeller = cheapestSalesOrder.getSeller();
+		    LOGGER.debug("    cheapest seller is {}",
+			    cheapestSeller.getName());
+		    createSale(buyer, cheapestSeller, productId, sales);
+		    LOGGER.debug("    sales completed");
+		} else {
+		    LOGGER.warn("    market sold out of product {}",
+			    productId);
+		    break;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Continuous matching: the incoming sales order is sold to the buyers
+     * already in the book for its product, in market order, so long as their
+     * purchase orders accept its price. Whatever is left over rests in the
+     * book.
+     *
+     * @param sales
+     *            to which the {@link Sale}s made immediately are added
+     */
+    public void matchSalesOrder(Seller seller, SalesOrder salesOrder,
+	    List<Sale> sales) {
+	matchSalesOrder(seller, salesOrder, sales, false);
+    }
+
+    /**
+     * @param reentering
+     *            true if the order was withdrawn and amended, so that what is
+     *            left over rests without being added to the timing wheel
+     *            again, see {@link #reenter(Seller, SalesOrder)}
+     */
+    public void matchSalesOrder(Seller seller, SalesOrder salesOrder,
+	    List<Sale> sales, boolean reentering) {
+	int productId = salesOrder.getProductId();
+	OrderBook book = getOrderBook(productId);
+	salesOrder.setSeller(seller);
+	List<Buyer> buyersInterestedInProduct = book.copyBuyers();
+	for (int i = 0; i < buyersInterestedInProduct.size()
+		&& salesOrder.getRemainingQuantity() > 0; i++) {
+	    Buyer buyer = buyersInterestedInProduct.get(i);
+	    List<PurchaseOrder> purchaseOrders = buyer.getPurchaseOrders(productId);
+	    for (int j = 0; purchaseOrders != null
+		    && j < purchaseOrders.size()
+		    && salesOrder.getRemainingQuantity() > 0;) {
+		PurchaseOrder purchaseOrder = purchaseOrders.get(j);
+		if (purchaseOrder.getMaximumAcceptedPrice() < salesOrder.getPrice()) {
+		    j++;
+		    continue;
+		}
+		sales.add(fill(buyer, purchaseOrder, seller, salesOrder));
+
+		// remove completed purchase wishes
+		if (purchaseOrder.getRemainingQuantity() == 0) {
+		    LOGGER.debug("PO complete: {}", purchaseOrder);
+		    buyer.removePurchaseOrder(purchaseOrder);
+		    book.removePurchaseOrder(buyer, purchaseOrder);
+		    retire(purchaseOrder, OrderStatus.State.FILLED);
+		} else {
+		    j++;
+		}
+	    }
+	}
+
+	if (salesOrder.getRemainingQuantity() > 0) {
+	    if (reentering) {
+		reenter(seller, salesOrder);
+	    } else {
+		addSalesOrder(seller, salesOrder);
+	    }
+	} else {
+	    LOGGER.debug("SO complete: {}", salesOrder);
+	    retire(salesOrder, OrderStatus.State.FILLED);
+	}
+    }
 
-    public void collectMarketInfo() {
-	this.marketInfo = new MarketInfo();
+    /**
+     * Continuous matching: the incoming purchase order buys from the cheapest
+     * sales orders in the book for its product, until it is complete or the
+     * price exceeds what the buyer is prepared to pay. Whatever is left over
+     * rests in the book.
+     *
+     * @param sales
+     *            to which the {@link Sale}s made immediately are added
+     */
+    public void matchPurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder,
+	    List<Sale> sales) {
+	matchPurchaseOrder(buyer, purchaseOrder, sales, false);
+    }
 
-	this.marketInfo.pos = buyers.stream().map(buyer -> {
-	    return buyer.getPurchaseOrders();
-	}).flatMap(l -> l.stream()).collect(Collectors.groupingBy(po -> {
-	    return po.getProductId();
-	}));
+    /**
+     * @param reentering
+     *            true if the order was withdrawn and amended, so that what is
+     *            left over rests without being added to the timing wheel
+     *            again, see {@link #reenter(Buyer, PurchaseOrder)}
+     */
+    public void matchPurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder,
+	    List<Sale> sales, boolean reentering) {
+	OrderBook book = getOrderBook(purchaseOrder.getProductId());
+	purchaseOrder.setBuyer(buyer);
+	while (purchaseOrder.getRemainingQuantity() > 0) {
+	    SalesOrder cheapestSalesOrder = book.getCheapestSalesOrder();
+	    if (cheapestSalesOrder == null
+		    || cheapestSalesOrder.getPrice() > purchaseOrder
+			    .getMaximumAcceptedPrice()) {
+		break;
+	    }
+	    Seller seller = cheapestSalesOrder.getSeller();
+	    sales.add(fill(buyer, purchaseOrder, seller, cheapestSalesOrder));
+
+	    // remove completed sales orders
+	    if (cheapestSalesOrder.getRemainingQuantity() == 0) {
+		LOGGER.debug("SO complete: {}", cheapestSalesOrder);
+		seller.removeSalesOrder(cheapestSalesOrder);
+		book.removeSalesOrder(cheapestSalesOrder);
+		retire(cheapestSalesOrder, OrderStatus.State.FILLED);
+	    }
+	}
 
-	this.marketInfo.sos = sellers.stream().map(seller -> {
-	    return seller.getSalesOrders();
-	}).flatMap(l -> l.stream()).collect(Collectors.groupingBy(so -> {
-	    return so.getProductId();
-	}));
+	if (purchaseOrder.getRemainingQuantity() > 0) {
+	    if (reentering) {
+		reenter(buyer, purchaseOrder);
+	    } else {
+		addPurchaseOrder(buyer, purchaseOrder);
+	    }
+	} else {
+	    LOGGER.debug("PO complete: {}", purchaseOrder);
+	    retire(purchaseOrder, OrderStatus.State.FILLED);
+	}
+    }
 
-	/*
-	 * for(String productId : this.marketInfo.pos.keySet()){
-	 * this.marketInfo.pos.put(productId) =
-	 * this.marketInfo.pos[productId].length; } for(var productId :
-	 * this.marketInfo.sos){ this.marketInfo.sos[productId] =
-	 * this.marketInfo.sos[productId].length; }
-	 */
-    };
+    /** creates a sale of as much as possible of the two orders, at the sales orders price */
+    private Sale fill(Buyer buyer, PurchaseOrder purchaseOrder, Seller seller,
+	    SalesOrder salesOrder) {
+	int quantity = Math.min(salesOrder.getRemainingQuantity(),
+		purchaseOrder.getRemainingQuantity());
+	Sale sale = orderBooks[salesOrder.getProductId()].newSale().init(buyer, seller,
+		salesOrder.getProductId(), salesOrder.getPrice(), quantity);
+	sale.setPurchaseOrder(purchaseOrder);
+	sale.setSalesOrder(salesOrder);
+	LOGGER.debug("created sale: {}", sale);
+
+	salesOrder.reduceRemainingQuantity(quantity);
+	purchaseOrder.reduceRemainingQuantity(quantity);
+	// only one of them is already in the book, the other is the incoming one
+	OrderBook book = orderBooks[salesOrder.getProductId()];
+	if (salesOrder.isResting()) {
+	    book.reduceSalesQuantity(salesOrder, quantity);
+	}
+	if (purchaseOrder.isResting()) {
+	    book.reducePurchaseQuantity(purchaseOrder, quantity);
+	}
+	return sale;
+    }
 
     /**
      * creates a sale if the prices is within the buyers budget. iterates all of
      * the buyers purchase wishes for the given product so long as the seller
      * still has the product.
      * 
-     * @return {Array} array of new {@link Sale}s, after having removed a
-     *         quantity of the product from the seller/buyer.
+     * @param sales
+     *            to which the new {@link Sale}s are added, after having removed
+     *            a quantity of the product from the seller/buyer.
      */
-    public List<Sale> createSale(Buyer buyer, Seller seller, String productId) {
+    public void createSale(Buyer buyer, Seller seller, int productId,
+	    List<Sale> sales) {
 	SalesOrder cheapestSalesOrder = seller.getCheapestSalesOrder(productId);
-	LOGGER.debug("cheapest sales order " + cheapestSalesOrder);
+	LOGGER.debug("cheapest sales order {}", cheapestSalesOrder);
 
 	// find the buyers purchase orders, where the po.price =>
 	// cheapestSalesOrder.price
@@ -160,76 +550,127 @@ public class Market {
 	// until either the seller has no more stock at this price
 	// or the buyer has bought all they want
 
-	List<PurchaseOrder> purchaseOrders = buyer.getRelevantPurchaseOrders(
-		productId, cheapestSalesOrder.getPrice());
-	LOGGER.debug("relevant purchase orders: " + purchaseOrders);
-
-	List<Sale> sales = new ArrayList<>();
-	purchaseOrders.stream().forEach(
-		purchaseOrder -> {
-		    int quantity = Math.min(
-			    cheapestSalesOrder.getRemainingQuantity(),
-			    purchaseOrder.getRemainingQuantity());
-		    LOGGER.debug("quantity " + quantity + " for PO: "
-			    + purchaseOrder);
-		    if (quantity > 0) {
-			Sale sale = new Sale(buyer, seller, productId,
-				cheapestSalesOrder.getPrice(), quantity);
-
-			// add PO and SO for events
-			sale.setPurchaseOrder(purchaseOrder);
-			sale.setSalesOrder(cheapestSalesOrder);
-			sales.add(sale);
-			LOGGER.debug("created sale: " + sale);
-
-			// adjust quantities purchaseOrder.remainingQuantity -=
-			// quantity;
-			cheapestSalesOrder.reduceRemainingQuantity(quantity);
-
-			// remove completed purchase wishes
-			if (purchaseOrder.getRemainingQuantity() == 0) {
-			    LOGGER.debug("PO complete: " + sale);
-			    buyer.removePurchaseOrder(purchaseOrder);
-			}
-		    }
-		});
+	List<PurchaseOrder> purchaseOrders = buyer.getPurchaseOrders(productId);
+	for (int i = 0; purchaseOrders != null && i < purchaseOrders.size(); i++) {
+	    PurchaseOrder purchaseOrder = purchaseOrders.get(i);
+	    if (purchaseOrder.getMaximumAcceptedPrice() < cheapestSalesOrder
+		    .getPrice()) {
+		continue; // not relevant
+	    }
+	    int quantity = Math.min(cheapestSalesOrder.getRemainingQuantity(),
+		    purchaseOrder.getRemainingQuantity());
+	    LOGGER.debug("quantity {} for PO: {}", quantity, purchaseOrder);
+	    if (quantity > 0) {
+		Sale sale = getOrderBook(productId).newSale().init(buyer, seller, productId,
+			cheapestSalesOrder.getPrice(), quantity);
+
+		// add PO and SO for events
+		sale.setPurchaseOrder(purchaseOrder);
+		sale.setSalesOrder(cheapestSalesOrder);
+		sales.add(sale);
+		LOGGER.debug("created sale: {}", sale);
+
+		// adjust quantities purchaseOrder.remainingQuantity -=
+		// quantity;
+		cheapestSalesOrder.reduceRemainingQuantity(quantity);
+		getOrderBook(productId).reduceSalesQuantity(cheapestSalesOrder, quantity);
+
+		// remove completed purchase wishes
+		if (purchaseOrder.getRemainingQuantity() == 0) {
+		    LOGGER.debug("PO complete: {}", sale);
+		    buyer.removePurchaseOrder(purchaseOrder);
+		    getOrderBook(productId).removePurchaseOrder(buyer, purchaseOrder);
+		    retire(purchaseOrder, OrderStatus.State.FILLED);
+		    i--; // the next one has moved up
+		}
+	    }
+	}
 
 	// remove completed sales orders
 	if (cheapestSalesOrder.getRemainingQuantity() == 0) {
-	    LOGGER.debug("SO complete: " + cheapestSalesOrder);
+	    LOGGER.debug("SO complete: {}", cheapestSalesOrder);
 	    seller.removeSalesOrder(cheapestSalesOrder);
+	    getOrderBook(productId).removeSalesOrder(cheapestSalesOrder);
+	    retire(cheapestSalesOrder, OrderStatus.State.FILLED);
 	}
-
-	return sales;
     }
 
     /**
      * @return all buyers in the market who have a purchase order for the given
      *         product
      */
-    public List<Buyer> getBuyersInterestedInProduct(final String productId) {
-	return this.buyers.stream().filter(buyer -> {
-	    return buyer.getPurchaseOrders().stream().anyMatch(po -> {
-		return po.getProductId().equals(productId);
-	    });
-	}).collect(Collectors.toList());
+    public List<Buyer> getBuyersInterestedInProduct(final int productId) {
+	OrderBook book = orderBooks[productId];
+	return book == null ? new ArrayList<>() : new ArrayList<>(
+		book.getBuyers());
     }
 
     /** @return all product IDs that are for sale in the market */
-    public Set<String> getProductsInMarket() {
-	// TODO use flatmap, but also in js too!
-	Set<String> productsInMarket = new HashSet<>();
-	sellers.forEach(seller -> {
-	    seller.getSalesOrders().stream().forEach(salesOrder -> {
-		productsInMarket.add(salesOrder.getProductId());
-	    });
-	});
+    public Set<Integer> getProductsInMarket() {
+	Set<Integer> productsInMarket = new TreeSet<>();
+	for (OrderBook book : orderBooks) {
+	    if (book != null && book.hasSalesOrders()) {
+		productsInMarket.add(book.getProductId());
+	    }
+	}
 	return productsInMarket;
     }
 
-    public static class MarketInfo {
-	public Map<String, List<PurchaseOrder>> pos;
-	public Map<String, List<SalesOrder>> sos;
+    /** @return the book of the given product, which is created if necessary */
+    public OrderBook getOrderBook(int productId) {
+	OrderBook book = orderBooks[productId];
+	if (book == null) {
+	    book = new OrderBook(productId);
+	    orderBooks[productId] = book;
+	}
+	return book;
+    }
+
+    /**
+     * The number of orders and the quantity outstanding per product and side.
+     * Rather than being collected, it reads the figures which the order books
+     * keep up to date, so it is always current and reading it doesn't
+     * allocate. It belongs to the market's engine, and should only be read by
+     * its thread.
+     */
+    public class MarketInfo {
+
+	public int getNumberOfSalesOrders(int productId) {
+	    OrderBook book = orderBooks[productId];
+	    return book == null ? 0 : book.getNumberOfSalesOrders();
+	}
+
+	/** @return the quantity still on offer */
+	public long getSalesQuantity(int productId) {
+	    OrderBook book = orderBooks[productId];
+	    return book == null ? 0 : book.getSalesQuantity();
+	}
+
+	public int getNumberOfPurchaseOrders(int productId) {
+	    OrderBook book = orderBooks[productId];
+	    return book == null ? 0 : book.getNumberOfPurchaseOrders();
+	}
+
+	/** @return the quantity still wanted */
+	public long getPurchaseQuantity(int productId) {
+	    OrderBook book = orderBooks[productId];
+	    return book == null ? 0 : book.getPurchaseQuantity();
+	}
+
+	/** @return the price in ticks of the cheapest sales order, or -1 if nobody is selling */
+	public long getCheapestPrice(int productId) {
+	    OrderBook book = orderBooks[productId];
+	    return book == null || !book.hasSalesOrders() ? -1 : book.getCheapestSalesOrder().getPrice();
+	}
+    }
+
+    /**
+     * @return the number of orders waiting to expire, including those which
+     *         left the market but have not been dropped yet, see
+     *         {@link TimingWheel#size()}
+     */
+    int getNumberOfExpiries() {
+	return salesOrderExpiries.size() + purchaseOrderExpiries.size();
     }
 
     public MarketInfo getMarketInfo() {
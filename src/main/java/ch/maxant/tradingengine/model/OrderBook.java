@@ -0,0 +1,315 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The order book of a single product. Sales orders are kept in price levels,
+ * cheapest first. Within a level, orders are sorted by the seller's position
+ * in the market and then by the order in which the seller placed them, which
+ * is exactly the order in which {@link Market#trade()} used to pick them when
+ * it sorted all sellers by their cheapest price. The buy side simply indexes
+ * the buyers who have at least one purchase order for the product, in the
+ * order in which they entered the market. The number of orders and the
+ * quantity outstanding on each side are kept up to date as orders come and
+ * go, see {@link Market.MarketInfo}.
+ *
+ * Products never interact, so everything which matching a product needs to
+ * change, such as the pool of sales and the orders which are leaving the
+ * market, belongs to its book. That way, books can be matched in parallel,
+ * see {@link Market#trade(java.util.concurrent.ForkJoinPool)}.
+ */
+public class OrderBook {
+
+    private static final Comparator<SalesOrder> LEVEL_ORDER = (o1, o2) -> {
+	int c = Integer.compare(o1.getSeller().getIndex(), o2.getSeller().getIndex());
+	return c != 0 ? c : Long.compare(o1.getSequence(), o2.getSequence());
+    };
+
+    private static final Comparator<Buyer> BUYER_ORDER = (b1, b2) -> Integer.compare(b1.getIndex(), b2.getIndex());
+
+    private final int productId;
+    private final TreeMap<Long, TreeSet<SalesOrder>> salesOrders = new TreeMap<>();
+    private final TreeSet<Buyer> buyers = new TreeSet<>(BUYER_ORDER);
+    private int numberOfSalesOrders;
+    private long salesQuantity;
+    private int numberOfPurchaseOrders;
+    private long purchaseQuantity;
+    /** the orders resting in this book, by ID */
+    private final IntMap<SalesOrder> salesOrdersById = new IntMap<>(64);
+    private final IntMap<PurchaseOrder> purchaseOrdersById = new IntMap<>(64);
+
+    private static final int POOL_CAPACITY = 1024;
+    private final Pool<Sale> salePool = new Pool<>(Sale::new, POOL_CAPACITY);
+    /** the sales made when this book was last traded, see {@link Market#trade} */
+    private final List<Sale> sales = new ArrayList<>();
+    /** reused whenever the buyers in this book need copying */
+    private final List<Buyer> buyersBuffer = new ArrayList<>();
+    /** orders which left the market since the last call to {@link #recycle} */
+    private List<SalesOrder> retiringSalesOrders = new ArrayList<>();
+    private List<PurchaseOrder> retiringPurchaseOrders = new ArrayList<>();
+    /** orders which left the market before the last call to {@link #recycle} */
+    private List<SalesOrder> retiredSalesOrders = new ArrayList<>();
+    private List<PurchaseOrder> retiredPurchaseOrders = new ArrayList<>();
+    /** orders which were added, changed or left the market since the last call to {@link #addStatuses} */
+    private final List<SalesOrder> touchedSalesOrders = new ArrayList<>();
+    private final List<PurchaseOrder> touchedPurchaseOrders = new ArrayList<>();
+
+    public OrderBook(int productId) {
+	this.productId = productId;
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    void addSalesOrder(SalesOrder salesOrder) {
+	TreeSet<SalesOrder> level = salesOrders.get(salesOrder.getPrice());
+	if (level == null) {
+	    level = new TreeSet<>(LEVEL_ORDER);
+	    salesOrders.put(salesOrder.getPrice(), level);
+	}
+	if (level.add(salesOrder)) {
+	    touch(salesOrder);
+	    salesOrdersById.put(salesOrder.getId(), salesOrder);
+	    numberOfSalesOrders++;
+	    salesQuantity += salesOrder.getRemainingQuantity();
+	}
+    }
+
+    void removeSalesOrder(SalesOrder salesOrder) {
+	TreeSet<SalesOrder> level = salesOrders.get(salesOrder.getPrice());
+	if (level != null && level.remove(salesOrder)) {
+	    touch(salesOrder);
+	    salesOrdersById.remove(salesOrder.getId());
+	    numberOfSalesOrders--;
+	    salesQuantity -= salesOrder.getRemainingQuantity();
+	    if (level.isEmpty()) {
+		salesOrders.remove(salesOrder.getPrice());
+	    }
+	}
+    }
+
+    /** a sales order in this book has sold the given quantity */
+    void reduceSalesQuantity(SalesOrder salesOrder, int quantity) {
+	touch(salesOrder);
+	salesQuantity -= quantity;
+    }
+
+    /**
+     * @return the sales order which the next buyer would take, ie the one at
+     *         the best (lowest) price, or null if nobody is selling the product
+     */
+    public SalesOrder getCheapestSalesOrder() {
+	Map.Entry<Long, TreeSet<SalesOrder>> best = salesOrders.firstEntry();
+	return best == null ? null : best.getValue().first();
+    }
+
+    /** @return the sales order with the given ID, if it is resting in this book, otherwise null */
+    public SalesOrder getSalesOrder(int id) {
+	return salesOrdersById.get(id);
+    }
+
+    /** @return the purchase order with the given ID, if it is resting in this book, otherwise null */
+    public PurchaseOrder getPurchaseOrder(int id) {
+	return purchaseOrdersById.get(id);
+    }
+
+    /** @return a copy of the sales orders in this book, in the order in which buyers would take them */
+    public List<SalesOrder> getSalesOrders() {
+	List<SalesOrder> all = new ArrayList<>(numberOfSalesOrders);
+	for (TreeSet<SalesOrder> level : salesOrders.values()) {
+	    all.addAll(level);
+	}
+	return all;
+    }
+
+    public boolean hasSalesOrders() {
+	return !salesOrders.isEmpty();
+    }
+
+    /** the buyer has added the given purchase order */
+    void addPurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder) {
+	buyers.add(buyer);
+	touch(purchaseOrder);
+	purchaseOrdersById.put(purchaseOrder.getId(), purchaseOrder);
+	numberOfPurchaseOrders++;
+	purchaseQuantity += purchaseOrder.getRemainingQuantity();
+    }
+
+    /**
+     * the buyer has removed the given purchase order, and is removed from the
+     * book if it was their last one for this product
+     */
+    void removePurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder) {
+	touch(purchaseOrder);
+	purchaseOrdersById.remove(purchaseOrder.getId());
+	numberOfPurchaseOrders--;
+	purchaseQuantity -= purchaseOrder.getRemainingQuantity();
+	if (!buyer.hasProduct(productId)) {
+	    buyers.remove(buyer);
+	}
+    }
+
+    /** a purchase order in this book has bought the given quantity */
+    void reducePurchaseQuantity(PurchaseOrder purchaseOrder, int quantity) {
+	touch(purchaseOrder);
+	purchaseQuantity -= quantity;
+    }
+
+    /** @return the buyers with purchase orders for this product, in market order */
+    public NavigableSet<Buyer> getBuyers() {
+	return buyers;
+    }
+
+    /** @return the buyers in this book, in a list which is reused by the next call */
+    List<Buyer> copyBuyers() {
+	buyersBuffer.clear();
+	for (Buyer buyer : buyers) {
+	    buyersBuffer.add(buyer);
+	}
+	return buyersBuffer;
+    }
+
+    /** @return the list to which sales of this product are added when it is traded */
+    List<Sale> getSales() {
+	return sales;
+    }
+
+    /** @return a sale from this books pool */
+    Sale newSale() {
+	return salePool.acquire();
+    }
+
+    void releaseSale(Sale sale) {
+	salePool.release(sale);
+    }
+
+    /** the order has left the market, and will be recycled, see {@link #recycle} */
+    void retire(SalesOrder salesOrder, OrderStatus.State why) {
+	salesOrder.setResting(false);
+	salesOrder.setState(why);
+	touch(salesOrder);
+	retiringSalesOrders.add(salesOrder);
+    }
+
+    /** the order has left the market, and will be recycled, see {@link #recycle} */
+    void retire(PurchaseOrder purchaseOrder, OrderStatus.State why) {
+	purchaseOrder.setResting(false);
+	purchaseOrder.setState(why);
+	touch(purchaseOrder);
+	retiringPurchaseOrders.add(purchaseOrder);
+    }
+
+    /**
+     * returns the orders which left the market before the previous call to
+     * the given pools, see {@link Market#recycle}
+     */
+    void recycle(Pool<SalesOrder> salesOrderPool,
+	    Pool<PurchaseOrder> purchaseOrderPool) {
+	retiredSalesOrders.forEach(salesOrderPool::release);
+	retiredSalesOrders.clear();
+	retiredPurchaseOrders.forEach(purchaseOrderPool::release);
+	retiredPurchaseOrders.clear();
+
+	List<SalesOrder> sos = retiredSalesOrders;
+	retiredSalesOrders = retiringSalesOrders;
+	retiringSalesOrders = sos;
+	List<PurchaseOrder> pos = retiredPurchaseOrders;
+	retiredPurchaseOrders = retiringPurchaseOrders;
+	retiringPurchaseOrders = pos;
+    }
+
+    public int getNumberOfSalesOrders() {
+	return numberOfSalesOrders;
+    }
+
+    /** @return the quantity which is still on offer */
+    public long getSalesQuantity() {
+	return salesQuantity;
+    }
+
+    public int getNumberOfPurchaseOrders() {
+	return numberOfPurchaseOrders;
+    }
+
+    /** @return the quantity which is still wanted */
+    public long getPurchaseQuantity() {
+	return purchaseQuantity;
+    }
+
+    /**
+     * @return the cheapest levels of this book, at most the given number of
+     *         them, together with the given last price
+     */
+    BookSnapshot snapshot(int depth, long lastPrice, long lastPriceTimestamp, long now) {
+	int levels = Math.min(depth, salesOrders.size());
+	long[] prices = new long[levels];
+	long[] quantities = new long[levels];
+	int[] orders = new int[levels];
+	int level = 0;
+	for (Map.Entry<Long, TreeSet<SalesOrder>> entry : salesOrders.entrySet()) {
+	    if (level == levels) {
+		break;
+	    }
+	    prices[level] = entry.getKey();
+	    orders[level] = entry.getValue().size();
+	    for (SalesOrder so : entry.getValue()) {
+		quantities[level] += so.getRemainingQuantity();
+	    }
+	    level++;
+	}
+	return new BookSnapshot(productId, prices, quantities, orders, numberOfSalesOrders, salesQuantity,
+		numberOfPurchaseOrders, purchaseQuantity, lastPrice, lastPriceTimestamp, now);
+    }
+
+    private void touch(SalesOrder salesOrder) {
+	if (!salesOrder.isTouched()) {
+	    salesOrder.setTouched(true);
+	    touchedSalesOrders.add(salesOrder);
+	}
+    }
+
+    private void touch(PurchaseOrder purchaseOrder) {
+	if (!purchaseOrder.isTouched()) {
+	    purchaseOrder.setTouched(true);
+	    touchedPurchaseOrders.add(purchaseOrder);
+	}
+    }
+
+    /**
+     * adds the status of every order which was added to this book, changed,
+     * or left it since the last call, rather than of every order in it. the
+     * orders which left haven't been reused yet, since this is normally
+     * called once per sitting, and orders are only reused the sitting after
+     * next.
+     */
+    void addStatuses(List<OrderStatus> statuses, long now) {
+	for (int i = 0; i < touchedSalesOrders.size(); i++) {
+	    SalesOrder so = touchedSalesOrders.get(i);
+	    so.setTouched(false);
+	    statuses.add(OrderStatus.of(so, now));
+	}
+	touchedSalesOrders.clear();
+	for (int i = 0; i < touchedPurchaseOrders.size(); i++) {
+	    PurchaseOrder po = touchedPurchaseOrders.get(i);
+	    po.setTouched(false);
+	    statuses.add(OrderStatus.of(po, now));
+	}
+	touchedPurchaseOrders.clear();
+    }
+
+    /** forgets the orders which were touched, without adding their statuses, see {@link #addStatuses} */
+    void forgetTouched() {
+	touchedSalesOrders.forEach(so -> so.setTouched(false));
+	touchedSalesOrders.clear();
+	touchedPurchaseOrders.forEach(po -> po.setTouched(false));
+	touchedPurchaseOrders.clear();
+    }
+
+}
@@ -0,0 +1,85 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * What an engine last published about an order, see
+ * {@link TradingEngine.EventType#STATS}. Unlike the order itself, which the
+ * engine pools and reuses, a status never changes, so any thread may read it.
+ */
+public final class OrderStatus {
+
+    public static enum State {
+	/** resting in the market, possibly partly filled */
+	OPEN,
+	FILLED,
+	CANCELLED,
+	EXPIRED
+    }
+
+    private final int id;
+    private final int productId;
+    private final boolean sale;
+    private final State state;
+    private final int originalQuantity;
+    private final int remainingQuantity;
+    private final long price;
+    private final long asOf;
+
+    /** see the getters, eg to rebuild a status published by another JVM */
+    public OrderStatus(int id, int productId, boolean sale, State state, int originalQuantity,
+	    int remainingQuantity, long price, long asOf) {
+	this.id = id;
+	this.productId = productId;
+	this.sale = sale;
+	this.state = state;
+	this.originalQuantity = originalQuantity;
+	this.remainingQuantity = remainingQuantity;
+	this.price = price;
+	this.asOf = asOf;
+    }
+
+    static OrderStatus of(SalesOrder so, long now) {
+	return new OrderStatus(so.getId(), so.getProductId(), true, so.getState(), so.getOriginalQuantity(),
+		so.getRemainingQuantity(), so.getPrice(), now);
+    }
+
+    static OrderStatus of(PurchaseOrder po, long now) {
+	return new OrderStatus(po.getId(), po.getProductId(), false, po.getState(), po.getOriginalQuantity(),
+		po.getRemainingQuantity(), -1, now);
+    }
+
+    public int getId() {
+	return id;
+    }
+
+    public int getProductId() {
+	return productId;
+    }
+
+    /** @return true for a sales order, false for a purchase order */
+    public boolean isSale() {
+	return sale;
+    }
+
+    public State getState() {
+	return state;
+    }
+
+    public int getOriginalQuantity() {
+	return originalQuantity;
+    }
+
+    public int getRemainingQuantity() {
+	return remainingQuantity;
+    }
+
+    /** @return the price in ticks of a sales order, or -1 for a purchase order, which pays the market price */
+    public long getPrice() {
+	return price;
+    }
+
+    /** @return when the engine published this status, in milliseconds since the epoch */
+    public long getAsOf() {
+	return asOf;
+    }
+
+}
@@ -0,0 +1,29 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the names of the users trading in the market as dense int handles,
+ * so that the front end resolves a name once and engines can find the
+ * corresponding {@link Buyer} or {@link Seller} by index, without hashing or
+ * comparing names. Handles are shared by all engines and never reused.
+ */
+public final class Participants {
+
+    private static final ConcurrentHashMap<String, Integer> HANDLES = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT = new AtomicInteger();
+
+    private Participants() {
+    }
+
+    /** @return the handle of the participant with the given name, which is allocated on first use */
+    public static int intern(String name) {
+	Integer handle = HANDLES.get(name);
+	if (handle == null) {
+	    handle = HANDLES.computeIfAbsent(name, n -> NEXT.getAndIncrement());
+	}
+	return handle;
+    }
+
+}
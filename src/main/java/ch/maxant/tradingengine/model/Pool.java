@@ -0,0 +1,39 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.function.Supplier;
+
+/**
+ * A pool of reusable objects, so that a steady flow of orders and sales
+ * doesn't create garbage. Not thread safe, since each engine has its own.
+ * Objects released once the pool is full are left to the garbage collector.
+ */
+public class Pool<T> {
+
+    private final Supplier<T> factory;
+    private final Object[] free;
+    private int size;
+
+    public Pool(Supplier<T> factory, int capacity) {
+	this.factory = factory;
+	this.free = new Object[capacity];
+    }
+
+    /** @return a pooled object, or a new one if the pool is empty */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+	if (size == 0) {
+	    return factory.get();
+	}
+	T t = (T) free[--size];
+	free[size] = null;
+	return t;
+    }
+
+    /** the given object must no longer be referenced by the caller */
+    public void release(T t) {
+	if (size < free.length) {
+	    free[size++] = t;
+	}
+    }
+
+}
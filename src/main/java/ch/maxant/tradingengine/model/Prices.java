@@ -0,0 +1,82 @@
+package ch.maxant.tradingengine.model;
+
+/**
+ * Prices are fixed point numbers, held as a long number of ticks, so that
+ * they compare exactly and don't need boxing. A tick is a hundredth of the
+ * currency unit.
+ */
+public final class Prices {
+
+    public static final int DECIMAL_PLACES = 2;
+
+    public static final long TICKS_PER_UNIT = 100;
+
+    /** the most digits that still fit into a long number of ticks */
+    private static final int MAX_DIGITS = 18;
+
+    private Prices() {
+    }
+
+    /**
+     * parses a decimal price like "12.5" into ticks, without going via a
+     * double.
+     * 
+     * @throws NumberFormatException
+     *             if the price is not a number, is more precise than a tick or
+     *             has too many digits to be held in ticks
+     */
+    public static long parse(CharSequence price) {
+	return parse(price, 0, price.length());
+    }
+
+    /**
+     * parses the price between the given indices, eg straight out of a query
+     * string, see {@link #parse(CharSequence)}
+     */
+    public static long parse(CharSequence chars, int start, int end) {
+	int i = start;
+	boolean negative = i < end && chars.charAt(i) == '-';
+	if (negative) {
+	    i++;
+	}
+	if (i == end) {
+	    throw new NumberFormatException("no price in '" + chars.subSequence(start, end) + "'");
+	}
+	long ticks = 0;
+	int digits = 0;
+	int decimals = -1; // not yet in the fractional part
+	for (; i < end; i++) {
+	    char c = chars.charAt(i);
+	    if (c == '.' && decimals < 0) {
+		decimals = 0;
+	    } else if (c >= '0' && c <= '9') {
+		if (decimals >= 0 && ++decimals > DECIMAL_PLACES) {
+		    throw new NumberFormatException("price '" + chars.subSequence(start, end)
+			    + "' has more than " + DECIMAL_PLACES
+			    + " decimal places");
+		}
+		if (decimals < 0 && ++digits > MAX_DIGITS - DECIMAL_PLACES) {
+		    throw new NumberFormatException("price '" + chars.subSequence(start, end)
+			    + "' is too large");
+		}
+		ticks = ticks * 10 + (c - '0');
+	    } else {
+		throw new NumberFormatException("invalid price '" + chars.subSequence(start, end)
+			+ "'");
+	    }
+	}
+	for (int d = Math.max(decimals, 0); d < DECIMAL_PLACES; d++) {
+	    ticks *= 10;
+	}
+	return negative ? -ticks : ticks;
+    }
+
+    /** @return the given number of ticks as a decimal string, eg "12.50" */
+    public static String format(long ticks) {
+	long units = Math.abs(ticks) / TICKS_PER_UNIT;
+	long fraction = Math.abs(ticks) % TICKS_PER_UNIT;
+	return (ticks < 0 ? "-" : "") + units + "."
+		+ (fraction < 10 ? "0" : "") + fraction;
+    }
+
+}
@@ -1,31 +1,112 @@
 package ch.maxant.tradingengine.model;
 
-import java.util.Date;
+public class PurchaseOrder extends IdModel implements Expiring {
 
-public class PurchaseOrder extends IdModel {
-
-    private String productId;
+    private int productId;
     private int remainingQuantity;
     private int originalQuantity;
-    private double maximumAcceptedPrice;
-    private Date created;
+    private long maximumAcceptedPrice;
+    private long created;
     private Buyer buyer;
+    private String userId;
+    private int participant;
+    private long timeToLive;
+    private boolean resting;
+    /** why the order left the market, or OPEN until it does */
+    private OrderStatus.State state;
+    /** true whilst in the list of touched orders of its book, see {@link OrderBook#addStatuses} */
+    private boolean touched;
+
+    /** for pooling, see {@link Market#newPurchaseOrder} */
+    PurchaseOrder() {
+    }
+
+    public PurchaseOrder(int productId, int quantity,
+	    long maximumAcceptedPrice, int id) {
+	init(productId, quantity, maximumAcceptedPrice, id);
+    }
 
-    public PurchaseOrder(String productId, int quantity,
-	    double maximumAcceptedPrice, int id) {
+    /** (re)initialises this order, so that it can be reused */
+    PurchaseOrder init(int productId, int quantity, long maximumAcceptedPrice,
+	    int id) {
 	this.productId = productId;
 	this.remainingQuantity = quantity;
 	this.originalQuantity = quantity;
 	this.maximumAcceptedPrice = maximumAcceptedPrice;
-	this.created = new Date();
+	this.created = System.currentTimeMillis();
+	this.buyer = null;
+	this.userId = null;
+	this.participant = 0;
+	this.timeToLive = 0;
+	this.resting = false;
+	this.state = OrderStatus.State.OPEN;
+	this.touched = false;
 	setId(id);
+	return this;
     }
 
     public void setBuyer(Buyer buyer) {
 	this.buyer = buyer;
     }
 
-    public String getProductId() {
+    /** @return the name of the user who placed the order */
+    public String getUserId() {
+	return userId;
+    }
+
+    public void setUserId(String userId) {
+	this.userId = userId;
+    }
+
+    /** @return the handle of the user who placed the order, see {@link Participants} */
+    public int getParticipant() {
+	return participant;
+    }
+
+    public void setParticipant(int participant) {
+	this.participant = participant;
+    }
+
+    /** @return how long the order may rest in the market, in milliseconds. 0 means the engines default. */
+    public long getTimeToLive() {
+	return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+	this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public long getExpires() {
+	return created + timeToLive;
+    }
+
+    @Override
+    public boolean isResting() {
+	return resting;
+    }
+
+    void setResting(boolean resting) {
+	this.resting = resting;
+    }
+
+    OrderStatus.State getState() {
+	return state;
+    }
+
+    void setState(OrderStatus.State state) {
+	this.state = state;
+    }
+
+    boolean isTouched() {
+	return touched;
+    }
+
+    void setTouched(boolean touched) {
+	this.touched = touched;
+    }
+
+    public int getProductId() {
 	return productId;
     }
 
@@ -33,11 +114,13 @@ public class PurchaseOrder extends IdModel {
 	return buyer;
     }
 
-    public Date getCreated() {
+    /** @return when the order was created, in milliseconds since the epoch */
+    public long getCreated() {
 	return created;
     }
 
-    public double getMaximumAcceptedPrice() {
+    /** @return the price in ticks, see {@link Prices} */
+    public long getMaximumAcceptedPrice() {
 	return maximumAcceptedPrice;
     }
 
@@ -49,4 +132,20 @@ public class PurchaseOrder extends IdModel {
 	return remainingQuantity;
     }
 
+    public void reduceRemainingQuantity(int quantity) {
+	this.remainingQuantity -= quantity;
+    }
+
+    /**
+     * changes the order, which may only be done while it isn't in the market,
+     * see {@link Market#withdraw(PurchaseOrder)}. the original quantity grows
+     * by any increase, so that what has been filled stays the difference.
+     */
+    void amend(int remainingQuantity) {
+	if (remainingQuantity > this.remainingQuantity) {
+	    this.originalQuantity += remainingQuantity - this.remainingQuantity;
+	}
+	this.remainingQuantity = remainingQuantity;
+    }
+
 }
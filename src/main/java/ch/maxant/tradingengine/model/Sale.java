@@ -1,41 +1,53 @@
 package ch.maxant.tradingengine.model;
 
-import java.util.Date;
-
 public class Sale extends IdModel {
 
-    private Date timestamp;
+    private long timestamp;
     private Buyer buyer;
     private Seller seller;
-    private String productId;
-    private double price;
+    private int productId;
+    private long price;
     private int quantity;
     private SalesOrder salesOrder;
     private PurchaseOrder purchaseOrder;
 
+    /** for pooling, see {@link Market} */
+    Sale() {
+    }
+
     /**
      * a sale from a seller to a buyer for the given product and price and
      * quantity.
      */
-    public Sale(Buyer buyer, Seller seller, String productId, double price,
+    public Sale(Buyer buyer, Seller seller, int productId, long price,
+	    int quantity) {
+	init(buyer, seller, productId, price, quantity);
+    }
+
+    /** (re)initialises this sale, so that it can be reused */
+    Sale init(Buyer buyer, Seller seller, int productId, long price,
 	    int quantity) {
 	this.buyer = buyer;
 	this.seller = seller;
 	this.productId = productId;
 	this.price = price;
 	this.quantity = quantity;
-	this.timestamp = new Date();
+	this.timestamp = System.currentTimeMillis();
+	this.salesOrder = null;
+	this.purchaseOrder = null;
+	return this;
     }
 
     public Buyer getBuyer() {
 	return buyer;
     }
 
-    public double getPrice() {
+    /** @return the price in ticks, see {@link Prices} */
+    public long getPrice() {
 	return price;
     }
 
-    public String getProductId() {
+    public int getProductId() {
 	return productId;
     }
 
@@ -47,7 +59,8 @@ public class Sale extends IdModel {
 	return seller;
     }
 
-    public Date getTimestamp() {
+    /** @return when the sale was made, in milliseconds since the epoch */
+    public long getTimestamp() {
 	return timestamp;
     }
 
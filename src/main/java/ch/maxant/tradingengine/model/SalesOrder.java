@@ -1,29 +1,55 @@
 package ch.maxant.tradingengine.model;
 
-import java.util.Date;
+public class SalesOrder extends IdModel implements Expiring {
 
-public class SalesOrder extends IdModel {
-
-    private double price;
-    private String productId;
+    private long price;
+    private int productId;
     private int remainingQuantity;
     private int originalQuantity;
-    private Date created;
+    private long created;
     private Seller seller;
+    private String userId;
+    private int participant;
+    private long timeToLive;
+    private boolean resting;
+    /** why the order left the market, or OPEN until it does */
+    private OrderStatus.State state;
+    /** true whilst in the list of touched orders of its book, see {@link OrderBook#addStatuses} */
+    private boolean touched;
+    private long sequence;
+
+    /** for pooling, see {@link Market#newSalesOrder} */
+    SalesOrder() {
+    }
 
     /**
      * an order to sell a given quantity of a product at a given price
      */
-    public SalesOrder(double price, String productId, int quantity, int id) {
+    public SalesOrder(long price, int productId, int quantity, int id) {
+	init(price, productId, quantity, id);
+    }
+
+    /** (re)initialises this order, so that it can be reused */
+    SalesOrder init(long price, int productId, int quantity, int id) {
 	this.price = price;
 	this.productId = productId;
 	this.remainingQuantity = quantity;
 	this.originalQuantity = quantity;
-	this.created = new Date();
+	this.created = System.currentTimeMillis();
+	this.seller = null;
+	this.userId = null;
+	this.participant = 0;
+	this.timeToLive = 0;
+	this.resting = false;
+	this.state = OrderStatus.State.OPEN;
+	this.touched = false;
+	this.sequence = 0;
 	setId(id);
+	return this;
     }
 
-    public Date getCreated() {
+    /** @return when the order was created, in milliseconds since the epoch */
+    public long getCreated() {
 	return created;
     }
 
@@ -31,11 +57,12 @@ public class SalesOrder extends IdModel {
 	return remainingQuantity;
     }
 
-    public String getProductId() {
+    public int getProductId() {
 	return productId;
     }
 
-    public double getPrice() {
+    /** @return the price in ticks, see {@link Prices} */
+    public long getPrice() {
 	return price;
     }
 
@@ -51,8 +78,87 @@ public class SalesOrder extends IdModel {
 	this.seller = seller;
     }
 
-    public void reduceRemainingQuantity(double quantity) {
+    /** @return the name of the user who placed the order */
+    public String getUserId() {
+	return userId;
+    }
+
+    public void setUserId(String userId) {
+	this.userId = userId;
+    }
+
+    /** @return the handle of the user who placed the order, see {@link Participants} */
+    public int getParticipant() {
+	return participant;
+    }
+
+    public void setParticipant(int participant) {
+	this.participant = participant;
+    }
+
+    /** @return how long the order may rest in the market, in milliseconds. 0 means the engines default. */
+    public long getTimeToLive() {
+	return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+	this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public long getExpires() {
+	return created + timeToLive;
+    }
+
+    @Override
+    public boolean isResting() {
+	return resting;
+    }
+
+    void setResting(boolean resting) {
+	this.resting = resting;
+    }
+
+    OrderStatus.State getState() {
+	return state;
+    }
+
+    void setState(OrderStatus.State state) {
+	this.state = state;
+    }
+
+    boolean isTouched() {
+	return touched;
+    }
+
+    void setTouched(boolean touched) {
+	this.touched = touched;
+    }
+
+    /** @return the order in which the seller placed this order */
+    long getSequence() {
+	return sequence;
+    }
+
+    void setSequence(long sequence) {
+	this.sequence = sequence;
+    }
+
+    public void reduceRemainingQuantity(int quantity) {
 	this.remainingQuantity -= quantity;
     }
 
+    /**
+     * changes the order, which may only be done while it isn't in the market,
+     * see {@link Market#withdraw(SalesOrder)}. the original quantity grows by
+     * any increase, so that what has been filled stays the difference.
+     */
+    void amend(long price, int remainingQuantity) {
+	this.price = price;
+	if (remainingQuantity > this.remainingQuantity) {
+	    this.originalQuantity += remainingQuantity - this.remainingQuantity;
+	}
+	this.remainingQuantity = remainingQuantity;
+    }
+
 }
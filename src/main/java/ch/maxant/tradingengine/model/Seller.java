@@ -1,11 +1,10 @@
 package ch.maxant.tradingengine.model;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
 
-import org.apache.commons.lang3.ObjectUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -15,66 +14,101 @@ public class Seller {
 
     private static final Logger LOGGER = LogManager.getLogger("seller");
 
-    private List<SalesOrder> salesOrders = new ArrayList<>();
+    /** cheapest first, and in the order they were added when prices are equal */
+    private static final Comparator<SalesOrder> PRICE_ORDER = (o1, o2) -> {
+	int c = Long.compare(o1.getPrice(), o2.getPrice());
+	return c != 0 ? c : Long.compare(o1.getSequence(), o2.getSequence());
+    };
+
+    /** indexed by product, created when the first order is added */
+    private TreeSet<SalesOrder>[] salesOrders;
     private String name;
+    private int index;
+    private int participant;
+    private long sequence;
 
     public Listener listener;
 
     public Seller(String name) {
+	this(name, Participants.intern(name));
+    }
+
+    /**
+     * @param participant
+     *            the handle of the given name, see {@link Participants}
+     */
+    public Seller(String name, int participant) {
 	this.name = name;
+	this.participant = participant;
     }
 
     public void addSalesOrder(SalesOrder salesOrder) {
-	LOGGER.debug(name + " adding " + salesOrder);
+	LOGGER.debug("{} adding {}", name, salesOrder);
 	salesOrder.setSeller(this);
-	this.salesOrders.add(salesOrder);
+	salesOrder.setSequence(sequence++);
+	if (this.salesOrders == null) {
+	    this.salesOrders = newProductIndex();
+	}
+	TreeSet<SalesOrder> sos = this.salesOrders[salesOrder.getProductId()];
+	if (sos == null) {
+	    sos = new TreeSet<>(PRICE_ORDER);
+	    this.salesOrders[salesOrder.getProductId()] = sos;
+	}
+	sos.add(salesOrder);
     }
 
-    public boolean hasProduct(String productId) {
-	return this.salesOrders.stream().anyMatch(so -> {
-	    return so.getProductId().equals(productId);
-	});
+    public boolean hasProduct(int productId) {
+	return this.salesOrders != null && this.salesOrders[productId] != null;
     }
 
     /**
      * @return {SalesOrder} the sales order for the given product that has the
-     *         lowest price
+     *         lowest price, or null if the seller isn't selling the product
      */
-    public SalesOrder getCheapestSalesOrder(String productId) {
-	return this.salesOrders.stream().filter(so -> {
-	    return so.getProductId().equals(productId);
-	}).sorted((o1, o2) -> Double.compare(o1.getPrice(), o2.getPrice()))
-		.findFirst().get();
+    public SalesOrder getCheapestSalesOrder(int productId) {
+	return hasProduct(productId) ? this.salesOrders[productId].first() : null;
     }
 
     public void removeSalesOrder(SalesOrder salesOrder) {
-	this.salesOrders = this.salesOrders.stream().filter(so -> {
-	    return !salesOrder.equals(so);
-	}).collect(Collectors.toList());
+	int productId = salesOrder.getProductId();
+	if (hasProduct(productId) && this.salesOrders[productId].remove(salesOrder)
+		&& this.salesOrders[productId].isEmpty()) {
+	    this.salesOrders[productId] = null;
+	}
     }
 
-    /** @return the out of date ones */
-    public List<SalesOrder> removeOutdatedSalesOrders(long ageInMs) {
-	long now = System.currentTimeMillis();
+    /** @return a copy of all of this sellers sales orders */
+    public List<SalesOrder> getSalesOrders() {
+	List<SalesOrder> all = new ArrayList<>();
+	for (int productId = 0; productId < Constants.NUM_PRODUCTS; productId++) {
+	    if (hasProduct(productId)) {
+		all.addAll(this.salesOrders[productId]);
+	    }
+	}
+	return all;
+    }
 
-	Map<Boolean, List<SalesOrder>> partitioned = salesOrders.stream()
-		.collect(Collectors.groupingBy(so -> {
-		    return now - so.getCreated().getTime() > ageInMs;
-		}));
+    public String getName() {
+	return name;
+    }
 
-	this.salesOrders = ObjectUtils.defaultIfNull(
-		partitioned.get(Boolean.FALSE),
-		new ArrayList<SalesOrder>());
-	return ObjectUtils.defaultIfNull(partitioned.get(Boolean.TRUE),
-		new ArrayList<SalesOrder>());
+    /** @return the handle of this sellers name, see {@link Participants} */
+    public int getParticipant() {
+	return participant;
     }
 
-    public List<SalesOrder> getSalesOrders() {
-	return salesOrders;
+    /** @return the position at which this seller entered the market */
+    public int getIndex() {
+	return index;
     }
 
-    public String getName() {
-	return name;
+    void setIndex(int index) {
+	this.index = index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TreeSet<SalesOrder>[] newProductIndex() {
+	return (TreeSet<SalesOrder>[]) new TreeSet<?>[Constants.NUM_PRODUCTS];
     }
 
     @Override
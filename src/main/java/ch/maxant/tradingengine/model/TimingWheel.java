@@ -0,0 +1,111 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel which expires things in O(expired) rather than by
+ * scanning everything in the market. Time is divided into ticks, each of
+ * which maps onto a slot of the wheel, and everything is added to the slot of
+ * the tick in which it expires. Anything which expires more than one
+ * revolution later simply stays in its slot until the wheel comes round
+ * again. Entries are removed lazily: something which leaves the market before
+ * it expires is not searched for, but dropped the next time its slot is
+ * passed. Since orders are pooled, something which left the market may well
+ * be resting again by then, with a new expiry, so each entry is stamped with
+ * the expiry it was added with and dropped if that no longer matches. Not
+ * thread safe, since each engine has its own.
+ */
+public class TimingWheel<T extends Expiring> {
+
+    /** the entries of one tick, with the expiry each was added with */
+    private static final class Slot {
+	private Expiring[] entries = new Expiring[4];
+	private long[] expiries = new long[4];
+	private int size;
+
+	private void add(Expiring e, long expires) {
+	    if (size == entries.length) {
+		entries = Arrays.copyOf(entries, size * 2);
+		expiries = Arrays.copyOf(expiries, size * 2);
+	    }
+	    entries[size] = e;
+	    expiries[size++] = expires;
+	}
+    }
+
+    private final long tickMs;
+    private final Slot[] slots;
+    private final int mask;
+    /** all slots up to and including this one have been passed */
+    private long lastTick = -1;
+
+    /**
+     * @param numSlots
+     *            must be a power of two
+     */
+    public TimingWheel(long tickMs, int numSlots) {
+	if (Integer.bitCount(numSlots) != 1) {
+	    throw new IllegalArgumentException("numSlots must be a power of two, not " + numSlots);
+	}
+	this.tickMs = tickMs;
+	this.slots = new Slot[numSlots];
+	for (int i = 0; i < numSlots; i++) {
+	    this.slots[i] = new Slot();
+	}
+	this.mask = numSlots - 1;
+    }
+
+    public void add(T t) {
+	long expires = t.getExpires();
+	long tick = expires / tickMs;
+	if (tick <= lastTick) {
+	    tick = lastTick + 1; // already overdue, so it goes into the next slot to be passed
+	}
+	slots[(int) (tick & mask)].add(t, expires);
+    }
+
+    /**
+     * Passes all slots up to now, calling the given consumer for everything
+     * still resting which expired before now. The consumer is expected to
+     * remove what it is given from the market.
+     */
+    public void advance(long now, Consumer<T> onExpiry) {
+	long nowTick = now / tickMs;
+	// once round the wheel is enough to see everything
+	long from = Math.max(lastTick + 1, nowTick - mask);
+	for (long tick = from; tick <= nowTick; tick++) {
+	    Slot slot = slots[(int) (tick & mask)];
+	    int kept = 0;
+	    for (int i = 0; i < slot.size; i++) {
+		@SuppressWarnings("unchecked")
+		T t = (T) slot.entries[i];
+		long expires = slot.expiries[i];
+		slot.entries[i] = null;
+		if (!t.isResting() || t.getExpires() != expires) {
+		    continue; // left the market, expired already, or is back with a new expiry
+		}
+		if (now > expires) {
+		    onExpiry.accept(t);
+		    continue;
+		}
+		// not yet, or on a later revolution
+		slot.entries[kept] = t;
+		slot.expiries[kept++] = expires;
+	    }
+	    slot.size = kept;
+	}
+	// the current tick has only partly passed, so visit it again next time
+	lastTick = nowTick - 1;
+    }
+
+    /** @return the number of entries, including those not yet dropped */
+    int size() {
+	int size = 0;
+	for (Slot slot : slots) {
+	    size += slot.size;
+	}
+	return size;
+    }
+
+}
@@ -3,14 +3,12 @@ package ch.maxant.tradingengine.model;
 import io.netty.buffer.PooledByteBufAllocator;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.naming.NamingException;
 
@@ -19,6 +17,7 @@ import org.apache.logging.log4j.Logger;
 
 import scala.Option;
 import scala.collection.JavaConversions;
+import scala.concurrent.Await;
 import scala.concurrent.Future;
 import scala.concurrent.duration.Duration;
 import scala.util.Try;
@@ -39,28 +38,59 @@ public class TradingEngine {
 
 	private static final Logger LOGGER = LogManager.getLogger("tradingEngine");
 
+	/**
+	 * orders and sales passed to a listener are pooled and reused by the
+	 * engine, so a listener must not hold on to them beyond the sitting after
+	 * the one in which they were passed.
+	 *
+	 * unless persistence blocks, see {@link #setBlockingPersistence(boolean)},
+	 * {@link EventType#PERSISTED} is raised on a thread of the database pool,
+	 * and the listener must hand it back to the thread running the engine,
+	 * which then calls {@link TradingEngine#onPersisted(Throwable)}. all other
+	 * events are raised on the thread running the engine.
+	 */
 	public static interface Listener {
 		public void onEvent(EventType type, Object data);
 	}
 
 	public static enum EventType {
-		SALE, PURCHASE, TIMEOUT_SALESORDER, TIMEOUT_PURCHASEORDER, STATS, STOPPED
+		SALE, PURCHASE, TIMEOUT_SALESORDER, TIMEOUT_PURCHASEORDER, STATS, STOPPED, PERSISTED
 	}
 
-	private static final String SQL = "INSERT INTO SALES (BUYER_NAME, SELLER_NAME, PRODUCT_ID, PRICE, QUANTITY, PO_ID, SO_ID) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	/**
+	 * BATCH: orders wait in the market until the next trade sitting matches
+	 * them. CONTINUOUS: orders are matched against the resting orders as they
+	 * arrive, and sittings merely expire orders, persist sales and publish
+	 * stats.
+	 */
+	public static enum MatchingMode {
+		BATCH, CONTINUOUS
+	}
+
+	private static final String SQL = "INSERT INTO SALES (BUYER_NAME, SELLER_NAME, PRODUCT_ID, PRICE, QUANTITY, PO_ID, SO_ID) VALUES ";
+	private static final String ROW = "(?, ?, ?, ?, ?, ?, ?)";
+	private static final int COLUMNS = 7;
+	/** MySQL allows at most 65535 parameters per statement */
+	private static final int MAX_ROWS_PER_INSERT = 65535 / COLUMNS;
+	/** indexed by n, the statement inserting 2^n rows, built when first needed */
+	private static final String[] INSERTS = new String[Integer.SIZE];
 	private static final ConnectionPool<MySQLConnection> POOL;
+	private static final long MAXIMUM_PURCHASE_PRICE = Prices.parse("9999.9");
+	/** the number of price levels in each {@link BookSnapshot} */
+	private static final int BOOK_DEPTH = 10;
 	static {
 		Duration connectTimeout = Duration.apply(5.0, TimeUnit.SECONDS);
 		Duration testTimeout = Duration.apply(5.0, TimeUnit.SECONDS);
 		Configuration configuration = new Configuration("root", Main.DB_HOST, 3306, Option.apply("password"), Option.apply("TRADER"), io.netty.util.CharsetUtil.UTF_8, 16777216, PooledByteBufAllocator.DEFAULT, connectTimeout, testTimeout);
 		
 		MySQLConnectionFactory factory = new MySQLConnectionFactory(configuration);
-		POOL = new ConnectionPool<MySQLConnection>(factory, new PoolConfiguration(1000, 4, 1000, 4000), Main.system.dispatcher());
+		POOL = new ConnectionPool<MySQLConnection>(factory, new PoolConfiguration(1000, 4, 1000, 4000), Main.system.dispatchers().lookup(Main.DB_DISPATCHER));
 	}
 	
 	private Market market = new Market();
-	private Map<String, MarketPrice> marketPrices = new HashMap<>();
-	private Map<String, List<VolumeRecord>> volumeRecords = new HashMap<>();
+	/** indexed by product */
+	private MarketPrice[] marketPrices = new MarketPrice[Constants.NUM_PRODUCTS];
+	private VolumeStatistics volumes = new VolumeStatistics();
 
 	private long delay;
 
@@ -68,6 +98,31 @@ public class TradingEngine {
 
 	private Listener listener;
 
+	private MatchingMode mode;
+
+	private ForkJoinPool matchingPool;
+
+	/** see {@link #setBlockingPersistence(boolean)} */
+	private boolean blockingPersistence;
+
+	private static final Duration PERSISTENCE_TIMEOUT = Duration.apply(30, TimeUnit.SECONDS);
+
+	/** the products whose book or statistics changed since stats were last published */
+	private final BitSet changedProducts = new BitSet(Constants.NUM_PRODUCTS);
+
+	/** sales matched continuously since the last sitting, which have yet to be persisted */
+	private List<Sale> continuousSales = new ArrayList<>();
+
+	/** the sales of the previous sitting, which are recycled once the next one starts */
+	private List<Sale> persistedSales = new ArrayList<>();
+
+	/** when the current sitting started */
+	private long sittingStart;
+
+	/** the statement inserting {@link Main#INSERT_BATCH_SIZE} rows, unless that is a power of two, see {@link #insert(int)} */
+	private String fullInsert;
+	private int fullInsertRows;
+
 	/**
 	 * basically a buyer goes into the market at a time where they are happy to
 	 * pay the market price. they take it from the cheapest seller (ie the
@@ -82,7 +137,8 @@ public class TradingEngine {
 	 * @param timeout
 	 *            the number of milliseconds after which incomplete sales or
 	 *            purchase orders should be removed and their buyer/seller
-	 *            informed of the (partial) failure.
+	 *            informed of the (partial) failure, unless the order has its
+	 *            own time to live.
 	 * @throws NamingException
 	 */
 	public TradingEngine(long delay, long timeout, Listener listener) {
@@ -90,128 +146,237 @@ public class TradingEngine {
 	}
 
 	public TradingEngine(long delay, long timeout, Listener listener, boolean runInActorMode) {
+		this(delay, timeout, listener, MatchingMode.BATCH);
+	}
+
+	/**
+	 * @param mode
+	 *            in either mode, the caller decides when to run the next
+	 *            sitting, normally the delay after the engine raised
+	 *            {@link EventType#STOPPED}. the engine never sleeps.
+	 */
+	public TradingEngine(long delay, long timeout, Listener listener, MatchingMode mode) {
+		this(delay, timeout, listener, mode, null);
+	}
+
+	/**
+	 * @param matchingPool
+	 *            in {@link MatchingMode#BATCH} mode, the products are traded in
+	 *            parallel on this pool, which may be shared by engines. null
+	 *            means that they are traded one after the other. the sales are
+	 *            the same either way.
+	 */
+	public TradingEngine(long delay, long timeout, Listener listener, MatchingMode mode, ForkJoinPool matchingPool) {
 
 		this.delay = delay;
 		this.timeout = timeout;
 		this.listener = listener;
-		LOGGER.debug("market is opening for trading!");
+		this.mode = mode;
+		this.matchingPool = matchingPool;
+		LOGGER.debug("market is opening for trading in " + mode + " mode!");
+	}
+
+	/**
+	 * @param blockingPersistence
+	 *            true if {@link #run()} should wait for its sales to be
+	 *            persisted, and then notify the parties and the listener on
+	 *            the calling thread, rather than raising
+	 *            {@link EventType#PERSISTED}.
+	 */
+	public void setBlockingPersistence(boolean blockingPersistence) {
+		this.blockingPersistence = blockingPersistence;
+	}
+
+	/** @return the number of milliseconds which should pass between sittings */
+	public long getDelay() {
+		return delay;
 	}
 
 	public void run() {
 
 		LOGGER.debug("\n\n------------------------------- trading...-------------------------");
-		long start = System.currentTimeMillis();
+		sittingStart = System.currentTimeMillis();
+
+		// the previous sitting is complete, so its sales can be reused
+		market.recycle(persistedSales);
 
 		prepareMarket();
 
-		List<Sale> sales = market.trade();
-		LOGGER.info("trading completed");
+		final List<Sale> sales;
+		if (MatchingMode.CONTINUOUS.equals(mode)) {
+			// these were priced and their parties notified when they were matched
+			sales = continuousSales;
+			continuousSales = persistedSales; // empty since recycling
 
-		noteMarketPricesAndVolumes(sales);
+			// published now rather than once persisted, because orders keep on
+			// arriving and changing the market while the sales are persisted
+			publishStats();
+		} else {
+			sales = market.trade(matchingPool);
+			noteMarketPricesAndVolumes(sales);
+		}
+		persistedSales = sales;
+		LOGGER.info("trading completed");
 
 		persistSales(sales, t -> {
-			if(t != null){
-				LOGGER.error("failed to persist sales: " + sales, t);
-			}else{
+			if (blockingPersistence) {
+				onPersisted(t);
+			} else {
+				// rather than touching the market on the database's thread
+				listener.onEvent(EventType.PERSISTED, t);
+			}
+		});
+	}
+
+	/**
+	 * completes the sitting once its sales are persisted, on the thread
+	 * running the engine, see {@link EventType#PERSISTED}: the parties are
+	 * notified, stats are published, and {@link EventType#STOPPED} is raised,
+	 * after which the next sitting may be run.
+	 *
+	 * @param failure
+	 *            why the sales could not be persisted, or null if they were
+	 */
+	public void onPersisted(Throwable failure) {
+		List<Sale> sales = persistedSales;
+		if(failure != null){
+			LOGGER.error("failed to persist sales: " + sales, failure);
+		}else{
+			if (MatchingMode.BATCH.equals(mode)) {
 				LOGGER.info("persisting completed, notifying involved parties...");
-				sales.stream().forEach(sale -> {
-					if (sale.getBuyer().listener != null)
-						sale.getBuyer().listener.onEvent(EventType.PURCHASE, sale);
-					if (sale.getSeller().listener != null)
-						sale.getSeller().listener.onEvent(EventType.SALE, sale);
-				});
-				if (!sales.isEmpty()) {
-					LOGGER.error("trading of " + sales.size() + " sales completed and persisted in "
-							+ (System.currentTimeMillis() - start) + "ms");
-				} else {
-					LOGGER.info("no trades...");
-				}
+				sales.stream().forEach(this::notifyParties);
+			}
+			if (!sales.isEmpty()) {
+				LOGGER.error("trading of " + sales.size() + " sales completed and persisted in "
+						+ (System.currentTimeMillis() - sittingStart) + "ms");
+			} else {
+				LOGGER.info("no trades...");
+			}
 
+			if (MatchingMode.BATCH.equals(mode)) {
 				// debug(self.market, 10, false);
-				if (listener != null)
-					this.updateMarketVolume(null); // removes outdated data
-				listener.onEvent(EventType.STATS, new Object[] { market.getMarketInfo(), this.marketPrices,
-						this.volumeRecords });
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-
+				publishStats();
 			}
-			listener.onEvent(EventType.STOPPED, null);
-		});
+		}
+		listener.onEvent(EventType.STOPPED, null);
+	}
+
+	private void notifyParties(Sale sale) {
+		if (sale.getBuyer().listener != null)
+			sale.getBuyer().listener.onEvent(EventType.PURCHASE, sale);
+		if (sale.getSeller().listener != null)
+			sale.getSeller().listener.onEvent(EventType.SALE, sale);
 	}
 
 	/**
-	 * @method @return a VolumeRecord, just with no timestamp. properties are
-	 *         total in last minute.
+	 * passes the market info, the market prices, the volumes, as an int array
+	 * the products which changed since the last time, a {@link BookSnapshot}
+	 * of each of those products, in the same order, and a list of the
+	 * {@link OrderStatus} of the orders which entered those books, changed, or
+	 * left them since the last time
 	 */
-	public VolumeRecord getCurrentVolume(String productId) {
-		List<VolumeRecord> vrs = this.volumeRecords.get(productId);
-		if (vrs != null) {
+	private void publishStats() {
+		int[] changed = changedProducts.stream().toArray();
+		changedProducts.clear();
+		if (listener != null) {
 			long now = System.currentTimeMillis();
-			vrs = vrs.stream().filter(vr -> {
-				return now - vr.timestamp.getTime() < 1000 * 10;
-			}).collect(Collectors.toList()); // remove old
-			this.volumeRecords.put(productId, vrs); // ensure records contains
-			// most up to date
-
-			// aggregate
-			VolumeRecord vr = new VolumeRecord(productId, 0, 0, null, 0);
-			vr = vrs.stream().reduce(vr, VolumeRecord::add);
-			return vr;
-		} else {
-			return new VolumeRecord(productId, 0, 0, null, 0);
+			BookSnapshot[] books = new BookSnapshot[changed.length];
+			List<OrderStatus> statuses = new ArrayList<>();
+			for (int i = 0; i < changed.length; i++) {
+				OrderBook book = market.getOrderBook(changed[i]);
+				MarketPrice last = marketPrices[changed[i]];
+				books[i] = book.snapshot(BOOK_DEPTH, last == null ? -1 : last.getPrice(), last == null ? 0 : last.getTimestamp(), now);
+				book.addStatuses(statuses, now);
+			}
+			listener.onEvent(EventType.STATS, new Object[] { market.getMarketInfo(), this.marketPrices,
+					this.volumes, changed, books, statuses });
 		}
 	}
 
+	/**
+	 * notes and announces sales which were matched continuously, as soon as
+	 * they happen, ie those in {@link #continuousSales} from the given index
+	 */
+	private void onContinuousSales(int from) {
+		for (int i = from; i < continuousSales.size(); i++) {
+			Sale sale = continuousSales.get(i);
+			updateMarketPrice(sale);
+			updateMarketVolume(sale);
+			notifyParties(sale);
+		}
+	}
+
+	/**
+	 * @method @return a VolumeRecord, just with no timestamp. properties are
+	 *         total in the last {@link VolumeStatistics#WINDOW_MS}.
+	 */
+	public VolumeRecord getCurrentVolume(int productId) {
+		return volumes.getCurrentVolume(productId, System.currentTimeMillis());
+	}
+
 	/** @method @return the last known price */
-	public MarketPrice getCurrentMarketPrice(String productId) {
-		return this.marketPrices.get(productId);
+	public MarketPrice getCurrentMarketPrice(int productId) {
+		return this.marketPrices[productId];
 	}
 
 	// handles timed out orders
 	private void prepareMarket() {
 
+		long now = System.currentTimeMillis();
+
 		// handle timeouted sales orders
-		market.getSellers().forEach(seller -> {
-			List<SalesOrder> incompleteSOs = seller.removeOutdatedSalesOrders(timeout);
-			incompleteSOs.forEach(so -> {
-				if (so.getSeller().listener != null)
-					so.getSeller().listener.onEvent(EventType.TIMEOUT_SALESORDER, so);
-				else
-					LOGGER.debug("incomplete SO: " + so);
-			});
+		market.removeExpiredSalesOrders(now).forEach(so -> {
+			changedProducts.set(so.getProductId());
+			if (so.getSeller().listener != null)
+				so.getSeller().listener.onEvent(EventType.TIMEOUT_SALESORDER, so);
+			else
+				LOGGER.debug("incomplete SO: " + so);
 		});
 
 		// handle timeouted purchase orders
-		market.getBuyers().forEach(buyer -> {
-			List<PurchaseOrder> incompletePOs = buyer.removeOutdatedPurchaseOrders(timeout);
-			incompletePOs.forEach(po -> {
-				if (po.getBuyer().listener != null)
-					po.getBuyer().listener.onEvent(EventType.TIMEOUT_PURCHASEORDER, po);
-				else
-					LOGGER.debug("incomplete PO: " + po);
-			});
+		market.removeExpiredPurchaseOrders(now).forEach(po -> {
+			changedProducts.set(po.getProductId());
+			if (po.getBuyer().listener != null)
+				po.getBuyer().listener.onEvent(EventType.TIMEOUT_PURCHASEORDER, po);
+			else
+				LOGGER.debug("incomplete PO: " + po);
 		});
 	}
 
+	/**
+	 * inserts the sales in as few statements as possible, each with at most
+	 * {@link Main#INSERT_BATCH_SIZE} rows, which the pool sends over its
+	 * connections at the same time, rather than one statement per sale. the
+	 * rows which don't fill a statement are split into statements of powers of
+	 * two rows, so that each connection only ever prepares a handful of
+	 * different statements.
+	 */
 	private void persistSales(List<Sale> sales, final PersistenceComplete f) {
-		if (!sales.isEmpty()) {
+		if (!sales.isEmpty() && !Main.STUB_PERSISTENCE) {
 			LOGGER.info("preparing to persist sales");
 
-			final AtomicInteger count = new AtomicInteger(sales.size());
-			sales.forEach(sale -> {
-				List values = Arrays.asList(sale.getBuyer().getName(), 
-											sale.getSeller().getName(),
-											sale.getProductId(),
-											sale.getPrice(),
-											sale.getQuantity(),
-											sale.getPurchaseOrder().getId(),
-											sale.getSalesOrder().getId());
+			List<List<Sale>> chunks = chunk(sales, Main.INSERT_BATCH_SIZE);
+
+			final AtomicInteger count = new AtomicInteger(chunks.size());
+			final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+			final List<Future<QueryResult>> queries = blockingPersistence ? new ArrayList<>(chunks.size()) : null;
+			chunks.forEach(chunk -> {
+				List<Object> values = new ArrayList<>(chunk.size() * COLUMNS);
+				for (Sale sale : chunk) {
+					values.add(sale.getBuyer().getName());
+					values.add(sale.getSeller().getName());
+					values.add(sale.getProductId());
+					values.add(sale.getPrice());
+					values.add(sale.getQuantity());
+					values.add(sale.getPurchaseOrder().getId());
+					values.add(sale.getSalesOrder().getId());
+				}
 				
-				Future<QueryResult> sendQuery = POOL.sendPreparedStatement(SQL, JavaConversions.asScalaBuffer(values));
+				Future<QueryResult> sendQuery = POOL.sendPreparedStatement(insert(chunk.size()), JavaConversions.asScalaBuffer(values));
+				if (queries != null) {
+					queries.add(sendQuery);
+					return;
+				}
 				sendQuery.onComplete(new JFunction1<Try<QueryResult>, Void>() {
 					@Override
 					public Void apply(Try<QueryResult> t) {
@@ -224,24 +389,86 @@ public class TradingEngine {
 							//ResultSet rs = qr.rows().get();
 							//RowData rd = rs.apply(Integer.valueOf(0));
 							//sale.setId((Integer)rd.apply(0)); 
+						}else{
+							firstFailure.compareAndSet(null, t.failed().get());
 						}
 						
 						if(count.decrementAndGet() == 0){
-							if(t.isSuccess()){
-								f.apply(null);
-							}else{
-								f.apply(t.failed().get());
-							}
-							
+							f.apply(firstFailure.get());
 						}
 
 						return null; //coz of Void
 					}
-				}, Main.system.dispatcher());
+				}, Main.system.dispatchers().lookup(Main.DB_DISPATCHER));
 			});
+			if (queries != null) {
+				// one deadline for the whole sitting, and no point waiting for the rest once one failed
+				long deadline = System.nanoTime() + PERSISTENCE_TIMEOUT.toNanos();
+				Throwable failure = null;
+				for (int i = 0; i < queries.size() && failure == null; i++) {
+					try {
+						Await.result(queries.get(i), Duration.fromNanos(Math.max(0, deadline - System.nanoTime())));
+					} catch (Exception e) {
+						failure = e;
+					}
+				}
+				f.apply(failure);
+			}
 		}else{
-			f.apply(null); //nothing to do, so continue immediately
+			f.apply(null); //nothing to do, or stubbed, so continue immediately
+		}
+	}
+
+	/**
+	 * @return the rows in order, split into as many chunks of the given size
+	 *         as they fill, followed by chunks of decreasing powers of two for
+	 *         the rest. the size is capped at what MySQL allows in one
+	 *         statement.
+	 */
+	static <T> List<List<T>> chunk(List<T> rows, int chunkSize) {
+		int maxRows = Math.max(1, Math.min(chunkSize, MAX_ROWS_PER_INSERT));
+		List<List<T>> chunks = new ArrayList<>();
+		int from = 0;
+		for (; rows.size() - from >= maxRows; from += maxRows) {
+			chunks.add(rows.subList(from, from + maxRows));
+		}
+		for (int size = Integer.highestOneBit(maxRows); from < rows.size(); size >>= 1) {
+			if (rows.size() - from >= size) {
+				chunks.add(rows.subList(from, from + size));
+				from += size;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the statement inserting the given number of rows, which is
+	 *         either the most allowed, or a power of two
+	 */
+	private String insert(int rows) {
+		if (rows != Integer.highestOneBit(rows)) {
+			if (rows != fullInsertRows) {
+				fullInsert = insertOf(rows);
+				fullInsertRows = rows;
+			}
+			return fullInsert;
+		}
+		int n = Integer.numberOfTrailingZeros(rows);
+		String insert = INSERTS[n];
+		if (insert == null) {
+			// engines may race to build it, which is harmless
+			insert = insertOf(rows);
+			INSERTS[n] = insert;
 		}
+		return insert;
+	}
+
+	static String insertOf(int rows) {
+		StringBuilder sb = new StringBuilder(SQL.length() + rows * (ROW.length() + 2)).append(SQL).append(ROW);
+		for (int i = 1; i < rows; i++) {
+			sb.append(", ").append(ROW);
+		}
+		return sb.toString();
 	}
 
 	private void noteMarketPricesAndVolumes(List<Sale> sales) {
@@ -252,48 +479,59 @@ public class TradingEngine {
 	}
 
 	public static class MarketPrice {
-		private String productId;
-		private double price;
-		private Date timestamp;
+		private int productId;
+		private long price;
+		private long timestamp;
 
-		public MarketPrice(String productId, double price, Date timestamp) {
+		public MarketPrice(int productId, long price, long timestamp) {
 			this.productId = productId;
 			this.price = price;
 			this.timestamp = timestamp;
 		}
 
-		public double getPrice() {
+		/** @return the price in ticks, see {@link Prices} */
+		public long getPrice() {
 			return price;
 		}
 
-		public String getProductId() {
+		public int getProductId() {
 			return productId;
 		}
 
-		public Date getTimestamp() {
+		/** @return when the price was set, in milliseconds since the epoch */
+		public long getTimestamp() {
 			return timestamp;
 		}
+
+		private void update(long price, long timestamp) {
+			this.price = price;
+			this.timestamp = timestamp;
+		}
 	}
 
 	private void updateMarketPrice(Sale sale) {
-		MarketPrice mp = marketPrices.get(sale.getProductId());
-		if (mp == null || (mp != null && mp.getTimestamp().getTime() < sale.getTimestamp().getTime())) {
-			// set price if none is known, or replace price if its older than
-			// current price
-			marketPrices.put(sale.getProductId(),
-					new MarketPrice(sale.getProductId(), sale.getPrice(), sale.getTimestamp()));
+		MarketPrice mp = marketPrices[sale.getProductId()];
+		if (mp == null) {
+			// set price if none is known
+			marketPrices[sale.getProductId()] = new MarketPrice(sale.getProductId(), sale.getPrice(),
+					sale.getTimestamp());
+		} else if (mp.getTimestamp() < sale.getTimestamp()) {
+			// replace price if its older than current price
+			mp.update(sale.getPrice(), sale.getTimestamp());
 		}
 	}
 
 	public static class VolumeRecord {
-		public static final VolumeRecord EMPTY = new VolumeRecord(null, 0, 0, null, 0);
-		public String productId;
+		public static final VolumeRecord EMPTY = new VolumeRecord(-1, 0, 0, 0, 0);
+		public int productId;
 		public int numberOfSales;
-		public double turnover;
-		public Date timestamp;
+		/** in ticks, see {@link Prices} */
+		public long turnover;
+		/** in milliseconds since the epoch, or zero for aggregates */
+		public long timestamp;
 		public int count;
 
-		public VolumeRecord(String productId, int numberOfSales, double turnover, Date timestamp, int count) {
+		public VolumeRecord(int productId, int numberOfSales, long turnover, long timestamp, int count) {
 			this.productId = productId;
 			this.numberOfSales = numberOfSales;
 			this.turnover = turnover;
@@ -302,7 +540,7 @@ public class TradingEngine {
 		}
 
 		public static VolumeRecord add(VolumeRecord a, VolumeRecord b) {
-			return new VolumeRecord(b.productId, a.numberOfSales + b.numberOfSales, a.turnover + b.turnover, null,
+			return new VolumeRecord(b.productId, a.numberOfSales + b.numberOfSales, a.turnover + b.turnover, 0,
 					a.count + b.count);
 		}
 
@@ -315,63 +553,288 @@ public class TradingEngine {
 	}
 
 	private void updateMarketVolume(Sale sale) {
-		// //////////////
-		// remove old ones
-		// //////////////
-		Map<String, List<VolumeRecord>> newVolumeRecords = new HashMap<>();
-		long now = System.currentTimeMillis();
-		volumeRecords.forEach((k, v) -> {
-			List<VolumeRecord> vrs = v.stream().filter(vr -> {
-				return now - vr.timestamp.getTime() < 1000 * 10;
-			}).collect(Collectors.toList()); // remove older than 10 secs
-				newVolumeRecords.put(k, vrs);
-			});
-		volumeRecords = newVolumeRecords; // replace the old ones
-
-		// //////////////
-		// add new data
-		// //////////////
-		if (sale != null) {
-			List<VolumeRecord> vrs = volumeRecords.get(sale.getProductId());
-			if (vrs == null) {
-				vrs = new ArrayList<>();
-			}
-			vrs.add(new VolumeRecord(sale.getProductId(), sale.getQuantity(), sale.getQuantity() * sale.getPrice(),
-					sale.getTimestamp(), 1)); // scale up to "per minute"
-			volumeRecords.put(sale.getProductId(), vrs); // replace with old one
-		}
+		volumes.add(sale);
+		changedProducts.set(sale.getProductId());
+	}
+
+	public PurchaseOrder addPurchaseOrder(String who, int productId, int quantity, int id) {
+		return addPurchaseOrder(Participants.intern(who), who, productId, quantity, id, 0);
+	}
+
+	/**
+	 * @param participant
+	 *            the handle of who, see {@link Participants}
+	 * @param timeToLive
+	 *            the number of milliseconds after which the order times out,
+	 *            or 0 for this engines timeout
+	 */
+	public PurchaseOrder addPurchaseOrder(int participant, String who, int productId, int quantity, int id, long timeToLive) {
+
+		Buyer buyer = buyer(participant, who);
+		PurchaseOrder po = this.market.newPurchaseOrder(productId, quantity, MAXIMUM_PURCHASE_PRICE, id);
+		po.setUserId(who);
+		po.setParticipant(participant);
+		po.setTimeToLive(timeToLive > 0 ? timeToLive : timeout);
+		changedProducts.set(productId);
+		enter(buyer, po);
+		return po;
 	}
 
-	public PurchaseOrder addPurchaseOrder(String who, String productId, int quantity, int id) {
+	/**
+	 * @param price
+	 *            in ticks, see {@link Prices}
+	 */
+	public SalesOrder addSalesOrder(String who, int productId, int quantity, long price, int id) {
+		return addSalesOrder(Participants.intern(who), who, productId, quantity, price, id, 0);
+	}
 
-		Buyer buyer = new Buyer(who);
-		if (!this.market.getBuyers().contains(buyer)) {
-			LOGGER.debug("buyer named " + who + " doesnt exist -> adding a new one");
+	/**
+	 * @param participant
+	 *            the handle of who, see {@link Participants}
+	 * @param price
+	 *            in ticks, see {@link Prices}
+	 * @param timeToLive
+	 *            the number of milliseconds after which the order times out,
+	 *            or 0 for this engines timeout
+	 */
+	public SalesOrder addSalesOrder(int participant, String who, int productId, int quantity, long price, int id, long timeToLive) {
+
+		Seller seller = seller(participant, who);
+		SalesOrder so = this.market.newSalesOrder(price, productId, quantity, id);
+		so.setUserId(who);
+		so.setParticipant(participant);
+		so.setTimeToLive(timeToLive > 0 ? timeToLive : timeout);
+		changedProducts.set(productId);
+		enter(seller, so);
+		return so;
+	}
+
+	/** @return the buyer in the market, who is added if they haven't entered it yet */
+	private Buyer buyer(int participant, String who) {
+		Buyer buyer = this.market.getBuyer(participant);
+		if (buyer == null) {
+			LOGGER.debug("buyer named {} doesnt exist -> adding a new one", who);
+			buyer = new Buyer(who, participant);
 			this.market.addBuyer(buyer);
 			buyer.listener = listener;
-		} else {
-			// swap temp buyer with the actual one in the market
-			buyer = this.market.getBuyers().get(this.market.getBuyers().indexOf(buyer));
 		}
-		PurchaseOrder po = new PurchaseOrder(productId, quantity, 9999.9, id);
-		buyer.addPurchaseOrder(po);
-		return po;
+		return buyer;
 	}
 
-	public SalesOrder addSalesOrder(String who, String productId, int quantity, double price, int id) {
-
-		Seller seller = new Seller(who);
-		if (!this.market.getSellers().contains(seller)) {
-			LOGGER.debug("seller named " + who + " doesnt exist -> adding a new one");
+	/** @return the seller in the market, who is added if they haven't entered it yet */
+	private Seller seller(int participant, String who) {
+		Seller seller = this.market.getSeller(participant);
+		if (seller == null) {
+			LOGGER.debug("seller named {} doesnt exist -> adding a new one", who);
+			seller = new Seller(who, participant);
 			this.market.addSeller(seller);
 			seller.listener = listener;
+		}
+		return seller;
+	}
+
+	/** the sales order enters the market, depending on the mode */
+	private void enter(Seller seller, SalesOrder so) {
+		enter(seller, so, false);
+	}
+
+	/**
+	 * @param reentering
+	 *            true if the order was withdrawn to be amended, so that it
+	 *            still times out when it originally would have
+	 */
+	private void enter(Seller seller, SalesOrder so, boolean reentering) {
+		if (MatchingMode.CONTINUOUS.equals(mode)) {
+			int from = continuousSales.size();
+			this.market.matchSalesOrder(seller, so, continuousSales, reentering);
+			onContinuousSales(from);
+		} else if (reentering) {
+			this.market.reenter(seller, so);
 		} else {
-			// swap temp seller with the actual one in the market
-			seller = this.market.getSellers().get(this.market.getSellers().indexOf(seller));
+			this.market.addSalesOrder(seller, so);
 		}
-		SalesOrder so = new SalesOrder(price, productId, quantity, id);
-		seller.addSalesOrder(so);
-		return so;
+	}
+
+	/** the purchase order enters the market, depending on the mode */
+	private void enter(Buyer buyer, PurchaseOrder po) {
+		enter(buyer, po, false);
+	}
+
+	/** see {@link #enter(Seller, SalesOrder, boolean)} */
+	private void enter(Buyer buyer, PurchaseOrder po, boolean reentering) {
+		if (MatchingMode.CONTINUOUS.equals(mode)) {
+			int from = continuousSales.size();
+			this.market.matchPurchaseOrder(buyer, po, continuousSales, reentering);
+			onContinuousSales(from);
+		} else if (reentering) {
+			this.market.reenter(buyer, po);
+		} else {
+			this.market.addPurchaseOrder(buyer, po);
+		}
+	}
+
+	/**
+	 * removes the order with the given ID from the market, so long as it
+	 * hasn't been completed or timed out yet, and belongs to the given
+	 * participant.
+	 * 
+	 * @return true if the order was found and removed
+	 */
+	public boolean cancel(int participant, int productId, int id) {
+		changedProducts.set(productId);
+		SalesOrder so = market.getSalesOrder(productId, id);
+		if (so != null) {
+			if (so.getParticipant() != participant) {
+				return notOwnedBy(participant, id);
+			}
+			market.cancel(so);
+			LOGGER.debug("cancelled SO: {}", so);
+			return true;
+		}
+		PurchaseOrder po = market.getPurchaseOrder(productId, id);
+		if (po != null) {
+			if (po.getParticipant() != participant) {
+				return notOwnedBy(participant, id);
+			}
+			market.cancel(po);
+			LOGGER.debug("cancelled PO: {}", po);
+			return true;
+		}
+		LOGGER.info("order {} of product {} cannot be cancelled, as it is no longer in the market", id, productId);
+		return false;
+	}
+
+	/**
+	 * changes the order with the given ID, so long as it hasn't been completed
+	 * or timed out yet, and belongs to the given participant. reducing the quantity keeps the orders place in the
+	 * book. otherwise the order is taken out of the market and enters it again,
+	 * as if it had just been added, although it still times out when it
+	 * originally would have.
+	 * 
+	 * @param quantity
+	 *            the new remaining quantity. 0 cancels the order.
+	 * @param price
+	 *            the new price of a sales order in ticks (see {@link Prices}),
+	 *            or {@link Amendment#UNCHANGED_PRICE}. ignored for purchase
+	 *            orders.
+	 * @return true if the order was found and changed
+	 */
+	public boolean amend(int participant, int productId, int id, int quantity, long price) {
+		if (quantity <= 0) {
+			return cancel(participant, productId, id);
+		}
+		changedProducts.set(productId);
+		SalesOrder so = market.getSalesOrder(productId, id);
+		if (so != null) {
+			if (so.getParticipant() != participant) {
+				return notOwnedBy(participant, id);
+			}
+			long newPrice = price == Amendment.UNCHANGED_PRICE ? so.getPrice() : price;
+			if (newPrice == so.getPrice() && quantity <= so.getRemainingQuantity()) {
+				market.reduce(so, so.getRemainingQuantity() - quantity);
+			} else {
+				market.withdraw(so);
+				so.amend(newPrice, quantity);
+				enter(so.getSeller(), so, true);
+			}
+			LOGGER.debug("amended SO: {}", so);
+			return true;
+		}
+		PurchaseOrder po = market.getPurchaseOrder(productId, id);
+		if (po != null) {
+			if (po.getParticipant() != participant) {
+				return notOwnedBy(participant, id);
+			}
+			if (quantity <= po.getRemainingQuantity()) {
+				market.reduce(po, po.getRemainingQuantity() - quantity);
+			} else {
+				market.withdraw(po);
+				po.amend(quantity);
+				enter(po.getBuyer(), po, true);
+			}
+			LOGGER.debug("amended PO: {}", po);
+			return true;
+		}
+		LOGGER.info("order {} of product {} cannot be amended, as it is no longer in the market", id, productId);
+		return false;
+	}
+
+	private boolean notOwnedBy(int participant, int id) {
+		LOGGER.warn("participant {} may not change order {}, which belongs to somebody else", participant, id);
+		return false;
+	}
+
+	/**
+	 * removes all resting orders of the given product from this engine, so
+	 * that another engine can take the product over, see
+	 * {@link #importBook(BookTransfer)}. the orders keep their remaining time
+	 * to live. no events are fired for them.
+	 */
+	public BookTransfer exportBook(int productId) {
+		long now = System.currentTimeMillis();
+		BookTransfer transfer = new BookTransfer(productId, marketPrices[productId], volumes.remove(productId));
+		marketPrices[productId] = null;
+		// the engine taking the product over publishes its stats from now on
+		changedProducts.clear(productId);
+		OrderBook book = market.getOrderBook(productId);
+
+		for (SalesOrder so : book.getSalesOrders()) {
+			SalesOrder copy = new SalesOrder(so.getPrice(), productId, so.getRemainingQuantity(), so.getId());
+			copy.setUserId(so.getUserId());
+			copy.setParticipant(so.getParticipant());
+			copy.setTimeToLive(Math.max(1, so.getExpires() - now));
+			transfer.getSalesOrders().add(copy);
+			market.cancel(so);
+		}
+		for (Buyer buyer : market.getBuyersInterestedInProduct(productId)) {
+			for (PurchaseOrder po : new ArrayList<>(buyer.getPurchaseOrders(productId))) {
+				PurchaseOrder copy = new PurchaseOrder(productId, po.getRemainingQuantity(),
+						po.getMaximumAcceptedPrice(), po.getId());
+				copy.setUserId(po.getUserId());
+				copy.setParticipant(po.getParticipant());
+				copy.setTimeToLive(Math.max(1, po.getExpires() - now));
+				transfer.getPurchaseOrders().add(copy);
+				market.cancel(po);
+			}
+		}
+		// the engine taking the product over publishes the statuses of its orders
+		book.forgetTouched();
+		LOGGER.info("exported {}", transfer);
+		return transfer;
+	}
+
+	/**
+	 * adds the orders exported by another engine to this one, without
+	 * matching them, since they didn't match in the other engine either.
+	 */
+	public void importBook(BookTransfer transfer) {
+		int productId = transfer.getProductId();
+		for (SalesOrder exported : transfer.getSalesOrders()) {
+			Seller seller = seller(exported.getParticipant(), exported.getUserId());
+			SalesOrder so = this.market.newSalesOrder(exported.getPrice(), productId,
+					exported.getRemainingQuantity(), exported.getId());
+			so.setUserId(exported.getUserId());
+			so.setParticipant(exported.getParticipant());
+			so.setTimeToLive(exported.getTimeToLive());
+			this.market.addSalesOrder(seller, so);
+		}
+		for (PurchaseOrder exported : transfer.getPurchaseOrders()) {
+			Buyer buyer = buyer(exported.getParticipant(), exported.getUserId());
+			PurchaseOrder po = this.market.newPurchaseOrder(productId, exported.getRemainingQuantity(),
+					exported.getMaximumAcceptedPrice(), exported.getId());
+			po.setUserId(exported.getUserId());
+			po.setParticipant(exported.getParticipant());
+			po.setTimeToLive(exported.getTimeToLive());
+			this.market.addPurchaseOrder(buyer, po);
+		}
+		if (transfer.getMarketPrice() != null && marketPrices[productId] == null) {
+			marketPrices[productId] = transfer.getMarketPrice();
+		}
+		if (transfer.getVolume() != null) {
+			volumes.put(productId, transfer.getVolume());
+		}
+		changedProducts.set(productId);
+		LOGGER.info("imported {}", transfer);
 	}
 
 	private static interface PersistenceComplete {
@@ -0,0 +1,168 @@
+package ch.maxant.tradingengine.model;
+
+import java.util.Arrays;
+
+import ch.maxant.tradingengine.model.TradingEngine.VolumeRecord;
+
+/**
+ * The volume traded per product over the last {@link #WINDOW_MS}
+ * milliseconds. Each product has a ring buffer of time buckets together with
+ * running totals, so that noting a sale and reading the current volume are
+ * O(1) and the memory used doesn't depend on how much is traded. The window
+ * moves on in steps of {@link #BUCKET_MS}, so sales drop out of it up to that
+ * much earlier than their exact age would imply. Not thread safe, since each
+ * engine has its own.
+ */
+public class VolumeStatistics {
+
+    public static final long WINDOW_MS = 1000 * 10;
+    public static final long BUCKET_MS = 100;
+    private static final int NUM_BUCKETS = (int) (WINDOW_MS / BUCKET_MS);
+
+    /** indexed by product, created on demand */
+    private Window[] windows = new Window[Constants.NUM_PRODUCTS];
+
+    /** notes the sale in the window of its product */
+    public void add(Sale sale) {
+	Window window = windows[sale.getProductId()];
+	if (window == null) {
+	    window = new Window();
+	    windows[sale.getProductId()] = window;
+	}
+	window.add(sale.getTimestamp() / BUCKET_MS, sale.getQuantity(),
+		sale.getQuantity() * sale.getPrice());
+    }
+
+    /**
+     * @return a VolumeRecord, just with no timestamp. properties are the
+     *         totals within the window up until now.
+     */
+    public VolumeRecord getCurrentVolume(int productId, long now) {
+	Window window = windows[productId];
+	if (window == null) {
+	    return new VolumeRecord(productId, 0, 0, 0, 0);
+	}
+	window.advance(now / BUCKET_MS);
+	return new VolumeRecord(productId, window.totalQuantity,
+		window.totalTurnover, 0, window.totalCount);
+    }
+
+    /**
+     * @return true if the product was traded here within the window, as far
+     *         as is known without moving it on, so that its volume may drop
+     */
+    public boolean hasVolume(int productId) {
+	Window window = windows[productId];
+	return window != null && window.totalCount > 0;
+    }
+
+    /**
+     * @return the window of the product, which is forgotten here so that
+     *         another engine can take it over along with the product, or null
+     *         if the product hasn't been traded. see {@link BookTransfer}
+     */
+    public Window remove(int productId) {
+	Window window = windows[productId];
+	windows[productId] = null;
+	return window;
+    }
+
+    /** takes over the window of a product, see {@link #remove} */
+    public void put(int productId, Window window) {
+	windows[productId] = window;
+    }
+
+    /** the buckets of a single product */
+    public static class Window {
+	private final int[] quantities;
+	private final long[] turnovers;
+	private final int[] counts;
+	private int totalQuantity;
+	private long totalTurnover;
+	private int totalCount;
+	/** the bucket of the newest time seen */
+	private long head;
+
+	Window() {
+	    this(Long.MIN_VALUE, new int[NUM_BUCKETS], new long[NUM_BUCKETS], new int[NUM_BUCKETS]);
+	}
+
+	/** a window as it was somewhere else, see {@link #getHead()} etc. */
+	public Window(long head, int[] quantities, long[] turnovers, int[] counts) {
+	    if (quantities.length != NUM_BUCKETS || turnovers.length != NUM_BUCKETS
+		    || counts.length != NUM_BUCKETS) {
+		throw new IllegalArgumentException("a window has " + NUM_BUCKETS + " buckets");
+	    }
+	    this.head = head;
+	    this.quantities = quantities;
+	    this.turnovers = turnovers;
+	    this.counts = counts;
+	    for (int i = 0; i < NUM_BUCKETS; i++) {
+		totalQuantity += quantities[i];
+		totalTurnover += turnovers[i];
+		totalCount += counts[i];
+	    }
+	}
+
+	/** @return the bucket of the newest time seen, ie the time divided by {@link VolumeStatistics#BUCKET_MS} */
+	public long getHead() {
+	    return head;
+	}
+
+	/** @return the quantity per bucket, indexed by bucket modulo the number of buckets */
+	public int[] getQuantities() {
+	    return quantities;
+	}
+
+	/** @return the turnover in ticks per bucket, indexed like {@link #getQuantities()} */
+	public long[] getTurnovers() {
+	    return turnovers;
+	}
+
+	/** @return the number of sales per bucket, indexed like {@link #getQuantities()} */
+	public int[] getCounts() {
+	    return counts;
+	}
+
+	void add(long bucket, int quantity, long turnover) {
+	    advance(bucket);
+	    if (bucket <= head - NUM_BUCKETS) {
+		return; // already outside the window
+	    }
+	    int i = (int) (bucket % NUM_BUCKETS);
+	    quantities[i] += quantity;
+	    turnovers[i] += turnover;
+	    counts[i]++;
+	    totalQuantity += quantity;
+	    totalTurnover += turnover;
+	    totalCount++;
+	}
+
+	/** empties the buckets which the window moves past on its way to the given one */
+	void advance(long bucket) {
+	    if (bucket <= head) {
+		return;
+	    }
+	    if (head == Long.MIN_VALUE || bucket - head >= NUM_BUCKETS) {
+		Arrays.fill(quantities, 0);
+		Arrays.fill(turnovers, 0);
+		Arrays.fill(counts, 0);
+		totalQuantity = 0;
+		totalTurnover = 0;
+		totalCount = 0;
+	    } else {
+		for (long b = head + 1; b <= bucket; b++) {
+		    int i = (int) (b % NUM_BUCKETS);
+		    totalQuantity -= quantities[i];
+		    totalTurnover -= turnovers[i];
+		    totalCount -= counts[i];
+		    quantities[i] = 0;
+		    turnovers[i] = 0;
+		    counts[i] = 0;
+		}
+	    }
+	    head = bucket;
+	}
+    }
+
+}
@@ -0,0 +1,64 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.ActorRef;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.SalesOrder;
+
+public class EngineActorTest {
+
+	private static final int PRODUCT = 7;
+	private static final FiniteDuration TIMEOUT = new FiniteDuration(5, TimeUnit.SECONDS);
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private ActorRef engine(int partition) {
+		return Main.system.actorOf(Props.create(Main.EngineActor.class, partition, queued));
+	}
+
+	private static SalesOrder salesOrder(int id, int quantity) {
+		SalesOrder so = new SalesOrder(Prices.parse("10000.00"), PRODUCT, quantity, id);
+		so.setUserId("seller");
+		so.setParticipant(Participants.intern("seller"));
+		return so;
+	}
+
+	/** so that nothing is lost or reordered while a product moves from one engine to another */
+	@Test
+	public void messagesForAProductOnTheMoveAreHeldBackUntilItsBookArrives() {
+		ActorRef from = engine(0);
+		ActorRef to = engine(1);
+		Inbox inbox = Inbox.create(Main.system);
+
+		from.tell(salesOrder(1, 10), ActorRef.noSender());
+		to.tell(new Main.AwaitBook(PRODUCT), ActorRef.noSender());
+		// routed to the new engine before the book has been exported by the old one
+		to.tell(new Amendment(PRODUCT, 1, 4, Amendment.UNCHANGED_PRICE, "seller", Participants.intern("seller")), ActorRef.noSender());
+		to.tell(salesOrder(2, 5), ActorRef.noSender());
+		from.tell(new Main.ExportBook(PRODUCT, inbox.getRef()), ActorRef.noSender());
+		BookTransfer exported = (BookTransfer) inbox.receive(TIMEOUT);
+		assertEquals(1, exported.getSalesOrders().size());
+		to.tell(exported, ActorRef.noSender());
+
+		to.tell(new Main.ExportBook(PRODUCT, inbox.getRef()), ActorRef.noSender());
+		BookTransfer transfer = (BookTransfer) inbox.receive(TIMEOUT);
+
+		assertEquals(2, transfer.getSalesOrders().size());
+		assertEquals(1, transfer.getSalesOrders().get(0).getId());
+		assertEquals(4, transfer.getSalesOrders().get(0).getRemainingQuantity());
+		assertEquals(2, transfer.getSalesOrders().get(1).getId());
+		assertEquals(5, transfer.getSalesOrders().get(1).getRemainingQuantity());
+	}
+}
@@ -0,0 +1,219 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.ActorRef;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.util.ByteString;
+import ch.maxant.tradingengine.model.Buyer;
+import ch.maxant.tradingengine.model.Market;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.Sale;
+import ch.maxant.tradingengine.model.Seller;
+import ch.maxant.tradingengine.model.TradingEngine.MarketPrice;
+import ch.maxant.tradingengine.model.TradingEngine.VolumeRecord;
+import ch.maxant.tradingengine.model.VolumeStatistics;
+
+public class MarketFeedTest {
+
+	private static final FiniteDuration TIMEOUT = new FiniteDuration(5, TimeUnit.SECONDS);
+	/** products which no other test quotes */
+	private static final int PRODUCT = 91;
+	private static final int SUBSCRIBED = 92;
+
+	@Test
+	public void theHandshakeIsAcceptedAsInTheRfc() {
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", MarketFeed.WebSocket.accept("dGhlIHNhbXBsZSBub25jZQ=="));
+	}
+
+	@Test
+	public void framesUseTheShortestLengthThatFits() {
+		ByteBuffer small = MarketFeed.WebSocket.frame(0x1, new byte[125]).asByteBuffer();
+		assertEquals((byte) 0x81, small.get());
+		assertEquals(125, small.get());
+		assertEquals(125, small.remaining());
+
+		ByteBuffer medium = MarketFeed.WebSocket.frame(0x1, new byte[126]).asByteBuffer();
+		assertEquals((byte) 0x81, medium.get());
+		assertEquals(126, medium.get());
+		assertEquals(126, medium.getShort() & 0xFFFF);
+		assertEquals(126, medium.remaining());
+
+		ByteBuffer large = MarketFeed.WebSocket.frame(0x1, new byte[65536]).asByteBuffer();
+		assertEquals((byte) 0x81, large.get());
+		assertEquals(127, large.get());
+		assertEquals(65536, large.getLong());
+		assertEquals(65536, large.remaining());
+	}
+
+	/** @return a frame as clients send them, ie masked */
+	private static ByteString clientFrame(int opcode, byte[] payload) {
+		byte[] mask = { 1, 2, 3, 4 };
+		ByteBuffer frame = ByteBuffer.allocate(2 + 4 + payload.length);
+		frame.put((byte) (0x80 | opcode)).put((byte) (0x80 | payload.length)).put(mask);
+		for (int i = 0; i < payload.length; i++) {
+			frame.put((byte) (payload[i] ^ mask[i % 4]));
+		}
+		return ByteString.fromArray(frame.array());
+	}
+
+	@Test
+	public void pingsAreAnsweredHoweverTheyAreSplit() {
+		List<ByteString> replies = new ArrayList<>();
+		int[] closed = { 0 };
+		MarketFeed.WebSocket.Decoder decoder = new MarketFeed.WebSocket.Decoder(replies::add, () -> closed[0]++);
+		ByteString frames = clientFrame(0x1, "ignored".getBytes(StandardCharsets.UTF_8))
+				.concat(clientFrame(0x9, "hello".getBytes(StandardCharsets.UTF_8)));
+
+		for (int i = 0; i < frames.size(); i++) {
+			decoder.decode(frames.slice(i, i + 1));
+		}
+
+		assertEquals(Collections.singletonList(MarketFeed.WebSocket.frame(0xA, "hello".getBytes(StandardCharsets.UTF_8))), replies);
+		assertEquals(0, closed[0]);
+	}
+
+	@Test
+	public void aCloseIsEchoedBeforeClosing() {
+		List<ByteString> replies = new ArrayList<>();
+		int[] closed = { 0 };
+		MarketFeed.WebSocket.Decoder decoder = new MarketFeed.WebSocket.Decoder(replies::add, () -> closed[0]++);
+
+		decoder.decode(clientFrame(0x8, new byte[] { 0x03, (byte) 0xE8 }));
+
+		assertEquals(Collections.singletonList(MarketFeed.WebSocket.frame(0x8, new byte[] { 0x03, (byte) 0xE8 })), replies);
+		assertEquals(1, closed[0]);
+	}
+
+	private static Object[] stats(Market market, VolumeStatistics volumes, int... changed) {
+		return new Object[] { market.getMarketInfo(), new MarketPrice[PRODUCT + 1], volumes, changed };
+	}
+
+	@Test
+	public void theVolumeIsRequotedAsSalesFallOutOfTheWindow() {
+		Market market = new Market();
+		VolumeStatistics volumes = new VolumeStatistics();
+		Sale sale = new Sale(new Buyer("b"), new Seller("s"), PRODUCT, Prices.parse("2.00"), 10);
+		volumes.add(sale);
+		long now = sale.getTimestamp();
+
+		MarketFeed.onStats(stats(market, volumes, PRODUCT), now);
+		MarketFeed.Quote quote = quote(PRODUCT);
+		assertEquals(10, quote.volume);
+		assertEquals(Prices.parse("20.00"), quote.turnover);
+		assertEquals(1, quote.trades);
+
+		// nothing has changed yet
+		MarketFeed.onStats(stats(market, volumes), now + VolumeStatistics.BUCKET_MS);
+		assertSame(quote, quote(PRODUCT));
+
+		MarketFeed.onStats(stats(market, volumes), now + VolumeStatistics.WINDOW_MS + VolumeStatistics.BUCKET_MS);
+		MarketFeed.Quote requoted = quote(PRODUCT);
+		assertNotSame(quote, requoted);
+		assertEquals(0, requoted.volume);
+		assertEquals(0, requoted.turnover);
+		assertEquals(0, requoted.trades);
+
+		// an engine which doesn't trade the product leaves its quote alone
+		MarketFeed.onStats(stats(market, new VolumeStatistics()), now + 2 * VolumeStatistics.WINDOW_MS);
+		assertSame(requoted, quote(PRODUCT));
+	}
+
+	private static MarketFeed.Quote quote(int productId) {
+		return MarketFeed.latest(productId);
+	}
+
+	@Test
+	public void tradesAndQuotesAreRenderedAsJson() {
+		MarketFeed.Trade trade = new MarketFeed.Trade(3, Prices.parse("12.50"), 7, 1000);
+		assertEquals("{\"type\":\"trade\",\"productId\":3,\"price\":12.50,\"quantity\":7,\"timestamp\":1000}", trade.toJson());
+
+		MarketFeed.Quote quote = new MarketFeed.Quote(3, new Market().getMarketInfo(), new MarketPrice(3, Prices.parse("12.50"), 900),
+				new VolumeRecord(3, 7, Prices.parse("87.50"), 0, 1), 1000);
+		assertEquals("{\"type\":\"quote\",\"productId\":3,\"ask\":null,\"askQuantity\":0,\"sellers\":0,\"bidQuantity\":0,\"buyers\":0"
+				+ ",\"lastPrice\":12.50,\"lastTradeAt\":900,\"volume\":7,\"turnover\":87.50,\"trades\":1,\"timestamp\":1000}", quote.toJson());
+	}
+
+	/** @return the text of each frame the server wrote */
+	private static List<String> texts(ByteString data) {
+		ByteBuffer frames = data.asByteBuffer();
+		List<String> texts = new ArrayList<>();
+		while (frames.hasRemaining()) {
+			assertEquals((byte) 0x81, frames.get());
+			int length = frames.get();
+			byte[] payload = new byte[length == 126 ? frames.getShort() & 0xFFFF : length];
+			frames.get(payload);
+			texts.add(new String(payload, StandardCharsets.UTF_8));
+		}
+		return texts;
+	}
+
+	private static MarketFeed.Quote newQuote(int productId, long timestamp) {
+		return new MarketFeed.Quote(productId, new Market().getMarketInfo(), null, new VolumeRecord(productId, 0, 0, 0, 0), timestamp);
+	}
+
+	@Test
+	public void aBusySubscriberGetsEveryTradeButOnlyTheLatestQuote() {
+		Inbox connection = Inbox.create(Main.system);
+		ActorRef subscriber = Main.system.actorOf(Props.create(MarketFeed.Subscriber.class, connection.getRef()));
+		assertTrue(connection.receive(TIMEOUT) instanceof Tcp.Register);
+
+		connection.send(subscriber, new Tcp.Received(ByteString.fromString("GET /feed?productIds=" + SUBSCRIBED + " HTTP/1.1\r\n"
+				+ "Host: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n", "ISO-8859-1")));
+		connection.send(subscriber, new Tcp.Received(ByteString.fromString("Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n\r\n", "ISO-8859-1")));
+		Tcp.Write write = (Tcp.Write) connection.receive(TIMEOUT);
+		String handshake = write.data().decodeString("ISO-8859-1");
+		assertTrue(handshake, handshake.startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+		assertTrue(handshake, handshake.endsWith("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n"));
+
+		MarketFeed.Trade first = new MarketFeed.Trade(SUBSCRIBED, 100, 1, 1);
+		MarketFeed.Trade second = new MarketFeed.Trade(SUBSCRIBED, 100, 2, 2);
+		MarketFeed.Trade other = new MarketFeed.Trade(SUBSCRIBED + 1, 100, 3, 3);
+		connection.send(subscriber, new MarketFeed.Update(Arrays.asList(newQuote(SUBSCRIBED, 1)), Arrays.asList(first)));
+		connection.send(subscriber, new MarketFeed.Update(Arrays.asList(newQuote(SUBSCRIBED, 2), newQuote(SUBSCRIBED + 1, 2)), Arrays.asList(second, other)));
+		connection.send(subscriber, new MarketFeed.Update(Arrays.asList(newQuote(SUBSCRIBED, 3)), Collections.emptyList()));
+		connection.send(subscriber, WireFormat.ACK);
+
+		write = (Tcp.Write) connection.receive(TIMEOUT);
+		assertEquals(Arrays.asList(first.toJson(), second.toJson(), newQuote(SUBSCRIBED, 3).toJson()), texts(write.data()));
+
+		connection.send(subscriber, new Tcp.Received(clientFrame(0x8, new byte[0])));
+		connection.send(subscriber, WireFormat.ACK);
+		assertEquals(MarketFeed.WebSocket.frame(0x8, new byte[0]), ((Tcp.Write) connection.receive(TIMEOUT)).data());
+		assertEquals(TcpMessage.close(), connection.receive(TIMEOUT));
+		Main.system.stop(subscriber);
+	}
+
+	@Test
+	public void anythingButTheFeedIsNotFound() {
+		Inbox connection = Inbox.create(Main.system);
+		ActorRef subscriber = Main.system.actorOf(Props.create(MarketFeed.Subscriber.class, connection.getRef()));
+		assertTrue(connection.receive(TIMEOUT) instanceof Tcp.Register);
+
+		connection.send(subscriber, new Tcp.Received(ByteString.fromString("GET /elsewhere HTTP/1.1\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n", "ISO-8859-1")));
+
+		String reply = ((Tcp.Write) connection.receive(TIMEOUT)).data().decodeString("ISO-8859-1");
+		assertTrue(reply, reply.startsWith("HTTP/1.1 404 Not Found\r\n"));
+		assertEquals(TcpMessage.close(), connection.receive(TIMEOUT));
+		Main.system.stop(subscriber);
+	}
+}
@@ -0,0 +1,89 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import ch.maxant.tradingengine.model.BookSnapshot;
+import ch.maxant.tradingengine.model.OrderStatus;
+import ch.maxant.tradingengine.model.Prices;
+
+public class MarketSnapshotsTest {
+
+	/** well away from the products and orders of other tests, since the snapshots are shared */
+	private static final int PRODUCT = 90;
+	private static final int ID = 900000;
+
+	private static BookSnapshot book(int productId, long asOf) {
+		return new BookSnapshot(productId, new long[] { Prices.parse("1.00"), Prices.parse("1.10") }, new long[] { 10, 5 },
+				new int[] { 2, 1 }, 3, 15, 1, 4, Prices.parse("0.90"), 1000, asOf);
+	}
+
+	private static OrderStatus status(int id, OrderStatus.State state) {
+		return new OrderStatus(id, PRODUCT, true, state, 10, 6, Prices.parse("1.00"), 2000);
+	}
+
+	@Test
+	public void theLatestBookIsServed() {
+		BookSnapshot older = book(PRODUCT, 1);
+		BookSnapshot newer = book(PRODUCT, 2);
+		MarketSnapshots.publish(new MarketSnapshots.Published(new BookSnapshot[] { older }, Collections.emptyList()));
+		MarketSnapshots.publish(new MarketSnapshots.Published(new BookSnapshot[] { newer }, Collections.emptyList()));
+
+		assertSame(newer, MarketSnapshots.book(PRODUCT));
+	}
+
+	@Test
+	public void aBookWhichWasNeverPublishedIsEmpty() {
+		BookSnapshot book = MarketSnapshots.book(PRODUCT + 1);
+
+		assertEquals(PRODUCT + 1, book.getProductId());
+		assertEquals(0, book.getDepth());
+		assertEquals(-1, book.getLastPrice());
+	}
+
+	@Test
+	public void theLatestStatusOfAnOrderIsServed() {
+		MarketSnapshots.publish(new MarketSnapshots.Published(new BookSnapshot[0], Arrays.asList(status(ID, OrderStatus.State.OPEN))));
+		OrderStatus filled = status(ID, OrderStatus.State.FILLED);
+		MarketSnapshots.publish(new MarketSnapshots.Published(new BookSnapshot[0], Arrays.asList(filled)));
+
+		assertSame(filled, MarketSnapshots.order(ID));
+		assertNull(MarketSnapshots.order(ID + 1));
+	}
+
+	@Test
+	public void onlyTheMostRecentOrdersAreRemembered() {
+		OrderStatus old = status(ID + 2, OrderStatus.State.OPEN);
+		OrderStatus recent = status(ID + 2 + MarketSnapshots.RECENT_ORDERS, OrderStatus.State.OPEN);
+		MarketSnapshots.publish(new MarketSnapshots.Published(new BookSnapshot[0], Arrays.asList(old, recent)));
+
+		assertNull(MarketSnapshots.order(old.getId()));
+		assertSame(recent, MarketSnapshots.order(recent.getId()));
+	}
+
+	@Test
+	public void statusesAreAnsweredInJson() {
+		assertEquals("{msg: 'ok', id: 5, productId: 90, side: 'sell', state: 'cancelled', quantity: 10, remaining: 6, price: 1.00, asOf: 2000}",
+				MarketSnapshots.toJson(status(5, OrderStatus.State.CANCELLED)));
+		OrderStatus purchase = new OrderStatus(6, PRODUCT, false, OrderStatus.State.OPEN, 4, 4, -1, 3000);
+		assertEquals("{msg: 'ok', id: 6, productId: 90, side: 'buy', state: 'open', quantity: 4, remaining: 4, asOf: 3000}",
+				MarketSnapshots.toJson(purchase));
+	}
+
+	@Test
+	public void booksAreAnsweredInJson() {
+		assertEquals("{msg: 'ok', productId: 90, sales: [{price: 1.00, quantity: 10, orders: 2}, {price: 1.10, quantity: 5, orders: 1}], "
+				+ "numberOfSalesOrders: 3, salesQuantity: 15, numberOfPurchaseOrders: 1, purchaseQuantity: 4, "
+				+ "lastPrice: 0.90, lastPriceTimestamp: 1000, asOf: 7}",
+				MarketSnapshots.toJson(book(PRODUCT, 7)));
+		assertEquals("{msg: 'ok', productId: 91, sales: [], numberOfSalesOrders: 0, salesQuantity: 0, "
+				+ "numberOfPurchaseOrders: 0, purchaseQuantity: 0, asOf: 0}",
+				MarketSnapshots.toJson(BookSnapshot.empty(PRODUCT + 1)));
+	}
+}
@@ -0,0 +1,205 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.ActorRef;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.routing.ActorRefRoutee;
+import akka.routing.Routee;
+import akka.routing.Router;
+import akka.util.ByteString;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+
+public class OrderEntryTest {
+
+	private static final FiniteDuration TIMEOUT = new FiniteDuration(5, TimeUnit.SECONDS);
+
+	private final OrderEntry.Decoder decoder = new OrderEntry.Decoder();
+
+	private static ByteString logon(String userId) {
+		byte[] bytes = userId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + bytes.length);
+		frame.putInt(1 + 2 + bytes.length).put(OrderEntry.LOGON).putShort((short) bytes.length).put(bytes);
+		return ByteString.fromArray(frame.array());
+	}
+
+	private static ByteString order(int clientRef, char side, int productId, int quantity, long price) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 29);
+		frame.putInt(1 + 29).put(OrderEntry.NEW_ORDER).putInt(clientRef).put((byte) side).putInt(productId)
+			.putInt(quantity).putLong(price).putLong(0);
+		return ByteString.fromArray(frame.array());
+	}
+
+	private static ByteString cancel(int clientRef, int productId, int orderId) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 12);
+		frame.putInt(1 + 12).put(OrderEntry.CANCEL).putInt(clientRef).putInt(productId).putInt(orderId);
+		return ByteString.fromArray(frame.array());
+	}
+
+	@Test
+	public void ordersBelongToTheUserWhoLoggedOn() {
+		OrderEntry.Batch batch = decoder.decode(logon("\u00e4nne")
+				.concat(order(7, 'S', 3, 10, Prices.parse("12.50")))
+				.concat(order(8, 'B', 4, 20, 0)));
+
+		assertEquals(Arrays.asList(7, 8), batch.clientRefs);
+		SalesOrder so = (SalesOrder) batch.orders.get(0);
+		assertEquals(3, so.getProductId());
+		assertEquals(10, so.getRemainingQuantity());
+		assertEquals(Prices.parse("12.50"), so.getPrice());
+		assertEquals("\u00e4nne", so.getUserId());
+		assertEquals(Participants.intern("\u00e4nne"), so.getParticipant());
+		PurchaseOrder po = (PurchaseOrder) batch.orders.get(1);
+		assertEquals(4, po.getProductId());
+		assertEquals(20, po.getRemainingQuantity());
+		assertEquals(Main.RequestHandler.MAXIMUM_PURCHASE_PRICE, po.getMaximumAcceptedPrice());
+		assertEquals(so.getId() + 1, po.getId());
+	}
+
+	@Test
+	public void aCancellationIsOnTheUsersBehalf() {
+		decoder.decode(logon("bert"));
+
+		OrderEntry.Batch batch = decoder.decode(cancel(9, 5, 1234));
+
+		Cancellation c = (Cancellation) batch.orders.get(0);
+		assertEquals(5, c.getProductId());
+		assertEquals(1234, c.getId());
+		assertEquals("bert", c.getUserId());
+	}
+
+	@Test
+	public void rejectionsKeepTheirPlaceAmongTheFrames() {
+		OrderEntry.Batch batch = decoder.decode(order(1, 'S', 3, 10, 100)
+				.concat(cancel(2, 3, 99))
+				.concat(logon("carl"))
+				.concat(order(3, 'S', 3, 10, 100))
+				.concat(order(4, 'S', 3, 0, 100))
+				.concat(order(5, 'S', 3, 10, 0))
+				.concat(order(6, 'X', 3, 10, 100))
+				.concat(order(7, 'B', 3, 10, 0)));
+
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), batch.clientRefs);
+		assertNull(batch.frames.get(0)); // not logged on yet
+		assertNull(batch.frames.get(1));
+		assertTrue(batch.frames.get(2) instanceof SalesOrder);
+		assertNull(batch.frames.get(3)); // no quantity
+		assertNull(batch.frames.get(4)); // no price
+		assertNull(batch.frames.get(5)); // neither side
+		assertTrue(batch.frames.get(6) instanceof PurchaseOrder);
+		assertEquals(Arrays.asList(batch.frames.get(2), batch.frames.get(6)), batch.orders);
+	}
+
+	@Test
+	public void rejectedOrdersUseUpNoIds() {
+		decoder.decode(logon("dora"));
+		int next = Constants.ID.get();
+
+		decoder.decode(order(1, 'X', 3, 10, 100).concat(order(2, 'S', 3, -1, 100)));
+
+		assertEquals(next, Constants.ID.get());
+	}
+
+	@Test
+	public void framesSplitAcrossReadsAreDecodedOnceComplete() {
+		ByteString frames = logon("emil").concat(order(1, 'S', 3, 10, 100)).concat(order(2, 'B', 3, 10, 0));
+		List<Integer> clientRefs = new ArrayList<>();
+
+		for (int i = 0; i < frames.size(); i++) {
+			clientRefs.addAll(decoder.decode(frames.slice(i, i + 1)).clientRefs);
+		}
+
+		assertEquals(Arrays.asList(1, 2), clientRefs);
+	}
+
+	@Test
+	public void anInvalidFrameSpoilsTheWholeRead() {
+		ByteBuffer unknown = ByteBuffer.allocate(4 + 1).putInt(1).put((byte) 99);
+
+		assertNull(decoder.decode(logon("fred").concat(order(1, 'S', 3, 10, 100)).concat(ByteString.fromArray(unknown.array()))));
+		assertEquals("a frame of type 99 with 0 bytes of fields", decoder.getInvalid());
+
+		assertNull(new OrderEntry.Decoder().decode(ByteString.fromArray(ByteBuffer.allocate(4).putInt(0).array())));
+		assertNull(new OrderEntry.Decoder().decode(ByteString.fromArray(ByteBuffer.allocate(4).putInt(OrderEntry.MAX_FRAME_LENGTH + 1).array())));
+		// a short order
+		assertNull(new OrderEntry.Decoder().decode(ByteString.fromArray(ByteBuffer.allocate(4 + 1 + 4).putInt(1 + 4).put(OrderEntry.NEW_ORDER).array())));
+	}
+
+	@Test
+	public void theFramesOfAReadAreAcknowledgedInOrderInOneWrite() {
+		// product 3 is traded by the engine, product 4 by none
+		Inbox engine = Inbox.create(Main.system);
+		Routee[] routeeByProduct = new Routee[Constants.NUM_PRODUCTS];
+		routeeByProduct[3] = new ActorRefRoutee(engine.getRef());
+		int[] partitionByProduct = new int[Constants.NUM_PRODUCTS];
+		Arrays.fill(partitionByProduct, -1);
+		partitionByProduct[3] = 0;
+		Router router = new Router(new Main.PartitioningRoutingLogic(routeeByProduct), Arrays.asList(routeeByProduct[3]));
+		AtomicReference<Main.RoutingTable> table = new AtomicReference<>(
+				new Main.RoutingTable(router, partitionByProduct, new AtomicInteger[]{ new AtomicInteger() }));
+		Inbox connection = Inbox.create(Main.system);
+		ActorRef session = Main.system.actorOf(Props.create(OrderEntry.Session.class, connection.getRef(), table));
+		assertTrue(connection.receive(TIMEOUT) instanceof Tcp.Register);
+
+		connection.send(session, new Tcp.Received(logon("gina")
+				.concat(order(1, 'S', 3, 10, 100))
+				.concat(order(2, 'S', 3, 0, 100))
+				.concat(order(3, 'B', 4, 10, 0))
+				.concat(order(4, 'B', 3, 10, 0))));
+
+		Main.OrderBatch share = (Main.OrderBatch) engine.receive(TIMEOUT);
+		assertEquals(2, share.orders.size());
+		Tcp.Write write = (Tcp.Write) connection.receive(TIMEOUT);
+		assertSame(WireFormat.ACK, write.ack());
+		ByteBuffer acks = write.data().asByteBuffer();
+		assertEquals(4 * 14, acks.remaining());
+		int[][] expected = {
+			{ 1, ((SalesOrder) share.orders.get(0)).getId(), OrderEntry.ACCEPTED },
+			{ 2, -1, OrderEntry.REJECTED },
+			{ 3, -1, OrderEntry.UNKNOWN_PRODUCT },
+			{ 4, ((PurchaseOrder) share.orders.get(1)).getId(), OrderEntry.ACCEPTED },
+		};
+		for (int[] ack : expected) {
+			assertEquals(1 + 4 + 4 + 1, acks.getInt());
+			assertEquals(OrderEntry.ACK, acks.get());
+			assertEquals(ack[0], acks.getInt());
+			assertEquals(ack[1], acks.getInt());
+			assertEquals(ack[2], acks.get());
+		}
+
+		// the next read waits for the write to complete
+		connection.send(session, new Tcp.Received(order(5, 'S', 4, 10, 100)));
+		connection.send(session, WireFormat.ACK);
+		write = (Tcp.Write) connection.receive(TIMEOUT);
+		acks = write.data().asByteBuffer();
+		acks.position(4 + 1);
+		assertEquals(5, acks.getInt());
+
+		connection.send(session, new Tcp.Received(ByteString.fromArray(ByteBuffer.allocate(4).putInt(0).array())));
+		assertEquals(TcpMessage.close(), connection.receive(TIMEOUT));
+		Main.system.stop(session);
+	}
+}
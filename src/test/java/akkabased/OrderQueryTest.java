@@ -0,0 +1,109 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import ch.maxant.tradingengine.model.Prices;
+
+public class OrderQueryTest {
+
+	private final OrderQuery query = new OrderQuery();
+
+	@Test
+	public void parametersAreReadInAnyOrder() {
+		query.parse("userId=ant&price=12.5&quantity=10&productId=3&timeToLive=2000&id=42");
+
+		assertEquals(3, query.getProductId());
+		assertEquals(10, query.getQuantity());
+		assertEquals("ant", query.getUserId());
+		assertEquals(Prices.parse("12.50"), query.getPrice());
+		assertEquals(42, query.getId());
+		assertEquals(2000, query.getTimeToLive());
+	}
+
+	@Test
+	public void unknownAndEmptyParametersAreIgnored() {
+		query.parse("&foo=bar&productId=3&&novalue&quantity=1&");
+
+		assertEquals(3, query.getProductId());
+		assertEquals(1, query.getQuantity());
+	}
+
+	@Test
+	public void theUserIdIsDecoded() {
+		query.parse("userId=%C3%A4nne+b");
+
+		assertEquals("\u00e4nne b", query.getUserId());
+	}
+
+	@Test
+	public void aRangeOfAStringIsParsedOnItsOwn() {
+		String body = "sell?productId=3&quantity=10\nbuy?productId=4";
+
+		query.parse(body, 5, body.indexOf('\n'));
+
+		assertEquals(3, query.getProductId());
+		assertEquals(10, query.getQuantity());
+	}
+
+	@Test
+	public void optionalParametersHaveDefaults() {
+		query.parse("productId=3");
+
+		assertEquals(0, query.getTimeToLive());
+		assertEquals(-1, query.getPrice(-1));
+	}
+
+	@Test
+	public void theNextQueryForgetsThePreviousOne() {
+		query.parse("productId=3&userId=ant&price=1");
+		query.parse("productId=4");
+
+		assertEquals(4, query.getProductId());
+		assertRejected(query::getUserId, "missing parameter 'userId'");
+		assertRejected(query::getPrice, "missing parameter 'price'");
+	}
+
+	@Test
+	public void ordersNeedAPositiveQuantityAndPrice() {
+		query.parse("quantity=0&price=0");
+		assertRejected(query::getQuantity, "quantity must be positive, but was 0");
+		assertRejected(query::getPrice, "price must be positive, but was 0.00");
+		assertRejected(() -> query.getPrice(1), "price must be positive, but was 0.00");
+
+		// but an amendment may cancel the order
+		assertEquals(0, query.getRemainingQuantity());
+		query.parse("quantity=-1");
+		assertRejected(query::getRemainingQuantity, "quantity must not be negative, but was -1");
+	}
+
+	@Test
+	public void malformedNumbersAreRejected() {
+		assertMalformed("productId=");
+		assertMalformed("productId=-");
+		assertMalformed("productId=1x");
+		assertMalformed("productId=2147483648");
+		assertMalformed("timeToLive=1234567890123456789");
+		assertMalformed("price=1.2.3");
+	}
+
+	private void assertMalformed(String malformed) {
+		try {
+			query.parse(malformed);
+			fail(malformed + " was parsed");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+	}
+
+	private static void assertRejected(Runnable getter, String reason) {
+		try {
+			getter.run();
+			fail("no exception");
+		} catch (IllegalArgumentException e) {
+			assertEquals(reason, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class OrderRingTest {
+
+	@Test
+	public void theCapacityIsRoundedUpToAPowerOfTwo() {
+		assertEquals(4, new OrderRing(3).getCapacity());
+		assertEquals(4, new OrderRing(4).getCapacity());
+		assertEquals(2, new OrderRing(1).getCapacity());
+	}
+
+	@Test
+	public void aFullRingCannotBeClaimedUntilReleased() {
+		OrderRing ring = new OrderRing(4);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, ring.tryClaim());
+		}
+		assertEquals(-1, ring.tryClaim());
+		assertEquals(4, ring.size());
+
+		ring.release(0);
+		assertEquals(4, ring.tryClaim());
+		assertEquals(-1, ring.tryClaim());
+	}
+
+	@Test
+	public void onlyPublishedSequencesWithoutAGapAreAvailable() {
+		OrderRing ring = new OrderRing(4);
+		for (int i = 0; i < 3; i++) {
+			ring.tryClaim();
+		}
+		assertEquals(-1, ring.available(0, 4));
+
+		ring.publish(1);
+		assertEquals(-1, ring.available(0, 4));
+
+		ring.publish(0);
+		assertEquals(1, ring.available(0, 4));
+		assertEquals(0, ring.available(0, 1));
+	}
+
+	@Test
+	public void slotsAreReusedWhenTheRingWrapsAround() {
+		OrderRing ring = new OrderRing(4);
+		OrderRing.Slot first = ring.get(0);
+		long next = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 3; i++) {
+				long sequence = ring.tryClaim();
+				assertEquals(next + i, sequence);
+				ring.get(sequence).sell(1, "user", 2, (int) sequence + 1, 100, (int) sequence, 0);
+				ring.publish(sequence);
+			}
+			long last = ring.available(next, 8);
+			assertEquals(next + 2, last);
+			for (long sequence = next; sequence <= last; sequence++) {
+				OrderRing.Slot slot = ring.get(sequence);
+				assertEquals(OrderRing.SALES_ORDER, slot.type);
+				assertEquals(sequence, slot.id);
+				assertEquals(sequence + 1, slot.quantity);
+			}
+			ring.release(last);
+			assertEquals(0, ring.size());
+			next = last + 1;
+		}
+		// a sequence which was published a revolution earlier isn't mistaken for the current one
+		assertEquals(next - 1, ring.available(next, 8));
+		assertSame(first, ring.get(next - next % ring.getCapacity()));
+	}
+}
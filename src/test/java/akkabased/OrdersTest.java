@@ -0,0 +1,132 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.concurrent.duration.FiniteDuration;
+import spray.http.HttpEntity$;
+import spray.http.HttpMethods;
+import spray.http.HttpProtocols;
+import spray.http.HttpRequest;
+import spray.http.HttpResponse;
+import spray.http.Uri;
+import akka.actor.ActorRef;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import akka.routing.ActorRefRoutee;
+import akka.routing.Routee;
+import akka.routing.Router;
+import ch.maxant.tradingengine.model.Constants;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+
+/** the batches of orders posted to /orders, which are split by engine */
+public class OrdersTest {
+
+	private static final FiniteDuration TIMEOUT = new FiniteDuration(5, TimeUnit.SECONDS);
+	/** traded by neither engine */
+	private static final int UNKNOWN = Constants.NUM_PRODUCTS - 1;
+
+	/** the first engine trades the lower half of the products, the second one the upper half */
+	private final Inbox[] engines = { Inbox.create(Main.system), Inbox.create(Main.system) };
+	private final AtomicInteger[] queued = { new AtomicInteger(), new AtomicInteger() };
+	private final Inbox client = Inbox.create(Main.system);
+	private ActorRef handler;
+
+	@Before
+	public void createHandler() {
+		Routee[] routees = { new ActorRefRoutee(engines[0].getRef()), new ActorRefRoutee(engines[1].getRef()) };
+		Routee[] routeeByProduct = new Routee[Constants.NUM_PRODUCTS];
+		int[] partitionByProduct = new int[Constants.NUM_PRODUCTS];
+		for (int productId = 0; productId < UNKNOWN; productId++) {
+			partitionByProduct[productId] = productId < Constants.NUM_PRODUCTS / 2 ? 0 : 1;
+			routeeByProduct[productId] = routees[partitionByProduct[productId]];
+		}
+		partitionByProduct[UNKNOWN] = -1;
+		Router router = new Router(new Main.PartitioningRoutingLogic(routeeByProduct), Arrays.asList(routees));
+		AtomicReference<Main.RoutingTable> table = new AtomicReference<>(new Main.RoutingTable(router, partitionByProduct, queued));
+		handler = Main.system.actorOf(Props.create(Main.RequestHandler.class, client.getRef(), table));
+	}
+
+	@After
+	public void stopHandler() {
+		Main.system.stop(handler);
+	}
+
+	private HttpResponse post(String body) {
+		client.send(handler, new HttpRequest(HttpMethods.POST(), Uri.apply("/orders"), scala.collection.immutable.List$.MODULE$.empty(),
+				HttpEntity$.MODULE$.apply(body), HttpProtocols.HTTP$div1$u002E1()));
+		return (HttpResponse) client.receive(TIMEOUT);
+	}
+
+	private static int idOf(Object order) {
+		return order instanceof SalesOrder ? ((SalesOrder) order).getId() : ((PurchaseOrder) order).getId();
+	}
+
+	@Test
+	public void eachEngineGetsItsShareInOneBatch() {
+		HttpResponse response = post("sell?productId=1&quantity=10&userId=ant&price=1.5\r\n"
+				+ "/buy?productId=60&quantity=5&userId=bee\n"
+				+ "\n"
+				+ "buy?productId=" + UNKNOWN + "&quantity=5&userId=bee\n"
+				+ "sell?productId=2&quantity=3&userId=ant&price=2");
+
+		Main.OrderBatch first = (Main.OrderBatch) engines[0].receive(TIMEOUT);
+		Main.OrderBatch second = (Main.OrderBatch) engines[1].receive(TIMEOUT);
+		assertEquals(2, first.orders.size());
+		SalesOrder so = (SalesOrder) first.orders.get(0);
+		assertEquals(1, so.getProductId());
+		assertEquals(10, so.getRemainingQuantity());
+		assertEquals("ant", so.getUserId());
+		assertEquals(2, ((SalesOrder) first.orders.get(1)).getProductId());
+		assertEquals(1, second.orders.size());
+		assertEquals(60, ((PurchaseOrder) second.orders.get(0)).getProductId());
+		assertEquals(200, response.status().intValue());
+		assertTrue(response.headers().isEmpty());
+		assertEquals("{msg: 'ok', ids: [" + idOf(first.orders.get(0)) + ", " + idOf(second.orders.get(0)) + ", -1, "
+				+ idOf(first.orders.get(1)) + "]}", response.entity().asString());
+		assertEquals(2, queued[0].get());
+		assertEquals(1, queued[1].get());
+	}
+
+	@Test
+	public void theShareOfASaturatedEngineIsRejected() {
+		queued[1].set(Main.MAX_QUEUED_MESSAGES);
+
+		HttpResponse response = post("sell?productId=1&quantity=10&userId=ant&price=1.5\n"
+				+ "buy?productId=60&quantity=5&userId=bee\n"
+				+ "buy?productId=61&quantity=5&userId=bee\n");
+
+		Main.OrderBatch first = (Main.OrderBatch) engines[0].receive(TIMEOUT);
+		assertEquals(1, first.orders.size());
+		assertEquals("{msg: 'ok', ids: [" + idOf(first.orders.get(0)) + ", -1, -1]}", response.entity().asString());
+		assertEquals("Retry-After", response.headers().head().name());
+	}
+
+	@Test
+	public void aMalformedLineRejectsTheWholeBatch() {
+		HttpResponse response = post("sell?productId=1&quantity=10&userId=ant&price=1.5\n"
+				+ "sell?productId=1&quantity=10&userId=ant\n");
+
+		assertEquals(400, response.status().intValue());
+		assertEquals("{msg: 'bad request', reason: 'line 2: missing parameter 'price''}", response.entity().asString());
+		assertEquals(0, queued[0].get());
+	}
+
+	@Test
+	public void aLineMustBeASaleOrAPurchase() {
+		HttpResponse response = post("cancel?productId=1&id=10&userId=ant");
+
+		assertEquals(400, response.status().intValue());
+		assertEquals("{msg: 'bad request', reason: 'line 1: neither a sale nor a purchase'}", response.entity().asString());
+	}
+}
@@ -0,0 +1,34 @@
+package akkabased;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import spray.http.StatusCodes;
+
+public class ResponseTemplateTest {
+
+	private final ResponseTemplate template = new ResponseTemplate(StatusCodes.OK(), scala.collection.immutable.List$.MODULE$.empty(),
+			"{msg: 'ok', id: ", "}");
+
+	private String body(long number) {
+		return template.with(number).entity().asString();
+	}
+
+	@Test
+	public void theNumberIsWrittenBetweenThePrefixAndSuffix() {
+		assertEquals("{msg: 'ok', id: 0}", body(0));
+		assertEquals("{msg: 'ok', id: 7}", body(7));
+		assertEquals("{msg: 'ok', id: 42}", body(42));
+		assertEquals("{msg: 'ok', id: 1000000}", body(1000000));
+		assertEquals("{msg: 'ok', id: -1}", body(-1));
+		assertEquals("{msg: 'ok', id: " + Long.MAX_VALUE + "}", body(Long.MAX_VALUE));
+		assertEquals("{msg: 'ok', id: " + Long.MIN_VALUE + "}", body(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void theResponseIsJson() {
+		assertEquals(200, template.with(1).status().intValue());
+		assertEquals("application/json", template.with(1).entity().toOption().get().contentType().mediaType().value());
+	}
+}
@@ -0,0 +1,207 @@
+package akkabased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.ActorRef;
+import akka.actor.Inbox;
+import akka.io.Tcp;
+import akka.util.ByteString;
+import ch.maxant.tradingengine.model.Amendment;
+import ch.maxant.tradingengine.model.BookSnapshot;
+import ch.maxant.tradingengine.model.BookTransfer;
+import ch.maxant.tradingengine.model.Cancellation;
+import ch.maxant.tradingengine.model.OrderStatus;
+import ch.maxant.tradingengine.model.Participants;
+import ch.maxant.tradingengine.model.Prices;
+import ch.maxant.tradingengine.model.PurchaseOrder;
+import ch.maxant.tradingengine.model.SalesOrder;
+import ch.maxant.tradingengine.model.TradingEngine.MarketPrice;
+import ch.maxant.tradingengine.model.VolumeStatistics;
+
+public class WireFormatTest {
+
+	private static final FiniteDuration TIMEOUT = new FiniteDuration(5, TimeUnit.SECONDS);
+	private static final int BUCKETS = (int) (VolumeStatistics.WINDOW_MS / VolumeStatistics.BUCKET_MS);
+
+	/** stands in for the connection, receiving what the outbox writes */
+	private final Inbox connection = Inbox.create(Main.system);
+	private final WireFormat.Outbox outbox = new WireFormat.Outbox(connection.getRef(), ActorRef.noSender());
+	private final WireFormat.Decoder decoder = new WireFormat.Decoder();
+	private final List<Object> received = new ArrayList<>();
+
+	private ByteString written() {
+		Tcp.Write write = (Tcp.Write) connection.receive(TIMEOUT);
+		assertSame(WireFormat.ACK, write.ack());
+		return write.data();
+	}
+
+	private Object roundTrip(Object message) {
+		outbox.send(message);
+		decoder.decode(written(), received::add);
+		outbox.acknowledged();
+		assertEquals(1, received.size());
+		return received.remove(0);
+	}
+
+	@Test
+	public void aSalesOrderKeepsItsFieldsAndOwner() {
+		SalesOrder so = new SalesOrder(Prices.parse("12.34"), 5, 10, 42);
+		so.setUserId("anton");
+		so.setTimeToLive(3000);
+
+		SalesOrder decoded = (SalesOrder) roundTrip(so);
+
+		assertEquals(42, decoded.getId());
+		assertEquals(5, decoded.getProductId());
+		assertEquals(10, decoded.getRemainingQuantity());
+		assertEquals(Prices.parse("12.34"), decoded.getPrice());
+		assertEquals(3000, decoded.getTimeToLive());
+		assertEquals("anton", decoded.getUserId());
+		// handles are only valid within a JVM, so the user ID is interned again
+		assertEquals(Participants.intern("anton"), decoded.getParticipant());
+	}
+
+	@Test
+	public void aPurchaseOrderKeepsItsFieldsAndOwner() {
+		PurchaseOrder po = new PurchaseOrder(6, 20, Prices.parse("99.90"), 43);
+		po.setUserId("\u00e4nne");
+
+		PurchaseOrder decoded = (PurchaseOrder) roundTrip(po);
+
+		assertEquals(43, decoded.getId());
+		assertEquals(6, decoded.getProductId());
+		assertEquals(20, decoded.getRemainingQuantity());
+		assertEquals(Prices.parse("99.90"), decoded.getMaximumAcceptedPrice());
+		assertEquals("\u00e4nne", decoded.getUserId());
+	}
+
+	@Test
+	public void cancellationsAndAmendmentsKeepTheirOwner() {
+		Cancellation c = (Cancellation) roundTrip(new Cancellation(5, 42, "anton", 0));
+		assertEquals(5, c.getProductId());
+		assertEquals(42, c.getId());
+		assertEquals(Participants.intern("anton"), c.getParticipant());
+
+		Amendment a = (Amendment) roundTrip(new Amendment(5, 42, 7, Amendment.UNCHANGED_PRICE, "anton", 0));
+		assertEquals(5, a.getProductId());
+		assertEquals(42, a.getId());
+		assertEquals(7, a.getQuantity());
+		assertEquals(Amendment.UNCHANGED_PRICE, a.getPrice());
+		assertEquals(Participants.intern("anton"), a.getParticipant());
+	}
+
+	@Test
+	public void aBookKeepsItsOrdersPriceAndVolume() {
+		int[] quantities = new int[BUCKETS];
+		long[] turnovers = new long[BUCKETS];
+		int[] counts = new int[BUCKETS];
+		quantities[3] = 4;
+		turnovers[3] = 4 * Prices.parse("1.00");
+		counts[3] = 1;
+		BookTransfer transfer = new BookTransfer(5, new MarketPrice(5, Prices.parse("1.00"), 1234),
+				new VolumeStatistics.Window(103, quantities, turnovers, counts));
+		SalesOrder so = new SalesOrder(Prices.parse("1.10"), 5, 10, 42);
+		so.setUserId("anton");
+		transfer.getSalesOrders().add(so);
+		PurchaseOrder po = new PurchaseOrder(5, 20, Prices.parse("99.90"), 43);
+		po.setUserId("berta");
+		transfer.getPurchaseOrders().add(po);
+
+		BookTransfer decoded = (BookTransfer) roundTrip(transfer);
+
+		assertEquals(5, decoded.getProductId());
+		assertEquals(Prices.parse("1.00"), decoded.getMarketPrice().getPrice());
+		assertEquals(1234, decoded.getMarketPrice().getTimestamp());
+		assertEquals(103, decoded.getVolume().getHead());
+		assertArrayEquals(quantities, decoded.getVolume().getQuantities());
+		assertArrayEquals(turnovers, decoded.getVolume().getTurnovers());
+		assertArrayEquals(counts, decoded.getVolume().getCounts());
+		assertEquals(42, decoded.getSalesOrders().get(0).getId());
+		assertEquals(43, decoded.getPurchaseOrders().get(0).getId());
+	}
+
+	@Test
+	public void anEmptyBookHasNoPriceOrVolume() {
+		BookTransfer decoded = (BookTransfer) roundTrip(new BookTransfer(5, null, null));
+
+		assertNull(decoded.getMarketPrice());
+		assertNull(decoded.getVolume());
+		assertTrue(decoded.getSalesOrders().isEmpty());
+		assertTrue(decoded.getPurchaseOrders().isEmpty());
+	}
+
+	@Test
+	public void theLoadOfAnEngineIsReported() {
+		Main.EngineLoad load = (Main.EngineLoad) roundTrip(new Main.EngineLoad(2, 1000, 15, 3, 900, 500));
+
+		assertEquals(2, load.partition);
+		assertEquals(1000, load.processed);
+		assertEquals(15, load.sittingMillis);
+		assertEquals(3, load.batches);
+		assertEquals(900, load.batched);
+		assertEquals(500, load.largestBatch);
+	}
+
+	@Test
+	public void framesSentWhileAWriteIsUnderWayAreWrittenTogetherOnceItIsAcknowledged() {
+		outbox.send(new WireFormat.Welcome(1));
+		outbox.send(new Main.AwaitBook(2));
+		outbox.send(new WireFormat.ExportBookRequest(3));
+		decoder.decode(written(), received::add);
+		assertEquals(1, received.size());
+
+		outbox.acknowledged();
+		decoder.decode(written(), received::add);
+
+		assertEquals(3, received.size());
+		assertEquals(1, ((WireFormat.Welcome) received.get(0)).partition);
+		assertEquals(2, ((Main.AwaitBook) received.get(1)).productId);
+		assertEquals(3, ((WireFormat.ExportBookRequest) received.get(2)).productId);
+	}
+
+	@Test
+	public void framesAreDecodedHoweverTheyAreSplitAcrossReads() {
+		outbox.send(new Main.BookImported(4));
+		outbox.acknowledged();
+		outbox.send(new Cancellation(5, 42, "anton", 0));
+		ByteString bytes = written().concat(written());
+
+		for (int split = 0; split <= bytes.size(); split++) {
+			WireFormat.Decoder decoder = new WireFormat.Decoder();
+			received.clear();
+			decoder.decode(bytes.take(split), received::add);
+			decoder.decode(bytes.drop(split), received::add);
+
+			assertEquals("split at " + split, 2, received.size());
+			assertEquals(4, ((Main.BookImported) received.get(0)).productId);
+			assertEquals(42, ((Cancellation) received.get(1)).getId());
+		}
+	}
+
+	/** so that the HTTP node can answer queries about the products traded by engine nodes */
+	@Test
+	public void snapshotsAreRelayed() {
+		BookSnapshot book = new BookSnapshot(5, new long[] { Prices.parse("1.00") }, new long[] { 10 }, new int[] { 2 }, 2, 10, 1, 4,
+				Prices.parse("0.90"), 1000, 2000);
+		OrderStatus status = new OrderStatus(42, 5, true, OrderStatus.State.EXPIRED, 10, 6, Prices.parse("1.00"), 2000);
+
+		MarketSnapshots.Published decoded = (MarketSnapshots.Published) roundTrip(
+				new MarketSnapshots.Published(new BookSnapshot[] { book }, Arrays.asList(status)));
+
+		assertEquals(MarketSnapshots.toJson(book), MarketSnapshots.toJson(decoded.books[0]));
+		assertEquals(1, decoded.statuses.size());
+		assertEquals(MarketSnapshots.toJson(status), MarketSnapshots.toJson(decoded.statuses.get(0)));
+	}
+}
@@ -0,0 +1,66 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class IntMapTest {
+
+    @Test
+    public void growsBeyondTheExpectedSize() {
+	IntMap<String> map = new IntMap<>(4);
+	for (int key = 0; key < 10000; key++) {
+	    map.put(key * 31, "v" + key);
+	}
+	assertEquals(10000, map.size());
+	for (int key = 0; key < 10000; key++) {
+	    assertEquals("v" + key, map.get(key * 31));
+	}
+	assertNull(map.get(1));
+    }
+
+    @Test
+    public void putReplacesTheValueOfAnExistingKey() {
+	IntMap<String> map = new IntMap<>(4);
+	map.put(7, "a");
+	map.put(7, "b");
+	assertEquals(1, map.size());
+	assertEquals("b", map.get(7));
+    }
+
+    @Test
+    public void removingKeepsTheFollowingEntriesReachable() {
+	// the initial capacity of 16 is kept, so that plenty of keys collide
+	IntMap<Integer> map = new IntMap<>(4);
+	for (int key = 0; key < 7; key++) {
+	    map.put(key, key);
+	}
+	for (int round = 0; round < 1000; round++) {
+	    int key = 7 + round;
+	    map.put(key, key);
+	    assertEquals(Integer.valueOf(round), map.remove(round));
+	    assertNull(map.get(round));
+	    for (int k = round + 1; k <= key; k++) {
+		assertEquals(Integer.valueOf(k), map.get(k));
+	    }
+	    assertEquals(7, map.size());
+	}
+    }
+
+    @Test
+    public void removingAMissingKeyChangesNothing() {
+	IntMap<String> map = new IntMap<>(4);
+	map.put(1, "a");
+	assertNull(map.remove(2));
+	assertEquals(1, map.size());
+	assertEquals("a", map.remove(1));
+	assertNull(map.remove(1));
+	assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valuesMayNotBeNull() {
+	new IntMap<String>(4).put(1, null);
+    }
+}
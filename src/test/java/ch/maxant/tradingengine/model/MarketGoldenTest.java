@@ -0,0 +1,107 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Batch matching must make the same sales as the original market did. The
+ * golden file holds the sales which the original, unoptimised market made for
+ * the order stream below, one per line: sitting, product, buyer, seller,
+ * price in ticks, quantity, purchase order ID and sales order ID. Within a
+ * sitting, they are in the order in which they were made, by product.
+ */
+public class MarketGoldenTest {
+
+    private static final long SEED = 42;
+    private static final int SITTINGS = 20;
+    private static final int ORDERS_PER_SITTING = 25;
+
+    @Test
+    public void tradeMakesTheSalesOfTheOriginalMarket() throws IOException {
+	assertEquals(golden(), trade(null));
+    }
+
+    @Test
+    public void tradingInParallelMakesTheSameSales() throws IOException {
+	ForkJoinPool pool = new ForkJoinPool(4);
+	try {
+	    assertEquals(golden(), trade(pool));
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** enters the orders like {@link TradingEngine} does in batch mode, and trades after each lot */
+    private static List<String> trade(ForkJoinPool pool) {
+	Random random = new Random(SEED);
+	Market market = new Market();
+	long maximumPurchasePrice = Prices.parse("9999.9");
+	List<String> lines = new ArrayList<>();
+	List<Sale> previousSales = new ArrayList<>();
+	int id = 0;
+	for (int sitting = 0; sitting < SITTINGS; sitting++) {
+	    for (int i = 0; i < ORDERS_PER_SITTING; i++) {
+		String who = "user" + random.nextInt(6);
+		int productId = random.nextInt(3);
+		int quantity = 1 + random.nextInt(20);
+		long price = 950 + random.nextInt(100);
+		boolean sell = random.nextBoolean();
+		int participant = Participants.intern(who);
+		id++;
+		if (sell) {
+		    Seller seller = market.getSeller(participant);
+		    if (seller == null) {
+			seller = new Seller(who, participant);
+			market.addSeller(seller);
+		    }
+		    SalesOrder so = market.newSalesOrder(price, productId, quantity, id);
+		    so.setUserId(who);
+		    so.setParticipant(participant);
+		    so.setTimeToLive(Constants.TIMEOUT);
+		    market.addSalesOrder(seller, so);
+		} else {
+		    Buyer buyer = market.getBuyer(participant);
+		    if (buyer == null) {
+			buyer = new Buyer(who, participant);
+			market.addBuyer(buyer);
+		    }
+		    PurchaseOrder po = market.newPurchaseOrder(productId, quantity, maximumPurchasePrice, id);
+		    po.setUserId(who);
+		    po.setParticipant(participant);
+		    po.setTimeToLive(Constants.TIMEOUT);
+		    market.addPurchaseOrder(buyer, po);
+		}
+	    }
+	    market.recycle(previousSales);
+	    List<Sale> sales = pool == null ? market.trade() : market.trade(pool);
+	    List<Sale> byProduct = new ArrayList<>(sales);
+	    byProduct.sort(Comparator.comparingInt(Sale::getProductId));
+	    for (Sale sale : byProduct) {
+		lines.add(sitting + " " + sale.getProductId() + " " + sale.getBuyer().getName() + " "
+			+ sale.getSeller().getName() + " " + sale.getPrice() + " " + sale.getQuantity() + " "
+			+ sale.getPurchaseOrder().getId() + " " + sale.getSalesOrder().getId());
+	    }
+	    previousSales = sales;
+	}
+	return lines;
+    }
+
+    private static List<String> golden() throws IOException {
+	try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+		MarketGoldenTest.class.getResourceAsStream("batch-golden.txt"), StandardCharsets.UTF_8))) {
+	    return reader.lines().collect(Collectors.toList());
+	}
+    }
+}
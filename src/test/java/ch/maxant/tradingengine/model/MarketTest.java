@@ -0,0 +1,45 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MarketTest {
+
+    private final Market market = new Market();
+    private final Seller seller = new Seller("seller", 1);
+    private final Buyer buyer = new Buyer("buyer", 2);
+
+    {
+	market.addSeller(seller);
+	market.addBuyer(buyer);
+    }
+
+    /** rather than adding another entry each time it is amended */
+    @Test
+    public void reenteringAnOrderKeepsItsExpiry() {
+	SalesOrder so = market.newSalesOrder(Prices.parse("1.00"), 0, 10, 1);
+	so.setSeller(seller);
+	market.addSalesOrder(seller, so);
+	PurchaseOrder po = market.newPurchaseOrder(0, 10, Prices.parse("2.00"), 2);
+	po.setBuyer(buyer);
+	market.addPurchaseOrder(buyer, po);
+	assertEquals(2, market.getNumberOfExpiries());
+
+	for (int i = 0; i < 3; i++) {
+	    market.withdraw(so);
+	    so.amend(so.getPrice(), so.getRemainingQuantity() + 1);
+	    market.reenter(seller, so);
+	    market.withdraw(po);
+	    po.amend(po.getRemainingQuantity() + 1);
+	    market.reenter(buyer, po);
+	}
+
+	assertEquals(2, market.getNumberOfExpiries());
+	assertTrue(so.isResting());
+	assertSame(so, market.getSalesOrder(0, 1));
+	assertSame(po, market.getPurchaseOrder(0, 2));
+    }
+}
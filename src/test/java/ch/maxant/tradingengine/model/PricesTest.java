@@ -0,0 +1,73 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PricesTest {
+
+    @Test
+    public void parsesIntoTicks() {
+	assertEquals(1250, Prices.parse("12.5"));
+	assertEquals(1250, Prices.parse("12.50"));
+	assertEquals(1200, Prices.parse("12"));
+	assertEquals(1200, Prices.parse("12."));
+	assertEquals(5, Prices.parse("0.05"));
+	assertEquals(5, Prices.parse(".05"));
+	assertEquals(-5, Prices.parse("-0.05"));
+	assertEquals(999990, Prices.parse("9999.9"));
+    }
+
+    @Test
+    public void parsesBetweenIndices() {
+	assertEquals(1250, Prices.parse("price=12.5&q=1", 6, 10));
+    }
+
+    /** rather than being rounded, which would change the price a client asked for */
+    @Test(expected = NumberFormatException.class)
+    public void doesNotRoundPricesMorePreciseThanATick() {
+	Prices.parse("12.345");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void doesNotParseAnEmptyPrice() {
+	Prices.parse("-");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void doesNotParseOtherCharacters() {
+	Prices.parse("1e3");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void doesNotParseASecondDecimalPoint() {
+	Prices.parse("1.2.3");
+    }
+
+    @Test
+    public void parsesTheLargestPriceThatFitsIntoTicks() {
+	assertEquals(999999999999999999L, Prices.parse("9999999999999999.99"));
+    }
+
+    /** rather than silently overflowing into some other, possibly negative, price */
+    @Test(expected = NumberFormatException.class)
+    public void doesNotParsePricesTooLargeForTicks() {
+	Prices.parse("99999999999999999");
+    }
+
+    @Test
+    public void formatsWithTwoDecimalPlaces() {
+	assertEquals("12.50", Prices.format(1250));
+	assertEquals("0.05", Prices.format(5));
+	assertEquals("-0.05", Prices.format(-5));
+	assertEquals("0.00", Prices.format(0));
+	assertEquals("9999.90", Prices.format(999990));
+    }
+
+    @Test
+    public void formattingAndParsingAreInverse() {
+	for (long ticks = -1000; ticks <= 1000; ticks++) {
+	    assertEquals(ticks, Prices.parse(Prices.format(ticks)));
+	}
+    }
+}
@@ -0,0 +1,136 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static class Entry implements Expiring {
+	private long expires;
+	private boolean resting = true;
+
+	Entry(long expires) {
+	    this.expires = expires;
+	}
+
+	@Override
+	public long getExpires() {
+	    return expires;
+	}
+
+	@Override
+	public boolean isResting() {
+	    return resting;
+	}
+    }
+
+    /** a tick of 10ms and 4 slots, so once round is 40ms */
+    private final TimingWheel<Entry> wheel = new TimingWheel<>(10, 4);
+    private final List<Entry> expired = new ArrayList<>();
+
+    private void advance(long now) {
+	wheel.advance(now, e -> {
+	    e.resting = false;
+	    expired.add(e);
+	});
+    }
+
+    @Test
+    public void expiresOnlyOnceTheExpiryHasPassed() {
+	Entry e = new Entry(25);
+	wheel.add(e);
+
+	advance(25);
+	assertTrue(expired.isEmpty());
+
+	advance(26);
+	assertEquals(Arrays.asList(e), expired);
+
+	advance(100);
+	assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void entriesWhichLeftTheMarketAreDroppedWithoutExpiring() {
+	Entry left = new Entry(15);
+	Entry stays = new Entry(15);
+	wheel.add(left);
+	wheel.add(stays);
+	left.resting = false;
+
+	advance(20);
+	assertEquals(Arrays.asList(stays), expired);
+
+	// dropped from its slot, so it is not expired even if it were to rest again
+	left.resting = true;
+	advance(60);
+	assertEquals(Arrays.asList(stays), expired);
+    }
+
+    /** eg an order which was filled, went back into the pool and was reused */
+    @Test
+    public void entriesWhichLeftAndCameBackWithANewExpiryAreOnlyExpiredOnce() {
+	Entry e = new Entry(15);
+	wheel.add(e);
+	e.resting = false;
+	e.expires = 55; // a revolution later, in the same slot
+	e.resting = true;
+	wheel.add(e);
+
+	advance(20);
+	assertTrue(expired.isEmpty());
+	assertEquals("the stale entry is dropped", 1, wheel.size());
+
+	advance(60);
+	assertEquals(Arrays.asList(e), expired);
+	assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void entriesMoreThanOnceRoundAreNotExpiredEarly() {
+	Entry later = new Entry(105); // in the same slot as ticks 2, 6 and 10
+	wheel.add(later);
+
+	advance(25);
+	advance(65);
+	advance(105);
+	assertTrue(expired.isEmpty());
+
+	advance(110);
+	assertEquals(Arrays.asList(later), expired);
+    }
+
+    @Test
+    public void aJumpOfSeveralRevolutionsStillExpiresEverything() {
+	Entry first = new Entry(5);
+	Entry second = new Entry(35);
+	wheel.add(first);
+	wheel.add(second);
+
+	// in no particular order, since the wheel starts with the oldest slot rather than tick
+	advance(1000);
+	assertEquals(2, expired.size());
+	assertTrue(expired.containsAll(Arrays.asList(first, second)));
+    }
+
+    @Test
+    public void overdueEntriesExpireAtTheNextAdvance() {
+	advance(50);
+	Entry overdue = new Entry(10);
+	wheel.add(overdue);
+
+	advance(51);
+	assertEquals(Arrays.asList(overdue), expired);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void theNumberOfSlotsMustBeAPowerOfTwo() {
+	new TimingWheel<Entry>(10, 3);
+    }
+}
@@ -0,0 +1,335 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import akkabased.Main;
+
+import ch.maxant.tradingengine.model.TradingEngine.EventType;
+import ch.maxant.tradingengine.model.TradingEngine.MatchingMode;
+
+public class TradingEngineTest {
+
+    private static final int PRODUCT = 0;
+    private static final int SELLER = 1;
+    private static final int BUYER = 2;
+
+    /** sittings with sales complete without a database */
+    @BeforeClass
+    public static void stubPersistence() {
+	Main.STUB_PERSISTENCE = true;
+    }
+
+    private final List<EventType> events = new ArrayList<>();
+    /** the data of the last {@link EventType#STATS} event */
+    private Object[] stats;
+
+    private TradingEngine engine(MatchingMode mode) {
+	return new TradingEngine(0, 60000, (type, data) -> {
+	    events.add(type);
+	    if (type == EventType.STATS) {
+		stats = (Object[]) data;
+	    }
+	}, mode);
+    }
+
+    /** @return the status of the order which was last published */
+    @SuppressWarnings("unchecked")
+    private OrderStatus status(int id) {
+	for (OrderStatus status : (List<OrderStatus>) stats[5]) {
+	    if (status.getId() == id) {
+		return status;
+	    }
+	}
+	return null;
+    }
+
+    @Test
+    public void anIncomingOrderIsMatchedStraightAway() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+	assertTrue(events.isEmpty());
+
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 4, 2, 0);
+
+	assertEquals(Arrays.asList(EventType.PURCHASE, EventType.SALE), events);
+	assertFalse(po.isResting());
+	assertEquals(0, po.getRemainingQuantity());
+	assertTrue(so.isResting());
+	assertEquals(6, so.getRemainingQuantity());
+	assertEquals(Prices.parse("1.00"), engine.getCurrentMarketPrice(PRODUCT).getPrice());
+	assertEquals(4, engine.getCurrentVolume(PRODUCT).numberOfSales);
+    }
+
+    @Test
+    public void whatIsLeftOfAnIncomingOrderRests() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	engine.addSalesOrder(SELLER, "seller", PRODUCT, 4, Prices.parse("1.00"), 1, 0);
+
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 10, 2, 0);
+	assertTrue(po.isResting());
+	assertEquals(6, po.getRemainingQuantity());
+
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 6, Prices.parse("1.10"), 3, 0);
+	assertFalse(so.isResting());
+	assertFalse(po.isResting());
+	assertEquals(10, engine.getCurrentVolume(PRODUCT).numberOfSales);
+	assertEquals(2, engine.getCurrentVolume(PRODUCT).count);
+    }
+
+    @Test
+    public void theCheapestSalesOrderIsFilledFirst() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	SalesOrder dear = engine.addSalesOrder(SELLER, "seller", PRODUCT, 5, Prices.parse("2.00"), 1, 0);
+	SalesOrder cheap = engine.addSalesOrder(SELLER, "seller", PRODUCT, 5, Prices.parse("1.00"), 2, 0);
+
+	engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 7, 3, 0);
+
+	assertFalse(cheap.isResting());
+	assertEquals(3, dear.getRemainingQuantity());
+    }
+
+    @Test
+    public void ordersOfOtherProductsAreNotMatched() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 5, Prices.parse("1.00"), 1, 0);
+
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT + 1, 5, 2, 0);
+
+	assertTrue(events.isEmpty());
+	assertTrue(so.isResting());
+	assertTrue(po.isResting());
+    }
+
+    @Test
+    public void inBatchModeOrdersAreOnlyMatchedAtTheSitting() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 5, Prices.parse("1.00"), 1, 0);
+	engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 5, 2, 0);
+	assertTrue(events.isEmpty());
+	assertTrue(so.isResting());
+
+	engine.run();
+
+	assertFalse(so.isResting());
+	assertEquals(0, so.getRemainingQuantity());
+	assertEquals(Prices.parse("1.00"), engine.getCurrentMarketPrice(PRODUCT).getPrice());
+    }
+
+    @Test
+    public void cancellingRemovesTheOrderFromTheMarket() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 10, 2, 0);
+
+	assertTrue(engine.cancel(SELLER, PRODUCT, so.getId()));
+	assertTrue(engine.cancel(BUYER, PRODUCT, po.getId()));
+
+	assertFalse(so.isResting());
+	assertFalse(po.isResting());
+	assertFalse("no longer in the market", engine.cancel(SELLER, PRODUCT, so.getId()));
+    }
+
+    @Test
+    public void onlyTheOwnerMayCancelOrAmendAnOrder() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 10, 2, 0);
+
+	assertFalse(engine.cancel(BUYER, PRODUCT, so.getId()));
+	assertFalse(engine.amend(BUYER, PRODUCT, so.getId(), 5, Amendment.UNCHANGED_PRICE));
+	assertFalse(engine.cancel(SELLER, PRODUCT, po.getId()));
+	assertFalse(engine.amend(SELLER, PRODUCT, po.getId(), 5, Amendment.UNCHANGED_PRICE));
+
+	assertTrue(so.isResting());
+	assertEquals(10, so.getRemainingQuantity());
+	assertTrue(po.isResting());
+	assertEquals(10, po.getRemainingQuantity());
+    }
+
+    @Test
+    public void anOrderOfAnotherProductIsNotFound() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+
+	assertFalse(engine.cancel(SELLER, PRODUCT + 1, so.getId()));
+	assertTrue(so.isResting());
+    }
+
+    @Test
+    public void reducingTheQuantityKeepsThePriceAndOriginalQuantity() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+
+	assertTrue(engine.amend(SELLER, PRODUCT, so.getId(), 4, Amendment.UNCHANGED_PRICE));
+
+	assertTrue(so.isResting());
+	assertEquals(4, so.getRemainingQuantity());
+	assertEquals(10, so.getOriginalQuantity());
+	assertEquals(Prices.parse("1.00"), so.getPrice());
+    }
+
+    @Test
+    public void changingThePriceReentersTheOrder() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+
+	assertTrue(engine.amend(SELLER, PRODUCT, so.getId(), 10, Prices.parse("0.90")));
+
+	assertTrue(so.isResting());
+	assertEquals(Prices.parse("0.90"), so.getPrice());
+	assertEquals(10, so.getRemainingQuantity());
+    }
+
+    @Test
+    public void amendingToNothingCancelsTheOrder() {
+	TradingEngine engine = engine(MatchingMode.BATCH);
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 10, 2, 0);
+
+	assertTrue(engine.amend(BUYER, PRODUCT, po.getId(), 0, Amendment.UNCHANGED_PRICE));
+
+	assertFalse(po.isResting());
+	assertNull(engine.getCurrentMarketPrice(PRODUCT));
+    }
+
+    /** so that the quantity filled stays the difference between the original and remaining quantities */
+    @Test
+    public void raisingTheQuantityOfAPartlyFilledOrderRaisesTheOriginalQuantity() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+	engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 4, 2, 0);
+	assertEquals(6, so.getRemainingQuantity());
+
+	assertTrue(engine.amend(SELLER, PRODUCT, so.getId(), 8, Amendment.UNCHANGED_PRICE));
+
+	assertTrue(so.isResting());
+	assertEquals(8, so.getRemainingQuantity());
+	assertEquals(12, so.getOriginalQuantity());
+    }
+
+    @Test
+    public void anAmendedOrderIsMatchedContinuously() {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	PurchaseOrder po = engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 10, 1, 0);
+	// more than any buyer pays, so it rests
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("10000.00"), 2, 0);
+	assertTrue(so.isResting());
+	assertTrue(events.isEmpty());
+
+	assertTrue(engine.amend(SELLER, PRODUCT, so.getId(), 10, Prices.parse("1.00")));
+
+	assertFalse(so.isResting());
+	assertFalse(po.isResting());
+	assertEquals(0, po.getRemainingQuantity());
+	assertTrue(events.contains(EventType.SALE));
+	assertEquals(Prices.parse("1.00"), engine.getCurrentMarketPrice(PRODUCT).getPrice());
+    }
+
+    @Test
+    public void anExportedBookIsImportedWithItsOrdersPriceAndVolume() {
+	TradingEngine from = engine(MatchingMode.CONTINUOUS);
+	from.addSalesOrder(SELLER, "seller", PRODUCT, 4, Prices.parse("1.00"), 1, 0);
+	from.addPurchaseOrder(BUYER, "buyer", PRODUCT, 4, 2, 0);
+	// more than any buyer pays, so both rest
+	SalesOrder so = from.addSalesOrder(SELLER, "seller", PRODUCT, 5, Prices.parse("10000.00"), 3, 60000);
+	PurchaseOrder po = from.addPurchaseOrder(BUYER, "buyer", PRODUCT, 3, 4, 0);
+
+	BookTransfer transfer = from.exportBook(PRODUCT);
+
+	assertFalse(so.isResting());
+	assertFalse(po.isResting());
+	assertNull(from.getCurrentMarketPrice(PRODUCT));
+	assertEquals(0, from.getCurrentVolume(PRODUCT).numberOfSales);
+	assertEquals(1, transfer.getSalesOrders().size());
+	assertEquals(1, transfer.getPurchaseOrders().size());
+
+	TradingEngine to = engine(MatchingMode.CONTINUOUS);
+	to.importBook(transfer);
+
+	assertEquals(Prices.parse("1.00"), to.getCurrentMarketPrice(PRODUCT).getPrice());
+	assertEquals(4, to.getCurrentVolume(PRODUCT).numberOfSales);
+	assertEquals(1, to.getCurrentVolume(PRODUCT).count);
+	// the orders still belong to their owners
+	assertFalse(to.cancel(BUYER, PRODUCT, so.getId()));
+	assertTrue(to.amend(SELLER, PRODUCT, so.getId(), 2, Amendment.UNCHANGED_PRICE));
+	assertTrue(to.cancel(BUYER, PRODUCT, po.getId()));
+    }
+
+    @Test
+    public void theStatusesOfOrdersSayWhyTheyLeftTheMarket() throws InterruptedException {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 0);
+	engine.addPurchaseOrder(BUYER, "buyer", PRODUCT, 4, 2, 0);
+	engine.addSalesOrder(SELLER, "seller", PRODUCT + 1, 10, Prices.parse("1.00"), 3, 0);
+	engine.cancel(SELLER, PRODUCT + 1, 3);
+	engine.addSalesOrder(SELLER, "seller", PRODUCT + 2, 10, Prices.parse("1.00"), 4, 1);
+	Thread.sleep(5);
+
+	engine.run();
+
+	assertEquals(OrderStatus.State.OPEN, status(1).getState());
+	assertEquals(6, status(1).getRemainingQuantity());
+	assertEquals(OrderStatus.State.FILLED, status(2).getState());
+	assertEquals(OrderStatus.State.CANCELLED, status(3).getState());
+	assertEquals(OrderStatus.State.EXPIRED, status(4).getState());
+    }
+
+    /** rather than it being guessed from the clock once it has left */
+    @Test
+    public void anOrderCancelledAfterItsExpiryIsReportedAsCancelled() throws InterruptedException {
+	TradingEngine engine = engine(MatchingMode.CONTINUOUS);
+	SalesOrder so = engine.addSalesOrder(SELLER, "seller", PRODUCT, 10, Prices.parse("1.00"), 1, 1);
+	Thread.sleep(5);
+	// the engine only notices that it expired at the next sitting
+	assertTrue(engine.cancel(SELLER, PRODUCT, so.getId()));
+
+	engine.run();
+
+	assertEquals(OrderStatus.State.CANCELLED, status(1).getState());
+    }
+
+    private static List<Integer> sizesOfChunks(int rows, int chunkSize) {
+	List<Integer> sizes = new ArrayList<>();
+	List<Integer> concatenated = new ArrayList<>();
+	List<Integer> all = IntStream.range(0, rows).boxed().collect(Collectors.toList());
+	for (List<Integer> chunk : TradingEngine.chunk(all, chunkSize)) {
+	    sizes.add(chunk.size());
+	    concatenated.addAll(chunk);
+	}
+	assertEquals("every row once, in order", all, concatenated);
+	return sizes;
+    }
+
+    /** so that only a few different statements are ever prepared */
+    @Test
+    public void salesArePersistedInFullChunksAndThenPowersOfTwo() {
+	assertEquals(Arrays.asList(500, 256, 16, 4, 1), sizesOfChunks(777, 500));
+	assertEquals(Arrays.asList(500, 500), sizesOfChunks(1000, 500));
+	assertEquals(Arrays.asList(8, 2), sizesOfChunks(10, 500));
+	assertEquals(Arrays.asList(), sizesOfChunks(0, 500));
+	assertEquals(Arrays.asList(1, 1, 1), sizesOfChunks(3, 0));
+    }
+
+    /** MySQL allows at most 65535 parameters per statement, and each row has 7 */
+    @Test
+    public void chunksAreNoLargerThanMySqlAllows() {
+	assertEquals(Arrays.asList(9362, 9362, 4096, 128, 32, 16, 4), sizesOfChunks(23_000, 100_000));
+    }
+
+    @Test
+    public void eachChunkIsInsertedWithOneStatement() {
+	assertEquals("INSERT INTO SALES (BUYER_NAME, SELLER_NAME, PRODUCT_ID, PRICE, QUANTITY, PO_ID, SO_ID) VALUES "
+		+ "(?, ?, ?, ?, ?, ?, ?), (?, ?, ?, ?, ?, ?, ?)", TradingEngine.insertOf(2));
+    }
+}
@@ -0,0 +1,65 @@
+package ch.maxant.tradingengine.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ch.maxant.tradingengine.model.TradingEngine.VolumeRecord;
+
+public class VolumeStatisticsTest {
+
+    private static final int PRODUCT = 3;
+
+    private final VolumeStatistics volumes = new VolumeStatistics();
+
+    private Sale sale(int productId, int quantity, String price) {
+	Sale sale = new Sale(new Buyer("buyer"), new Seller("seller"), productId, Prices.parse(price), quantity);
+	volumes.add(sale);
+	return sale;
+    }
+
+    private static void assertVolume(int quantity, String turnover, int count, VolumeRecord volume) {
+	assertEquals("quantity", quantity, volume.numberOfSales);
+	assertEquals("turnover", Prices.parse(turnover), volume.turnover);
+	assertEquals("count", count, volume.count);
+    }
+
+    @Test
+    public void salesWithinTheWindowAddUp() {
+	Sale first = sale(PRODUCT, 10, "1.50");
+	sale(PRODUCT, 5, "2.00");
+	sale(PRODUCT + 1, 7, "3.00");
+
+	assertVolume(15, "25.00", 2, volumes.getCurrentVolume(PRODUCT, first.getTimestamp()));
+	assertVolume(7, "21.00", 1, volumes.getCurrentVolume(PRODUCT + 1, first.getTimestamp()));
+	assertVolume(0, "0.00", 0, volumes.getCurrentVolume(PRODUCT + 2, first.getTimestamp()));
+    }
+
+    @Test
+    public void salesFallOutOfTheWindow() {
+	Sale sale = sale(PRODUCT, 10, "1.50");
+
+	assertVolume(10, "15.00", 1, volumes.getCurrentVolume(PRODUCT, sale.getTimestamp() + VolumeStatistics.WINDOW_MS - VolumeStatistics.BUCKET_MS));
+	assertVolume(0, "0.00", 0, volumes.getCurrentVolume(PRODUCT, sale.getTimestamp() + VolumeStatistics.WINDOW_MS));
+    }
+
+    @Test
+    public void theOlderSalesFallOutFirst() throws InterruptedException {
+	sale(PRODUCT, 10, "1.50");
+	Thread.sleep(2 * VolumeStatistics.BUCKET_MS);
+	Sale newer = sale(PRODUCT, 5, "2.00");
+
+	assertVolume(5, "10.00", 1, volumes.getCurrentVolume(PRODUCT, newer.getTimestamp() + VolumeStatistics.WINDOW_MS - VolumeStatistics.BUCKET_MS));
+    }
+
+    @Test
+    public void aSaleOlderThanTheWindowIsIgnored() {
+	Sale sale = sale(PRODUCT, 10, "1.50");
+	long later = sale.getTimestamp() + 2 * VolumeStatistics.WINDOW_MS;
+	assertVolume(0, "0.00", 0, volumes.getCurrentVolume(PRODUCT, later));
+
+	sale(PRODUCT, 10, "1.50");
+
+	assertVolume(0, "0.00", 0, volumes.getCurrentVolume(PRODUCT, later));
+    }
+}